@@ -0,0 +1,146 @@
+import balicompiler.Expr;
+import balicompiler.MethodDecl;
+import balicompiler.MethodInfo;
+import balicompiler.Program;
+import balicompiler.Stmt;
+
+// a reference interpreter of the Bali AST, written for clarity rather than
+// speed and independent of the backends, to check what the compiled code
+// computes (e.g., on the programs of `BaliGenerator`). It follows the
+// semantics of the SaM simulator: 32-bit wrapping arithmetic, truncating
+// division, logical `&`/`|`/`!` that evaluate both operands, and `0` for a
+// method that runs off its end
+public class BaliEvaluator {
+	// what executing a statement ended with
+	private static final int NORMAL = 0, BREAK = 1, RETURN = 2;
+
+	private final long maxSteps;
+	private long steps = 0;
+	// the value of the last `return`
+	private int returnValue;
+
+	// `maxSteps` bounds the number of evaluated AST nodes
+	public BaliEvaluator(long maxSteps) {
+		this.maxSteps = maxSteps;
+	}
+
+	// the return value of `main()`; throws an ArithmeticException for a
+	// division by zero and an IllegalStateException if `maxSteps` is
+	// exceeded or a called method isn't declared
+	public int evaluate(Program program) {
+		MethodInfo main = program.methodInfos.get("main");
+		if (main == null || main.declaration == null) {
+			throw new IllegalStateException("the program has no `main()` method");
+		}
+		return call(main, new int[0]);
+	}
+
+	public long getSteps() {
+		return steps;
+	}
+
+	private int call(MethodInfo callee, int[] arguments) {
+		MethodDecl method = callee.declaration;
+		if (method == null) {
+			throw new IllegalStateException("method `" + callee.name + "` is never declared");
+		}
+		int[] slots = new int[method.numSlots()];
+		System.arraycopy(arguments, 0, slots, 0, arguments.length);
+		for (int i = 0; i < method.numLocals(); i++) {
+			Expr initializer = method.localInitializers.get(i);
+			slots[method.numParameters + i] = initializer == null ? 0 : evaluate(initializer, slots);
+		}
+		return execute(method.body, slots) == RETURN ? returnValue : 0;
+	}
+
+	private int execute(Stmt statement, int[] slots) {
+		step();
+		switch (statement.kind) {
+			case BLOCK:
+				for (Stmt inner : ((Stmt.Block) statement).statements) {
+					int result = execute(inner, slots);
+					if (result != NORMAL) {
+						return result;
+					}
+				}
+				return NORMAL;
+			case ASSIGN:
+				Stmt.Assign assign = (Stmt.Assign) statement;
+				slots[assign.slot] = evaluate(assign.value, slots);
+				return NORMAL;
+			case RETURN:
+				returnValue = evaluate(((Stmt.Return) statement).value, slots);
+				return RETURN;
+			case IF:
+				Stmt.If ifStatement = (Stmt.If) statement;
+				return execute(evaluate(ifStatement.condition, slots) != 0 ? ifStatement.thenStmt : ifStatement.elseStmt, slots);
+			case WHILE:
+				Stmt.While whileStatement = (Stmt.While) statement;
+				while (evaluate(whileStatement.condition, slots) != 0) {
+					int result = execute(whileStatement.body, slots);
+					if (result == BREAK) {
+						break;
+					} else if (result == RETURN) {
+						return RETURN;
+					}
+				}
+				return NORMAL;
+			default:
+				return BREAK;
+		}
+	}
+
+	private int evaluate(Expr expression, int[] slots) {
+		step();
+		switch (expression.kind) {
+			case INT_LITERAL:
+				return ((Expr.IntLiteral) expression).value;
+			case VARIABLE:
+				return slots[((Expr.Variable) expression).slot];
+			case NEGATE:
+				return -evaluate(((Expr.Unary) expression).operand, slots);
+			case NOT:
+				return evaluate(((Expr.Unary) expression).operand, slots) == 0 ? 1 : 0;
+			case BINARY:
+				Expr.Binary binary = (Expr.Binary) expression;
+				int left = evaluate(binary.left, slots);
+				int right = evaluate(binary.right, slots);
+				switch (binary.operator) {
+					case '+':
+						return left + right;
+					case '-':
+						return left - right;
+					case '*':
+						return left * right;
+					case '/':
+						if (right == 0) {
+							throw new ArithmeticException("division by zero");
+						}
+						return left / right;
+					case '&':
+						return left != 0 && right != 0 ? 1 : 0;
+					case '|':
+						return left != 0 || right != 0 ? 1 : 0;
+					case '<':
+						return left < right ? 1 : 0;
+					case '>':
+						return left > right ? 1 : 0;
+					default:
+						return left == right ? 1 : 0;
+				}
+			default:
+				Expr.Call call = (Expr.Call) expression;
+				int[] arguments = new int[call.arguments.length];
+				for (int i = 0; i < arguments.length; i++) {
+					arguments[i] = evaluate(call.arguments[i], slots);
+				}
+				return call(call.callee, arguments);
+		}
+	}
+
+	private void step() {
+		if (++steps > maxSteps) {
+			throw new IllegalStateException("exceeded " + maxSteps + " evaluation steps");
+		}
+	}
+}
@@ -0,0 +1,530 @@
+import balicompiler.BaliCompilation;
+import balicompiler.CompilerOptions;
+import balicompiler.Expr;
+import balicompiler.MethodDecl;
+import balicompiler.MethodInfo;
+import balicompiler.Program;
+import balicompiler.Stmt;
+import balicompiler.jvm.JvmBackend;
+import balicompiler.sam.SamBackend;
+import balicompiler.sam.SamInterpreter;
+import balicompiler.sam.SamPeephole;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
+
+// a generator of valid Bali programs for scale and stress tests: the same
+// seed and knobs always give the same program. The program is built as an
+// AST (so that `BaliEvaluator` gives its expected result without going
+// through the compilers) and then printed as Bali source.
+//
+// Every program terminates without a runtime error: the call graph is
+// acyclic (a method only calls methods generated before it, which can be
+// printed after it, see `forwardReferences`), every loop counts up a
+// counter that only its header and its last statement assign, and every
+// divisor is a literal in 2..9 or `((v * v) + 1)`, which is neither `0` nor
+// `-1` for any int `v`. The run time is kept in check by estimating the
+// cost of every method (the AST nodes it evaluates, with the loops at
+// their bounds and the calls at their callees' cost) and only calling
+// methods that fit in the budget
+public class BaliGenerator {
+	public static final String USAGE = "Usage: BaliGenerator [options]\n"
+			+ "Options:\n"
+			+ "  --seed=N                 the seed of the random choices (default 1)\n"
+			+ "  --methods=N              the number of methods besides `main` (default 20)\n"
+			+ "  --statements=N           the number of top-level statements of each method (default 8)\n"
+			+ "  --depth=N                the depth of the expressions (default 3)\n"
+			+ "  --nesting=N              how deeply `if`s and `while`s nest (default 2)\n"
+			+ "  --fan-out=N              how many different methods a method calls at most (default 3)\n"
+			+ "  --forward-refs=P         the percentage of methods moved ahead of their callees (default 20)\n"
+			+ "  --max-cost=N             the estimated number of AST nodes that `main` evaluates at most\n"
+			+ "                           (default 1000000)\n"
+			+ "  --out=FILE               where to write the program (default: stdout)\n"
+			+ "  --check                  compile the program, run it (SaM interpreter and JVM) and compare\n"
+			+ "                           the results with the expected one\n";
+
+	private static final String[] PARAMETER_NAMES = { "a", "b", "c", "d" };
+	private static final char[] OPERATORS = { '+', '-', '*', '/', '&', '|', '<', '>', '=' };
+	private static final int MAX_LOOP_BOUND = 8;
+
+	public long seed = 1;
+	public int methods = 20;
+	public int statements = 8;
+	public int expressionDepth = 3;
+	public int nesting = 2;
+	public int fanOut = 3;
+	public int forwardReferences = 20;
+	public long maxCost = 1000000;
+	// a single method is kept much cheaper than the whole program, so that
+	// `main` can call many of them
+	private long methodCostLimit;
+
+	private Random random;
+	// indexed by the order in which the methods are generated (their rank)
+	private MethodInfo[] infos;
+	private long[] costs;
+
+	// the method being generated
+	private int rank;
+	private MethodDecl method;
+	// the ranks of the methods it calls
+	private HashSet<Integer> callees;
+	// the slots that expressions can read and that assignments can write
+	// (the loop counters come after the latter)
+	private int readableSlots;
+	private int assignableSlots;
+	private int loopDepth;
+	// the estimated cost so far, its limit, and how many times the code
+	// being generated runs per call (the product of the enclosing loops'
+	// bounds)
+	private long cost;
+	private long costLimit;
+	private long multiplier;
+
+	public Program generate() {
+		random = new Random(seed);
+		methodCostLimit = Math.max(maxCost / Math.max(methods, 1) * 4, 100);
+		Program program = new Program();
+		// the parser sees `main` first too
+		program.getMethodInfo("main").numParameters = 0;
+		infos = new MethodInfo[methods];
+		costs = new long[methods];
+		boolean[] called = new boolean[methods];
+		ArrayList<MethodDecl> order = new ArrayList<MethodDecl>();
+		for (rank = 0; rank < methods; rank++) {
+			infos[rank] = program.getMethodInfo("m" + rank);
+			order.add(generateMethod(infos[rank], random.nextInt(PARAMETER_NAMES.length + 1)));
+			costs[rank] = cost;
+			for (int callee : callees) {
+				called[callee] = true;
+			}
+		}
+
+		// the file order: callees first, but some methods are moved ahead
+		// of (some of) their callees, so that they are called before they
+		// are declared
+		for (int i = 0; i < order.size(); i++) {
+			if (random.nextInt(100) < forwardReferences) {
+				int other = i + random.nextInt(order.size() - i);
+				MethodDecl moved = order.get(other);
+				order.set(other, order.get(i));
+				order.set(i, moved);
+			}
+		}
+		program.methods.addAll(order);
+		program.methods.add(generateMain(program.getMethodInfo("main"), called));
+		return program;
+	}
+
+	// ===============================
+	// the methods and statements
+	// ===============================
+
+	private MethodDecl generateMethod(MethodInfo info, int numParameters) {
+		startMethod(info, numParameters, methodCostLimit);
+		// the locals, whose initializers only see the slots declared before
+		int numLocals = 1 + random.nextInt(3);
+		for (int i = 0; i < numLocals; i++) {
+			readableSlots = method.numSlots();
+			method.localInitializers.add(random.nextBoolean() ? generateExpression(expressionDepth) : null);
+			method.slotNames.add("x" + i);
+		}
+		assignableSlots = method.numSlots();
+		for (int i = 0; i < nesting; i++) {
+			method.localInitializers.add(null);
+			method.slotNames.add("k" + i);
+		}
+		readableSlots = method.numSlots();
+
+		ArrayList<Stmt> body = new ArrayList<Stmt>();
+		for (int i = 0; i < statements; i++) {
+			generateStatement(body, 0);
+		}
+		body.add(new Stmt.Return(generateExpression(expressionDepth)));
+		method.body = new Stmt.Block(body);
+		return method;
+	}
+
+	// `main` calls the methods that no other method calls (the latest ones
+	// first) for as long as the budget allows, and returns their sum
+	private MethodDecl generateMain(MethodInfo info, boolean[] called) {
+		startMethod(info, 0, maxCost);
+		method.localInitializers.add(null);
+		method.slotNames.add("r");
+		readableSlots = assignableSlots = 1;
+		ArrayList<Stmt> body = new ArrayList<Stmt>();
+		for (int callee = methods - 1; callee >= 0; callee--) {
+			if (!called[callee] && cost + costs[callee] + 3 <= costLimit) {
+				Expr[] arguments = new Expr[infos[callee].numParameters];
+				for (int i = 0; i < arguments.length; i++) {
+					arguments[i] = new Expr.IntLiteral(random.nextInt(100));
+				}
+				cost += costs[callee] + 3 + arguments.length;
+				body.add(new Stmt.Assign(0, new Expr.Binary('+', new Expr.Variable(0), new Expr.Call(infos[callee], arguments, 0))));
+			}
+		}
+		body.add(new Stmt.Return(new Expr.Variable(0)));
+		method.body = new Stmt.Block(body);
+		return method;
+	}
+
+	private void startMethod(MethodInfo info, int numParameters, long limit) {
+		method = new MethodDecl(info);
+		info.declaration = method;
+		info.numParameters = numParameters;
+		method.numParameters = numParameters;
+		method.localInitializers = new ArrayList<Expr>();
+		method.slotNames = new ArrayList<String>();
+		for (int i = 0; i < numParameters; i++) {
+			method.slotNames.add(PARAMETER_NAMES[i]);
+		}
+		readableSlots = numParameters;
+		callees = new HashSet<Integer>();
+		loopDepth = 0;
+		cost = 0;
+		costLimit = limit;
+		multiplier = 1;
+	}
+
+	// appends one statement (two for a loop: the counter's initialization
+	// and the `while`) to `statements`
+	private void generateStatement(ArrayList<Stmt> statements, int depth) {
+		int choice = random.nextInt(10);
+		boolean compound = depth < nesting;
+		if (compound && choice >= 5 && choice < 7) {
+			Expr condition = generateExpression(expressionDepth);
+			statements.add(new Stmt.If(condition, generateBlock(depth + 1), random.nextBoolean() ? generateBlock(depth + 1) : empty()));
+		} else if (compound && choice >= 7 && choice < 9 && loopDepth < nesting) {
+			generateLoop(statements, depth);
+		} else if (choice == 9 && loopDepth > 0) {
+			statements.add(new Stmt.If(generateExpression(expressionDepth), new Stmt.Break(), empty()));
+		} else if (choice == 9) {
+			statements.add(new Stmt.If(generateExpression(expressionDepth), new Stmt.Return(generateExpression(expressionDepth)), empty()));
+		} else if (assignableSlots > 0) {
+			statements.add(new Stmt.Assign(random.nextInt(assignableSlots), generateExpression(expressionDepth)));
+		}
+		cost += multiplier;
+	}
+
+	// `k = 0; while ((k < bound)) { ...; k = (k + 1); }`
+	private void generateLoop(ArrayList<Stmt> statements, int depth) {
+		int counter = assignableSlots + loopDepth;
+		int bound = 1 + random.nextInt(MAX_LOOP_BOUND);
+		statements.add(new Stmt.Assign(counter, new Expr.IntLiteral(0)));
+		cost += multiplier * (2 + (bound + 1) * 3L);
+
+		long outerMultiplier = multiplier;
+		multiplier *= bound;
+		loopDepth++;
+		Stmt.Block body = generateBlock(depth + 1);
+		body.statements.add(new Stmt.Assign(counter, new Expr.Binary('+', new Expr.Variable(counter), new Expr.IntLiteral(1))));
+		cost += multiplier * 4;
+		loopDepth--;
+		multiplier = outerMultiplier;
+
+		statements.add(new Stmt.While(new Expr.Binary('<', new Expr.Variable(counter), new Expr.IntLiteral(bound)), body));
+	}
+
+	private Stmt.Block generateBlock(int depth) {
+		ArrayList<Stmt> statements = new ArrayList<Stmt>();
+		int count = 1 + random.nextInt(3);
+		for (int i = 0; i < count; i++) {
+			generateStatement(statements, depth);
+		}
+		return new Stmt.Block(statements);
+	}
+
+	private static Stmt.Block empty() {
+		return new Stmt.Block(new ArrayList<Stmt>(0));
+	}
+
+	// ===============================
+	// the expressions
+	// ===============================
+
+	private Expr generateExpression(int depth) {
+		cost += multiplier;
+		int choice = random.nextInt(10);
+		if (depth <= 0 || choice < 2) {
+			return generateLeaf();
+		}
+		if (choice < 3) {
+			return new Expr.Unary(random.nextBoolean() ? Expr.Kind.NEGATE : Expr.Kind.NOT, generateExpression(depth - 1));
+		}
+		if (choice < 5) {
+			Expr call = generateCall(depth);
+			if (call != null) {
+				return call;
+			}
+		}
+		char operator = OPERATORS[random.nextInt(OPERATORS.length)];
+		Expr left = generateExpression(depth - 1);
+		return new Expr.Binary(operator, left, operator == '/' ? generateDivisor() : generateExpression(depth - 1));
+	}
+
+	private Expr generateLeaf() {
+		if (readableSlots > 0 && random.nextInt(10) < 6) {
+			return new Expr.Variable(random.nextInt(readableSlots));
+		}
+		return new Expr.IntLiteral(random.nextInt(10) == 0 ? random.nextInt(100000) : random.nextInt(100));
+	}
+
+	// never `0` or `-1`: the square of an int is `0` or `1` modulo 4, so
+	// the square plus 1 is `1` or `2` modulo 4
+	private Expr generateDivisor() {
+		cost += multiplier * 4;
+		if (readableSlots == 0 || random.nextBoolean()) {
+			return new Expr.IntLiteral(2 + random.nextInt(8));
+		}
+		Expr.Variable variable = new Expr.Variable(random.nextInt(readableSlots));
+		return new Expr.Binary('+', new Expr.Binary('*', variable, new Expr.Variable(variable.slot)), new Expr.IntLiteral(1));
+	}
+
+	// a call to a method generated before this one, or null if none fits
+	// in the budget (or the method already calls `fanOut` others)
+	private Expr generateCall(int depth) {
+		for (int attempt = 0; attempt < 3 && rank > 0; attempt++) {
+			int callee;
+			if (callees.size() >= fanOut) {
+				Integer[] known = callees.toArray(new Integer[0]);
+				callee = known[random.nextInt(known.length)];
+			} else {
+				callee = random.nextInt(rank);
+			}
+			long callCost = multiplier * (costs[callee] + 1);
+			if (cost + callCost > costLimit) {
+				continue;
+			}
+			cost += callCost;
+			callees.add(callee);
+			Expr[] arguments = new Expr[infos[callee].numParameters];
+			for (int i = 0; i < arguments.length; i++) {
+				arguments[i] = generateExpression(depth - 1);
+			}
+			return new Expr.Call(infos[callee], arguments, 0);
+		}
+		return null;
+	}
+
+	// ===============================
+	// the printer
+	// ===============================
+
+	// writes `program` as Bali source
+	public static void print(Program program, PrintWriter out) {
+		for (MethodDecl method : program.methods) {
+			out.print("int " + method.info.name + "(");
+			for (int i = 0; i < method.numParameters; i++) {
+				out.print((i > 0 ? ", int " : "int ") + method.slotNames.get(i));
+			}
+			out.println(") {");
+			for (int i = 0; i < method.numLocals(); i++) {
+				out.print("\tint " + method.slotNames.get(method.numParameters + i));
+				Expr initializer = method.localInitializers.get(i);
+				if (initializer != null) {
+					out.print(" = ");
+					printExpression(method, initializer, out);
+				}
+				out.println(";");
+			}
+			for (Stmt statement : method.body.statements) {
+				printStatement(method, statement, 1, out);
+			}
+			out.println("}");
+			out.println();
+		}
+	}
+
+	private static void printStatement(MethodDecl method, Stmt statement, int indent, PrintWriter out) {
+		String tabs = "\t".repeat(indent);
+		switch (statement.kind) {
+			case BLOCK:
+				ArrayList<Stmt> statements = ((Stmt.Block) statement).statements;
+				if (statements.isEmpty()) {
+					out.println(tabs + ";");
+					return;
+				}
+				out.println(tabs.substring(1) + "{");
+				for (Stmt inner : statements) {
+					printStatement(method, inner, indent, out);
+				}
+				out.println(tabs.substring(1) + "}");
+				return;
+			case ASSIGN:
+				Stmt.Assign assign = (Stmt.Assign) statement;
+				out.print(tabs + method.slotNames.get(assign.slot) + " = ");
+				printExpression(method, assign.value, out);
+				out.println(";");
+				return;
+			case RETURN:
+				out.print(tabs + "return ");
+				printExpression(method, ((Stmt.Return) statement).value, out);
+				out.println(";");
+				return;
+			case IF:
+				Stmt.If ifStatement = (Stmt.If) statement;
+				out.print(tabs + "if (");
+				printExpression(method, ifStatement.condition, out);
+				out.println(")");
+				printStatement(method, ifStatement.thenStmt, indent + 1, out);
+				out.println(tabs + "else");
+				printStatement(method, ifStatement.elseStmt, indent + 1, out);
+				return;
+			case WHILE:
+				Stmt.While whileStatement = (Stmt.While) statement;
+				out.print(tabs + "while (");
+				printExpression(method, whileStatement.condition, out);
+				out.println(")");
+				printStatement(method, whileStatement.body, indent + 1, out);
+				return;
+			case BREAK:
+				out.println(tabs + "break;");
+				return;
+		}
+	}
+
+	private static void printExpression(MethodDecl method, Expr expression, PrintWriter out) {
+		switch (expression.kind) {
+			case INT_LITERAL:
+				int value = ((Expr.IntLiteral) expression).value;
+				out.print(value < 0 ? "(-" + (-(long) value) + ")" : Integer.toString(value));
+				return;
+			case VARIABLE:
+				out.print(method.slotNames.get(((Expr.Variable) expression).slot));
+				return;
+			case NEGATE:
+			case NOT:
+				out.print(expression.kind == Expr.Kind.NEGATE ? "(-" : "(!");
+				printExpression(method, ((Expr.Unary) expression).operand, out);
+				out.print(")");
+				return;
+			case BINARY:
+				Expr.Binary binary = (Expr.Binary) expression;
+				out.print("(");
+				printExpression(method, binary.left, out);
+				out.print(" " + binary.operator + " ");
+				printExpression(method, binary.right, out);
+				out.print(")");
+				return;
+			case CALL:
+				Expr.Call call = (Expr.Call) expression;
+				out.print(call.callee.name + "(");
+				for (int i = 0; i < call.arguments.length; i++) {
+					if (i > 0) {
+						out.print(", ");
+					}
+					printExpression(method, call.arguments[i], out);
+				}
+				out.print(")");
+				return;
+		}
+	}
+
+	// ===============================
+	// the command line
+	// ===============================
+
+	public static void main(String[] args) throws IOException {
+		BaliGenerator generator = new BaliGenerator();
+		String outputFileName = null;
+		boolean check = false;
+		try {
+			for (String arg : args) {
+				if (arg.startsWith("--seed=")) {
+					generator.seed = parseLong(arg, arg.substring("--seed=".length()), Long.MIN_VALUE);
+				} else if (arg.startsWith("--methods=")) {
+					generator.methods = (int) parseLong(arg, arg.substring("--methods=".length()), 0);
+				} else if (arg.startsWith("--statements=")) {
+					generator.statements = (int) parseLong(arg, arg.substring("--statements=".length()), 0);
+				} else if (arg.startsWith("--depth=")) {
+					generator.expressionDepth = (int) parseLong(arg, arg.substring("--depth=".length()), 0);
+				} else if (arg.startsWith("--nesting=")) {
+					generator.nesting = (int) parseLong(arg, arg.substring("--nesting=".length()), 0);
+				} else if (arg.startsWith("--fan-out=")) {
+					generator.fanOut = (int) parseLong(arg, arg.substring("--fan-out=".length()), 0);
+				} else if (arg.startsWith("--forward-refs=")) {
+					generator.forwardReferences = (int) parseLong(arg, arg.substring("--forward-refs=".length()), 0);
+				} else if (arg.startsWith("--max-cost=")) {
+					generator.maxCost = parseLong(arg, arg.substring("--max-cost=".length()), 1);
+				} else if (arg.startsWith("--out=")) {
+					outputFileName = arg.substring("--out=".length());
+				} else if (arg.equals("--check")) {
+					check = true;
+				} else {
+					throw new IllegalArgumentException("Unknown option `" + arg + "`");
+				}
+			}
+		} catch (IllegalArgumentException e) {
+			System.out.println(e.getMessage() + "\n" + USAGE);
+			return;
+		}
+
+		Program program = generator.generate();
+		// the estimate is an upper bound of the actual cost
+		int expected = new BaliEvaluator(Long.MAX_VALUE).evaluate(program);
+		PrintWriter out = outputFileName != null
+				? new PrintWriter(Files.newBufferedWriter(Path.of(outputFileName)))
+				: new PrintWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+		out.println("// generated by BaliGenerator " + String.join(" ", args));
+		out.println("// Expected result: " + expected);
+		out.println();
+		print(program, out);
+		out.flush();
+		if (outputFileName != null) {
+			out.close();
+		}
+
+		if (check) {
+			StringWriter source = new StringWriter();
+			print(program, new PrintWriter(source));
+			if (!check(source.toString(), expected)) {
+				System.exit(1);
+			}
+		}
+	}
+
+	// compiles `source` and runs it on the SaM interpreter and the JVM;
+	// returns whether both gave `expected`
+	private static boolean check(String source, int expected) throws IOException {
+		CompilerOptions options = new CompilerOptions();
+		BaliCompilation compilation = new BaliCompilation(new StringReader(source), System.err, options);
+		if (compilation.getProgram() == null) {
+			return false;
+		}
+
+		StringWriter samCode = new StringWriter();
+		compilation.generate(new SamBackend(new SamPeephole(options.disabledRules)), samCode);
+		int samResult = SamInterpreter.load(new StringReader(samCode.toString()))
+				.run(SamInterpreter.DEFAULT_STACK_SIZE, Long.MAX_VALUE).exitStatus;
+
+		ByteArrayOutputStream jvmOutput = new ByteArrayOutputStream();
+		JvmBackend.run(compilation.getProgram(), new PrintStream(jvmOutput, true, StandardCharsets.UTF_8), System.err);
+		String jvmResult = jvmOutput.toString(StandardCharsets.UTF_8).trim();
+
+		boolean ok = samResult == expected && jvmResult.equals(Integer.toString(expected));
+		System.err.println("expected " + expected + ", SaM " + samResult + ", JVM " + jvmResult + (ok ? ": ok" : ": MISMATCH"));
+		return ok;
+	}
+
+	private static long parseLong(String flag, String value, long minimum) {
+		try {
+			long result = Long.parseLong(value);
+			if (result >= minimum) {
+				return result;
+			}
+		} catch (NumberFormatException e) {
+		}
+		throw new IllegalArgumentException("Expecting a number of at least " + minimum + " in `" + flag + "`");
+	}
+}
@@ -0,0 +1,338 @@
+import balix86compiler.Compiler;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// a JMH-style benchmark of the two compilers (`BaliCompiler.compile()` and
+// `balix86compiler.Compiler.compile()`): every compiler is run over every
+// workload (the test corpora and `BaliGenerator` programs of increasing
+// size) in timed iterations, after as many warm-up iterations, on the same
+// thread.
+// For each pair it reports the throughput (compiles of the whole workload
+// per second, with its standard deviation over the iterations), the
+// allocation rate and the GC activity during the measured iterations (what
+// JMH's `gc` profiler reports), and the number of instructions emitted
+public class CompilerBenchmark {
+	private static final String USAGE = "Usage: CompilerBenchmark [options] [corpus directories]\n"
+			+ "Options:\n"
+			+ "  --warmup=N               the number of warm-up iterations (default 5)\n"
+			+ "  --iterations=N           the number of measured iterations (default 5)\n"
+			+ "  --time=MS                the length of each iteration, in milliseconds (default 1000)\n"
+			+ "  --sizes=a,b,...          the sizes (in methods) of the generated programs (default 10,100,1000)\n"
+			+ "  --csv=FILE               also write the results to FILE as CSV\n"
+			+ "The corpora default to `hw1/public-testcases` and `hw2/testcases`; the files that don't\n"
+			+ "compile (the bad test cases) are left out.\n";
+
+	private int warmupIterations = 5;
+	private int iterations = 5;
+	private long iterationNanos = 1000_000_000L;
+	private ArrayList<Integer> sizes = new ArrayList<Integer>(List.of(10, 100, 1000));
+	private String csvFileName = null;
+	private ArrayList<String> corpora = new ArrayList<String>();
+
+	// the measured compilers
+	private interface CompileFunction {
+		void compile(String fileName, Writer writer);
+	}
+
+	private static final String[] COMPILER_NAMES = { "sam", "x86" };
+	private static final CompileFunction[] COMPILERS = {
+		(fileName, writer) -> new BaliCompiler().compile(fileName, writer),
+		(fileName, writer) -> new Compiler().compile(fileName, writer),
+	};
+
+	// what is compiled by one benchmark operation
+	private static final class Workload {
+		final String name;
+		final List<Path> files;
+		long sourceBytes;
+
+		Workload(String name, List<Path> files) throws IOException {
+			this.name = name;
+			this.files = files;
+			for (Path file : files) {
+				sourceBytes += Files.size(file);
+			}
+		}
+	}
+
+	// the results of one compiler over one workload
+	private static final class Measurement {
+		String compiler;
+		Workload workload;
+		double opsPerSecond;
+		double opsPerSecondDeviation;
+		double allocatedBytesPerOp;
+		double allocatedBytesPerSecond;
+		long gcCount;
+		long gcMillis;
+		long instructions;
+	}
+
+	public static void main(String[] args) throws IOException {
+		CompilerBenchmark benchmark = new CompilerBenchmark();
+		try {
+			benchmark.parseArgs(args);
+		} catch (IllegalArgumentException e) {
+			System.out.println(e.getMessage() + "\n" + USAGE);
+			return;
+		}
+		benchmark.run(System.out);
+	}
+
+	private void parseArgs(String[] args) {
+		for (String arg : args) {
+			if (arg.startsWith("--warmup=")) {
+				warmupIterations = parseInt(arg, arg.substring("--warmup=".length()), 0);
+			} else if (arg.startsWith("--iterations=")) {
+				iterations = parseInt(arg, arg.substring("--iterations=".length()), 1);
+			} else if (arg.startsWith("--time=")) {
+				iterationNanos = parseInt(arg, arg.substring("--time=".length()), 1) * 1000_000L;
+			} else if (arg.startsWith("--sizes=")) {
+				sizes.clear();
+				for (String size : arg.substring("--sizes=".length()).split(",")) {
+					sizes.add(parseInt(arg, size, 1));
+				}
+			} else if (arg.startsWith("--csv=")) {
+				csvFileName = arg.substring("--csv=".length());
+			} else if (arg.startsWith("--")) {
+				throw new IllegalArgumentException("Unknown option `" + arg + "`");
+			} else {
+				corpora.add(arg);
+			}
+		}
+		if (corpora.isEmpty()) {
+			corpora.add("hw1/public-testcases");
+			corpora.add("hw2/testcases");
+		}
+	}
+
+	private void run(PrintStream out) throws IOException {
+		ArrayList<Workload> workloads = new ArrayList<Workload>();
+		for (String corpus : corpora) {
+			workloads.add(new Workload(corpus, collectCompilingFiles(Path.of(corpus))));
+		}
+		Path syntheticDirectory = Files.createTempDirectory("bali-bench");
+		for (int size : sizes) {
+			Path file = syntheticDirectory.resolve("synthetic-" + size + ".bali");
+			BaliGenerator generator = new BaliGenerator();
+			generator.methods = size;
+			try (PrintWriter source = new PrintWriter(Files.newBufferedWriter(file))) {
+				BaliGenerator.print(generator.generate(), source);
+			}
+			file.toFile().deleteOnExit();
+			workloads.add(new Workload("synthetic-" + size, List.of(file)));
+		}
+		syntheticDirectory.toFile().deleteOnExit();
+
+		ArrayList<Measurement> measurements = new ArrayList<Measurement>();
+		out.printf("%-8s %-24s %6s %10s %12s %10s %12s %12s %6s %8s %13s%n", "compiler", "workload", "files", "src bytes",
+				"ops/s", "+- sd", "alloc MB/s", "alloc KB/op", "gc", "gc ms", "instructions");
+		for (Workload workload : workloads) {
+			for (int c = 0; c < COMPILERS.length; c++) {
+				Measurement measurement = measure(COMPILER_NAMES[c], COMPILERS[c], workload);
+				measurements.add(measurement);
+				out.printf("%-8s %-24s %6d %10d %12.2f %10.2f %12.1f %12.1f %6d %8d %13d%n", measurement.compiler, workload.name,
+						workload.files.size(), workload.sourceBytes, measurement.opsPerSecond, measurement.opsPerSecondDeviation,
+						measurement.allocatedBytesPerSecond / (1 << 20), measurement.allocatedBytesPerOp / 1024,
+						measurement.gcCount, measurement.gcMillis, measurement.instructions);
+			}
+		}
+		if (csvFileName != null) {
+			writeCSV(measurements);
+		}
+	}
+
+	// the files of `corpus` that compile (the bad test cases throw)
+	private static List<Path> collectCompilingFiles(Path corpus) throws IOException {
+		List<Path> files;
+		try (Stream<Path> walk = Files.walk(corpus)) {
+			files = walk.filter(p -> p.toString().endsWith(".bali") && Files.isRegularFile(p))
+					.sorted()
+					.collect(Collectors.toList());
+		}
+		ArrayList<Path> compiling = new ArrayList<Path>();
+		for (Path file : files) {
+			try {
+				new BaliCompiler().compile(file.toString(), Writer.nullWriter());
+				compiling.add(file);
+			} catch (RuntimeException | Error e) {
+				// the syntax errors are thrown as `Error`s
+			}
+		}
+		return compiling;
+	}
+
+	// ===============================
+	// the measurement
+	// ===============================
+
+	private Measurement measure(String compilerName, CompileFunction compiler, Workload workload) {
+		Measurement measurement = new Measurement();
+		measurement.compiler = compilerName;
+		measurement.workload = workload;
+		InstructionCounter counter = new InstructionCounter();
+		compileWorkload(compiler, workload, counter);
+		measurement.instructions = counter.instructions;
+
+		for (int i = 0; i < warmupIterations; i++) {
+			runIteration(compiler, workload, counter);
+		}
+
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long allocatedBefore = threads.getCurrentThreadAllocatedBytes();
+		long gcCountBefore = getGcCount();
+		long gcMillisBefore = getGcMillis();
+		double[] opsPerSecond = new double[iterations];
+		long totalOps = 0;
+		long totalNanos = 0;
+		for (int i = 0; i < iterations; i++) {
+			long start = System.nanoTime();
+			long ops = runIteration(compiler, workload, counter);
+			long nanos = System.nanoTime() - start;
+			opsPerSecond[i] = ops * 1e9 / nanos;
+			totalOps += ops;
+			totalNanos += nanos;
+		}
+		long allocated = threads.getCurrentThreadAllocatedBytes() - allocatedBefore;
+		measurement.gcCount = getGcCount() - gcCountBefore;
+		measurement.gcMillis = getGcMillis() - gcMillisBefore;
+
+		double mean = 0;
+		for (double score : opsPerSecond) {
+			mean += score / iterations;
+		}
+		double variance = 0;
+		for (double score : opsPerSecond) {
+			variance += (score - mean) * (score - mean) / Math.max(iterations - 1, 1);
+		}
+		measurement.opsPerSecond = mean;
+		measurement.opsPerSecondDeviation = Math.sqrt(variance);
+		measurement.allocatedBytesPerOp = (double) allocated / totalOps;
+		measurement.allocatedBytesPerSecond = allocated * 1e9 / totalNanos;
+		return measurement;
+	}
+
+	// compiles the workload over and over for `iterationNanos`; returns how
+	// many times it did
+	private long runIteration(CompileFunction compiler, Workload workload, InstructionCounter counter) {
+		long end = System.nanoTime() + iterationNanos;
+		long ops = 0;
+		do {
+			compileWorkload(compiler, workload, counter);
+			ops++;
+		} while (System.nanoTime() < end);
+		return ops;
+	}
+
+	private static void compileWorkload(CompileFunction compiler, Workload workload, InstructionCounter counter) {
+		counter.instructions = 0;
+		for (Path file : workload.files) {
+			compiler.compile(file.toString(), counter);
+		}
+	}
+
+	private static long getGcCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			count += Math.max(gc.getCollectionCount(), 0);
+		}
+		return count;
+	}
+
+	private static long getGcMillis() {
+		long millis = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			millis += Math.max(gc.getCollectionTime(), 0);
+		}
+		return millis;
+	}
+
+	// the sink of the generated code: it only counts the instructions (the
+	// lines that aren't empty, labels or NASM directives), so that writing
+	// the code costs next to nothing
+	private static final class InstructionCounter extends Writer {
+		long instructions = 0;
+		// the current line, reused
+		private final StringBuilder line = new StringBuilder();
+
+		@Override
+		public void write(char[] buffer, int offset, int length) {
+			for (int i = offset; i < offset + length; i++) {
+				write(buffer[i]);
+			}
+		}
+
+		@Override
+		public void write(String s, int offset, int length) {
+			for (int i = offset; i < offset + length; i++) {
+				write(s.charAt(i));
+			}
+		}
+
+		@Override
+		public void write(int c) {
+			if (c != '\n') {
+				line.append((char) c);
+				return;
+			}
+			int start = 0;
+			while (start < line.length() && Character.isWhitespace(line.charAt(start))) {
+				start++;
+			}
+			int end = line.length();
+			while (end > start && Character.isWhitespace(line.charAt(end - 1))) {
+				end--;
+			}
+			if (end > start && line.charAt(end - 1) != ':' && line.charAt(start) != '%'
+					&& !startsWith(line, start, "section ") && !startsWith(line, start, "global ")) {
+				instructions++;
+			}
+			line.setLength(0);
+		}
+
+		private static boolean startsWith(StringBuilder line, int start, String prefix) {
+			return line.length() - start >= prefix.length() && line.indexOf(prefix, start) == start;
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	private void writeCSV(List<Measurement> measurements) throws IOException {
+		try (PrintStream csv = new PrintStream(Files.newOutputStream(Path.of(csvFileName)))) {
+			csv.println("compiler,workload,files,source_bytes,ops_per_s,ops_per_s_sd,alloc_bytes_per_s,alloc_bytes_per_op,gc_count,gc_ms,instructions");
+			for (Measurement m : measurements) {
+				csv.printf("%s,%s,%d,%d,%.3f,%.3f,%.0f,%.0f,%d,%d,%d%n", m.compiler, m.workload.name, m.workload.files.size(),
+						m.workload.sourceBytes, m.opsPerSecond, m.opsPerSecondDeviation, m.allocatedBytesPerSecond,
+						m.allocatedBytesPerOp, m.gcCount, m.gcMillis, m.instructions);
+			}
+		}
+	}
+
+	private static int parseInt(String flag, String value, int minimum) {
+		try {
+			int result = Integer.parseInt(value);
+			if (result >= minimum) {
+				return result;
+			}
+		} catch (NumberFormatException e) {
+		}
+		throw new IllegalArgumentException("Expecting a number of at least " + minimum + " in `" + flag + "`");
+	}
+}
@@ -0,0 +1,383 @@
+import balicompiler.Backend;
+import balicompiler.BaliCompilation;
+import balicompiler.CompilerOptions;
+import balicompiler.jvm.JvmBackend;
+import balicompiler.sam.SamBackend;
+import balicompiler.sam.SamInterpreter;
+import balicompiler.sam.SamPeephole;
+import balicompiler.x86.X86Backend;
+import balicompiler.x86.X86Peephole;
+import edu.cornell.cs.sam.core.AssemblerException;
+import edu.cornell.cs.sam.core.SamAssembler;
+import edu.cornell.cs.sam.core.Sys;
+import edu.cornell.cs.sam.core.SystemException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// the regression tests of the compilers:
+// - every `good.*.bali` test case of the corpora that has a `.expected` file
+//   (the value `main` returns) is compiled with every flag set of
+//   `FLAG_SETS` and run on the SaM interpreter, on the SaM simulator of
+//   `hw1/lib` (whose assembler is the one the SaM code must pass) and on the
+//   JVM; its x86 code is checked for undefined and duplicate labels, and is
+//   run too if `nasm` and `ld` are on the `PATH` (32-bit Linux, with the
+//   `IO_INC` stand-in for the SASM `io.inc`)
+// - the `CHECKS` compile small programs and look at the generated code
+// The failures are printed, and the exit status is 1 if there are any
+public class CompilerTests {
+	private static final String USAGE = "Usage: CompilerTests [corpus directories]\n"
+			+ "The corpora default to `hw1/additional-testcases` and `hw2/testcases`.\n";
+
+	// the corpora are compiled with all the optimizations, and without any
+	private static final String[][] FLAG_SETS = {
+		{},
+		{ "--no-peephole", "--no-dce", "--no-dataflow", "--no-loop-opt", "--inline-budget=0" },
+	};
+
+	// the macros of the SASM `io.inc` that the x86 code uses, and a `_start`
+	// that calls `CMAIN` and exits, with Linux system calls
+	private static final String IO_INC = String.join("\n",
+			"%macro PRINT_DEC 2",
+			"\tpush eax",
+			"\tmov eax, %2",
+			"\tcall io_print_dec",
+			"\tpop eax",
+			"%endmacro",
+			"%macro NEWLINE 0",
+			"\tcall io_newline",
+			"%endmacro",
+			"section .text",
+			"\tglobal _start",
+			"_start:",
+			"\tcall CMAIN",
+			"\tmov ebx, 0",
+			"\tmov eax, 1",
+			"\tint 0x80",
+			"io_print_dec:",
+			"\tpushad",
+			"\tsub esp, 16",
+			"\tlea esi, [esp + 16]",
+			"\tmov ebx, eax",
+			"\tmov ecx, 10",
+			"\ttest eax, eax",
+			"\tjns io_digit",
+			"\tneg eax",
+			"io_digit:",
+			"\tmov edx, 0",
+			"\tdiv ecx",
+			"\tadd dl, '0'",
+			"\tdec esi",
+			"\tmov [esi], dl",
+			"\ttest eax, eax",
+			"\tjnz io_digit",
+			"\ttest ebx, ebx",
+			"\tjns io_write",
+			"\tdec esi",
+			"\tmov byte [esi], '-'",
+			"io_write:",
+			"\tlea edx, [esp + 16]",
+			"\tsub edx, esi",
+			"\tmov ecx, esi",
+			"\tmov ebx, 1",
+			"\tmov eax, 4",
+			"\tint 0x80",
+			"\tadd esp, 16",
+			"\tpopad",
+			"\tret",
+			"io_newline:",
+			"\tpushad",
+			"\tpush 10",
+			"\tmov ecx, esp",
+			"\tmov edx, 1",
+			"\tmov ebx, 1",
+			"\tmov eax, 4",
+			"\tint 0x80",
+			"\tadd esp, 4",
+			"\tpopad",
+			"\tret",
+			"");
+	private static final Pattern X86_LABEL = Pattern.compile("^\\s*([A-Za-z_][A-Za-z0-9_]*):", Pattern.MULTILINE);
+	private static final Pattern X86_TARGET = Pattern.compile("^\\s*(?:call|j[a-z]+)\\s+([A-Za-z_][A-Za-z0-9_]*)\\s*$",
+			Pattern.MULTILINE);
+
+	// a check throws an `AssertionError` (see `expect()`) if it fails
+	private interface Check {
+		void run() throws IOException;
+	}
+
+	private static final String[] CHECK_NAMES = {
+		"sam-fallback",
+		"sam-min-value",
+		"sam-interpreter-operands",
+		"x86-left-deep-chain",
+		"deep-nesting",
+	};
+	private static final Check[] CHECKS = {
+		// the SaM code of a file that can't be tokenized only stops
+		() -> {
+			String code = compile("int main() { return 99999999999; }", new SamBackend());
+			expect(code.equals("STOP\n"), "expected `STOP`, got `" + code + "`");
+		},
+		// the SaM assembler can't parse `PUSHIMM -2147483648`, the literal that
+		// the folded expression and the negated constant would give
+		() -> {
+			for (String expression : new String[] { "((-2147483647) - 1)", "(-((-2147483647) - 1))" }) {
+				String code = compile("int main() { return " + expression + "; }", new SamBackend(new SamPeephole()));
+				expect(!code.contains("2147483648"), "`" + expression + "` gives:\n" + code);
+			}
+		},
+		// the interpreter rejects the operands that the simulator's assembler
+		// rejects
+		() -> {
+			for (String operand : new String[] { "-2147483648", "2147483648", "+5", "5 6" }) {
+				try {
+					SamInterpreter.load(new StringReader("PUSHIMM " + operand + "\nSTOP\n"));
+					throw new AssertionError("`PUSHIMM " + operand + "` was loaded");
+				} catch (IllegalArgumentException e) {
+					// expected
+				}
+			}
+			int result = SamInterpreter.load(new StringReader("PUSHIMM - 2147483647\nSTOP\n"))
+					.run(SamInterpreter.DEFAULT_STACK_SIZE, Long.MAX_VALUE).exitStatus;
+			expect(result == -2147483647, "`PUSHIMM - 2147483647` gave " + result);
+		},
+		// a left-deep chain is evaluated in one register, and its right
+		// operands that aren't variables in a second one (`f` is called twice
+		// so that it isn't inlined)
+		() -> {
+			String code = compile("int f(int a, int b, int c, int d) {\n"
+					+ "return ((((((a * b) + c) * d) - a) * b) + ((c * d) - b)); }\n"
+					+ "int main() { return (f(1, 2, 3, 4) + f(5, 6, 7, 8)); }", new X86Backend(new X86Peephole()));
+			String method = code.substring(code.indexOf("f_method:"), code.indexOf("ret", code.indexOf("f_method:")));
+			Matcher registers = Pattern.compile("\\be[a-z][a-z]\\b").matcher(method);
+			while (registers.find()) {
+				expect(List.of("eax", "ecx", "ebp", "esp").contains(registers.group()),
+						"`f` uses `" + registers.group() + "`:\n" + method);
+			}
+			expect(method.split("push ").length == 2, "`f` spills a register:\n" + method);
+		},
+		// a program nested too deeply for the stack of the AST passes is a
+		// compile error, but `BaliCompiler` runs them on a large stack
+		() -> {
+			String source = "int main() { int x; x = 1; return " + "(x + ".repeat(10000) + "x" + ")".repeat(10000) + "; }";
+			BaliCompilation[] compilation = new BaliCompilation[1];
+			Thread thread = new Thread(null,
+					() -> compilation[0] = new BaliCompilation(new StringReader(source), null, new CompilerOptions()),
+					"small-stack", 1 << 18);
+			thread.start();
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			}
+			expect("The program is nested too deeply".equals(compilation[0].getErrorMessage()),
+					"expected a nesting error, got `" + compilation[0].getErrorMessage() + "`");
+
+			Path file = Files.createTempFile("deep-nesting", ".bali");
+			try {
+				Files.writeString(file, source);
+				String code = new BaliCompiler().compile(file.toString());
+				int result = SamInterpreter.load(new StringReader(code))
+						.run(SamInterpreter.DEFAULT_STACK_SIZE, Long.MAX_VALUE).exitStatus;
+				expect(result == 10001, "SaM returned " + result + " instead of 10001");
+			} finally {
+				Files.delete(file);
+			}
+		},
+	};
+
+	public static void main(String[] args) throws IOException {
+		for (String arg : args) {
+			if (arg.startsWith("--")) {
+				System.out.println("Unknown option `" + arg + "`\n" + USAGE);
+				return;
+			}
+		}
+		List<String> corpora = args.length > 0 ? List.of(args) : List.of("hw1/additional-testcases", "hw2/testcases");
+
+		boolean runX86 = isOnPath("nasm") && isOnPath("ld");
+		if (!runX86) {
+			System.out.println("`nasm` or `ld` isn't on the PATH: the x86 code is only checked, not run");
+		}
+
+		int tests = 0;
+		int failures = 0;
+		for (Path file : collectTestCases(corpora)) {
+			for (String[] flags : FLAG_SETS) {
+				tests++;
+				String name = file + (flags.length > 0 ? " " + String.join(" ", flags) : "");
+				try {
+					runTestCase(file, CompilerOptions.parse(flags), runX86);
+				} catch (AssertionError | IOException | RuntimeException e) {
+					failures++;
+					System.out.println(name + ": FAILED: " + e.getMessage());
+				}
+			}
+		}
+		for (int c = 0; c < CHECKS.length; c++) {
+			tests++;
+			try {
+				CHECKS[c].run();
+			} catch (AssertionError | IOException | RuntimeException e) {
+				failures++;
+				System.out.println(CHECK_NAMES[c] + ": FAILED: " + e.getMessage());
+			}
+		}
+		System.out.printf("%d tests, %d failed%n", tests, failures);
+		if (failures > 0) {
+			System.exit(1);
+		}
+	}
+
+	// compiles the test case and compares what `main` returns on the SaM
+	// interpreter, the SaM simulator, the JVM and (if `runX86`) x86 with its
+	// `.expected` file
+	private static void runTestCase(Path file, CompilerOptions options, boolean runX86) throws IOException {
+		int expected = Integer.parseInt(Files.readString(Path.of(file + ".expected")).trim());
+		BaliCompilation compilation = new BaliCompilation(file.toString(), null, options);
+		expect(compilation.getErrorMessage() == null, "didn't compile: " + compilation.getErrorMessage());
+
+		StringWriter samCode = new StringWriter();
+		compilation.generate(new SamBackend(options.peephole ? new SamPeephole(options.disabledRules) : null), samCode);
+		int samResult = SamInterpreter.load(new StringReader(samCode.toString()))
+				.run(SamInterpreter.DEFAULT_STACK_SIZE, Long.MAX_VALUE).exitStatus;
+		expect(samResult == expected, "SaM returned " + samResult + " instead of " + expected);
+		int simulatorResult = runOnSimulator(samCode.toString());
+		expect(simulatorResult == expected, "the SaM simulator returned " + simulatorResult + " instead of " + expected);
+
+		ByteArrayOutputStream jvmOutput = new ByteArrayOutputStream();
+		JvmBackend.run(compilation.getProgram(), new PrintStream(jvmOutput, true, StandardCharsets.UTF_8), System.out);
+		String jvmResult = jvmOutput.toString(StandardCharsets.UTF_8).trim();
+		expect(jvmResult.equals(Integer.toString(expected)), "the JVM returned " + jvmResult + " instead of " + expected);
+
+		StringWriter x86Code = new StringWriter();
+		compilation.generate(new X86Backend(options.peephole ? new X86Peephole(options.disabledRules) : null), x86Code);
+		checkX86Labels(x86Code.toString());
+		if (runX86) {
+			String x86Result = runX86(x86Code.toString());
+			expect(x86Result.equals(Integer.toString(expected)), "x86 returned " + x86Result + " instead of " + expected);
+		}
+	}
+
+	// ===============================
+	// the following are utility/helper functions
+	// ===============================
+
+	// the code that `backend` generates for `source`, compiled with the
+	// default options
+	private static String compile(String source, Backend backend) {
+		BaliCompilation compilation = new BaliCompilation(new StringReader(source), null, new CompilerOptions());
+		StringWriter code = new StringWriter();
+		compilation.generate(backend, code);
+		return code.toString();
+	}
+
+	// the exit status of the SaM code on the simulator (the bottom of the
+	// stack at `STOP`)
+	private static int runOnSimulator(String code) throws IOException {
+		try {
+			Sys sys = new Sys();
+			sys.cpu().load(SamAssembler.assemble(new StringReader(code)));
+			sys.cpu().run();
+			return sys.mem().getMem(0).getValue();
+		} catch (AssemblerException | SystemException e) {
+			throw new AssertionError("the SaM simulator failed: " + e.getMessage());
+		}
+	}
+
+	// throws an `AssertionError` if a label is defined twice, or if a `call`
+	// or a jump goes to one that isn't defined (NASM would reject both)
+	private static void checkX86Labels(String code) {
+		HashSet<String> labels = new HashSet<String>();
+		Matcher label = X86_LABEL.matcher(code);
+		while (label.find()) {
+			expect(labels.add(label.group(1)), "the x86 code defines `" + label.group(1) + "` twice");
+		}
+		Matcher target = X86_TARGET.matcher(code);
+		while (target.find()) {
+			expect(labels.contains(target.group(1)), "the x86 code goes to the undefined `" + target.group(1) + "`");
+		}
+	}
+
+	// what the x86 code prints, assembled with `nasm` and linked with `ld`
+	private static String runX86(String code) throws IOException {
+		Path directory = Files.createTempDirectory("compiler-tests");
+		try {
+			Files.writeString(directory.resolve("io.inc"), IO_INC);
+			Files.writeString(directory.resolve("program.asm"), code);
+			runProcess(directory, "nasm", "-f", "elf32", "-i", directory + "/", "-o", "program.o", "program.asm");
+			runProcess(directory, "ld", "-m", "elf_i386", "-o", "program", "program.o");
+			return runProcess(directory, directory.resolve("program").toString()).trim();
+		} finally {
+			try (Stream<Path> files = Files.list(directory)) {
+				for (Path path : files.collect(Collectors.toList())) {
+					Files.delete(path);
+				}
+			}
+			Files.delete(directory);
+		}
+	}
+
+	// the standard output of the command, which must exit with 0 within 10
+	// seconds
+	private static String runProcess(Path directory, String... command) throws IOException {
+		Process process = new ProcessBuilder(command).directory(directory.toFile()).redirectErrorStream(true).start();
+		// read before waiting, so that a full pipe can't block the process
+		String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+		try {
+			if (!process.waitFor(10, TimeUnit.SECONDS)) {
+				process.destroyForcibly();
+				throw new AssertionError("`" + command[0] + "` timed out");
+			}
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		}
+		expect(process.exitValue() == 0, "`" + command[0] + "` exited with " + process.exitValue() + ":\n" + output);
+		return output;
+	}
+
+	private static boolean isOnPath(String command) {
+		for (String directory : System.getenv().getOrDefault("PATH", "").split(File.pathSeparator)) {
+			if (!directory.isEmpty() && Files.isExecutable(Path.of(directory, command))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static void expect(boolean condition, String message) {
+		if (!condition) {
+			throw new AssertionError(message);
+		}
+	}
+
+	// the `good.*.bali` files that have a `.expected` file
+	private static List<Path> collectTestCases(List<String> corpora) throws IOException {
+		ArrayList<Path> files = new ArrayList<Path>();
+		for (String corpus : corpora) {
+			try (Stream<Path> list = Files.list(Path.of(corpus))) {
+				files.addAll(list.filter(p -> p.getFileName().toString().startsWith("good.") && p.toString().endsWith(".bali")
+						&& Files.isRegularFile(Path.of(p + ".expected")))
+						.sorted()
+						.collect(Collectors.toList()));
+			}
+		}
+		return files;
+	}
+}
@@ -0,0 +1,28 @@
+package balicompiler;
+
+// a code generator for one target machine; it gets the AST of the whole
+// program (parsed once by `BaliParser`) and writes the target code out
+public interface Backend {
+	default void generate(Program program, CodeEmitter out) {
+		generateStart(program, out);
+		for (MethodDecl method : program.methods) {
+			generateMethod(method, out);
+		}
+	}
+
+	// the code before the methods (e.g., the bootstrap that calls `main`)
+	void generateStart(Program program, CodeEmitter out);
+
+	// NOTE that the code of a method must only depend on `method` (its own
+	// labels are scoped to it, see `MethodInfo.getLabelName()`) and on the
+	// signatures of the methods it calls, so that it can be cached (see
+	// `MethodCache`)
+	void generateMethod(MethodDecl method, CodeEmitter out);
+
+	// the code to output instead when the file couldn't be read/tokenized
+	void generateFallback(CodeEmitter out);
+
+	// the target and the settings that change the generated code (e.g.,
+	// the enabled peephole rules), for the keys of `MethodCache`
+	String getConfiguration();
+}
@@ -0,0 +1,153 @@
+package balicompiler;
+
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.Writer;
+
+// one Bali file being compiled: it is lexed and parsed only once, and the
+// resulting AST can then be handed to any number of backends (e.g., to
+// output the SaM and the X86 code in the same run). The AST is optimized
+// right after parsing, so every backend gets the optimized program
+public class BaliCompilation {
+	// null if the file couldn't be read/tokenized or is nested too deeply
+	private Program program;
+	private String errorMessage;
+	// null if the file couldn't be read/tokenized or with `--no-dce`
+	private DeadCodeEliminator deadCodeEliminator;
+	// null if the file couldn't be read/tokenized or with `--no-dataflow`
+	private DataflowOptimizer dataflowOptimizer;
+	// null if the file couldn't be read/tokenized or with `--no-loop-opt`
+	private LoopOptimizer loopOptimizer;
+	// null if the file couldn't be read/tokenized
+	private CallGraph callGraph;
+
+	// NOTE that syntax errors and calls of undeclared methods are thrown (as
+	// `Error`s) right away, while I/O and tokenizer problems are only reported
+	// and every target then gets the backend's fallback code. So is a program
+	// nested too deeply for the stack of the AST passes, which recurse (see
+	// `CompilerThreads`)
+	public BaliCompilation(String fileName) {
+		this(fileName, System.out, new CompilerOptions());
+	}
+
+	// `diagnostics` is where I/O and tokenizer problems are reported (null
+	// to only keep them for `getErrorMessage()`), and `options` set up the
+	// AST passes (e.g., the inlining budget)
+	public BaliCompilation(String fileName, PrintStream diagnostics, CompilerOptions options) {
+		try {
+			program = new BaliParser().parse(fileName);
+			optimize(options);
+		} catch (StackOverflowError e) {
+			reportNestingError(diagnostics);
+		} catch (Exception e) {
+			reportError(e, diagnostics);
+		}
+	}
+
+	// compiles the source code read from `source` instead of a file
+	public BaliCompilation(Reader source, PrintStream diagnostics, CompilerOptions options) {
+		try {
+			program = new BaliParser().parse(source);
+			optimize(options);
+		} catch (StackOverflowError e) {
+			reportNestingError(diagnostics);
+		} catch (Exception e) {
+			reportError(e, diagnostics);
+		}
+	}
+
+	// the callees are checked first, so that the calls in dead code are
+	// checked too. The inlining comes next, so that the constant actuals are
+	// propagated into the inlined code, and the dead code is removed once
+	// the conditions are folded. The loop optimizations come before the
+	// dataflow ones, which clean up the copies and the dead stores they
+	// leave. Last, the methods that are no longer
+	// reachable from `main` (e.g., the ones inlined at all their call sites)
+	// are dropped
+	private void optimize(CompilerOptions options) {
+		CallGraph.checkCallees(program);
+		if (options.inlineBudget > 0) {
+			new Inliner(options.inlineBudget, options.inlineSizeLimit).inline(program);
+		}
+		new ConstantFolder().fold(program);
+		if (options.deadCode) {
+			deadCodeEliminator = new DeadCodeEliminator();
+			deadCodeEliminator.eliminate(program);
+		}
+		if (options.loops) {
+			loopOptimizer = new LoopOptimizer();
+			loopOptimizer.optimize(program);
+		}
+		if (options.dataflow) {
+			dataflowOptimizer = new DataflowOptimizer();
+			dataflowOptimizer.optimize(program);
+		}
+		callGraph = new CallGraph(program);
+		callGraph.removeUnreachable(program);
+	}
+
+	private void reportNestingError(PrintStream diagnostics) {
+		program = null;
+		errorMessage = "The program is nested too deeply";
+		if (diagnostics != null) {
+			diagnostics.println(errorMessage);
+		}
+	}
+
+	private void reportError(Exception e, PrintStream diagnostics) {
+		errorMessage = e.getMessage() != null ? e.getMessage() : e.toString();
+		if (diagnostics != null) {
+			diagnostics.println(e.getMessage());
+		}
+	}
+
+	public Program getProgram() {
+		return program;
+	}
+
+	// null if the file was read, tokenized and optimized
+	public String getErrorMessage() {
+		return errorMessage;
+	}
+
+	// what was removed as dead code; null if nothing was looked for
+	public DeadCodeEliminator getDeadCodeEliminator() {
+		return deadCodeEliminator;
+	}
+
+	// what the dataflow optimizations did; null if they didn't run
+	public DataflowOptimizer getDataflowOptimizer() {
+		return dataflowOptimizer;
+	}
+
+	// what the loop optimizations did; null if they didn't run
+	public LoopOptimizer getLoopOptimizer() {
+		return loopOptimizer;
+	}
+
+	// the calls of the optimized program, including the methods that were
+	// dropped as unreachable; null if the file couldn't be read/tokenized
+	public CallGraph getCallGraph() {
+		return callGraph;
+	}
+
+	// writes the code generated by `backend` to `writer` (the caller is
+	// responsible for buffering and closing it)
+	public void generate(Backend backend, Writer writer) {
+		generate(backend, writer, null);
+	}
+
+	// the same, reusing the code of the methods that are in `cache` (if not
+	// null)
+	public void generate(Backend backend, Writer writer, MethodCache cache) {
+		CodeEmitter out = new CodeEmitter(writer);
+		if (program == null) {
+			backend.generateFallback(out);
+		} else if (cache != null) {
+			cache.generate(program, backend, out);
+		} else {
+			backend.generate(program, out);
+		}
+		out.flush();
+	}
+}
@@ -0,0 +1,372 @@
+package balicompiler;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// the lexer of `BaliParser`, in place of the SaM library's `SamTokenizer`:
+// the source is read into a byte array in one go and lexed up front into
+// arrays of token kinds, offsets, values and lines, so reading a token
+// doesn't allocate. Words are interned: every distinct word gets an id (the
+// keywords have fixed ones) and a single `String`.
+//
+// It splits the source the same way as `SamTokenizer` with its default
+// options, so the parser's errors (and their line numbers) don't change:
+// words start with a letter and go on with letters, digits and `_`, numbers
+// are digits (a `.` makes them floats, a second one words), `//` comments
+// run to the end of the line and any other character is an operator. Only
+// ASCII letters and digits are recognized; any other byte is an operator
+public class BaliLexer {
+	public enum TokenKind {
+		WORD, INTEGER, FLOAT, OPERATOR, EOF
+	}
+
+	// the ids of the keywords
+	public static final int INT = 0, RETURN = 1, IF = 2, ELSE = 3, WHILE = 4, BREAK = 5, TRUE = 6, FALSE = 7;
+	private static final String[] KEYWORDS = { "int", "return", "if", "else", "while", "break", "true", "false" };
+	private static final TokenKind[] KINDS = TokenKind.values();
+
+	private final byte[] source;
+
+	// the tokens, the last one being `EOF`; `values` has the id of a word,
+	// the value of an integer and the character of an operator
+	private byte[] kinds;
+	private int[] offsets;
+	private int[] values;
+	private int[] lines;
+	private int numTokens = 0;
+	// the next token
+	private int position = 0;
+
+	// the interned words: an open-addressing hash table of their ids (-1
+	// for an empty bucket), and their offsets, lengths and names by id
+	private int[] buckets;
+	private int[] wordOffsets;
+	private int[] wordLengths;
+	private String[] names;
+	private int numWords = 0;
+
+	// throws an IllegalArgumentException if the source has a number that
+	// doesn't fit in an `int`
+	public BaliLexer(String fileName) throws IOException {
+		// like `SamTokenizer`, this reports a missing file with a
+		// FileNotFoundException
+		try (FileInputStream in = new FileInputStream(fileName)) {
+			source = in.readAllBytes();
+		}
+		lex();
+	}
+
+	public BaliLexer(Reader reader) throws IOException {
+		StringBuilder text = new StringBuilder();
+		char[] buffer = new char[8192];
+		int length;
+		while ((length = reader.read(buffer)) != -1) {
+			text.append(buffer, 0, length);
+		}
+		source = text.toString().getBytes(StandardCharsets.UTF_8);
+		lex();
+	}
+
+	// ===============================
+	// reading the tokens
+	// ===============================
+
+	public TokenKind peekAtKind() {
+		return KINDS[kinds[position]];
+	}
+
+	// the id of the word that comes next, consuming it
+	public int getWordId() {
+		expect(TokenKind.WORD, "Attempt to read non-word value as a word.");
+		return values[position++];
+	}
+
+	public String getWord() {
+		return names[getWordId()];
+	}
+
+	public int getInt() {
+		expect(TokenKind.INTEGER, "Attempt to read non-integer value as an integer");
+		return values[position++];
+	}
+
+	public char getOp() {
+		expect(TokenKind.OPERATOR, "Attempt to read non-operator value as an op");
+		return (char) values[position++];
+	}
+
+	// consumes the next token if it is the operator `c`
+	public boolean check(char c) {
+		if (test(c)) {
+			position++;
+			return true;
+		}
+		return false;
+	}
+
+	// consumes the next token if it is the word with id `wordId` (e.g., a
+	// keyword)
+	public boolean check(int wordId) {
+		if (kinds[position] == TokenKind.WORD.ordinal() && values[position] == wordId) {
+			position++;
+			return true;
+		}
+		return false;
+	}
+
+	// whether the next token is the operator `c`
+	public boolean test(char c) {
+		return kinds[position] == TokenKind.OPERATOR.ordinal() && values[position] == c;
+	}
+
+	// the line of the last token read (1 before the first one)
+	public int lineNo() {
+		return position == 0 ? 1 : lines[position - 1];
+	}
+
+	// the line of the next token
+	public int nextLineNo() {
+		return lines[position];
+	}
+
+	// the offset of the next token in the source
+	public int nextOffset() {
+		return offsets[position];
+	}
+
+	public String getName(int wordId) {
+		return names[wordId];
+	}
+
+	// the number of distinct words, so the ids are `0` to this minus one
+	public int getNumWords() {
+		return numWords;
+	}
+
+	private void expect(TokenKind kind, String message) {
+		if (kinds[position] != kind.ordinal()) {
+			throw new IllegalStateException(message);
+		}
+	}
+
+	// ===============================
+	// lexing
+	// ===============================
+
+	private void lex() {
+		// most tokens take two bytes of source or more (with the
+		// whitespace); the arrays grow otherwise
+		int capacity = source.length / 2 + 16;
+		kinds = new byte[capacity];
+		offsets = new int[capacity];
+		values = new int[capacity];
+		lines = new int[capacity];
+		buckets = new int[64];
+		Arrays.fill(buckets, -1);
+		wordOffsets = new int[32];
+		wordLengths = new int[32];
+		names = new String[32];
+		for (String keyword : KEYWORDS) {
+			internKeyword(keyword);
+		}
+
+		byte[] s = source;
+		int length = s.length;
+		int line = 1;
+		int i = 0;
+		while (i < length) {
+			int c = s[i];
+			int start = i;
+			if (c == '\n') {
+				line++;
+				i++;
+			} else if (isWhitespace(c)) {
+				i++;
+			} else if (c == '/' && i + 1 < length && s[i + 1] == '/') {
+				// the comment's `\n` is left to count the line
+				while (i < length && s[i] != '\n') {
+					i++;
+				}
+			} else if (isLetter(c)) {
+				do {
+					i++;
+				} while (i < length && isWordCharacter(s[i]));
+				addToken(TokenKind.WORD, start, intern(start, i - start), line);
+			} else if (isDigit(c) || (c == '.' && i + 1 < length && isDigit(s[i + 1]))) {
+				i = lexNumber(start, line);
+			} else {
+				addToken(TokenKind.OPERATOR, start, c & 0xFF, line);
+				i++;
+			}
+		}
+		addToken(TokenKind.EOF, length, 0, line);
+	}
+
+	// returns the offset after the number; like `SamTokenizer`, digits with
+	// one `.` are a float and with more `.`s a word (that goes on with
+	// letters and `_` too)
+	private int lexNumber(int start, int line) {
+		byte[] s = source;
+		TokenKind kind = TokenKind.INTEGER;
+		int i = start;
+		while (i < s.length) {
+			int c = s[i];
+			if (c == '.') {
+				kind = kind == TokenKind.INTEGER ? TokenKind.FLOAT : TokenKind.WORD;
+			} else if (!isDigit(c) && !(kind == TokenKind.WORD && (isLetter(c) || c == '_'))) {
+				break;
+			}
+			i++;
+		}
+
+		if (kind == TokenKind.INTEGER) {
+			long value = 0;
+			for (int k = start; k < i; k++) {
+				value = value * 10 + (s[k] - '0');
+				if (value > Integer.MAX_VALUE) {
+					throw new IllegalArgumentException("Unparsable number " + new String(s, start, i - start, StandardCharsets.ISO_8859_1));
+				}
+			}
+			addToken(kind, start, (int) value, line);
+		} else if (kind == TokenKind.WORD) {
+			addToken(kind, start, intern(start, i - start), line);
+		} else {
+			// the parser never reads the value of a float
+			addToken(kind, start, 0, line);
+		}
+		return i;
+	}
+
+	private void addToken(TokenKind kind, int offset, int value, int line) {
+		if (numTokens == kinds.length) {
+			int capacity = kinds.length * 2;
+			kinds = Arrays.copyOf(kinds, capacity);
+			offsets = Arrays.copyOf(offsets, capacity);
+			values = Arrays.copyOf(values, capacity);
+			lines = Arrays.copyOf(lines, capacity);
+		}
+		kinds[numTokens] = (byte) kind.ordinal();
+		offsets[numTokens] = offset;
+		values[numTokens] = value;
+		lines[numTokens] = line;
+		numTokens++;
+	}
+
+	// ===============================
+	// interning
+	// ===============================
+
+	// the id of the word at `source[offset..offset + length)`
+	private int intern(int offset, int length) {
+		int mask = buckets.length - 1;
+		for (int b = hash(offset, length) & mask;; b = (b + 1) & mask) {
+			int id = buckets[b];
+			if (id == -1) {
+				return addWord(b, offset, length);
+			}
+			if (matches(id, offset, length)) {
+				return id;
+			}
+		}
+	}
+
+	// the keywords aren't in `source`, so their offsets are -1 and they are
+	// compared by name
+	private void internKeyword(String keyword) {
+		int mask = buckets.length - 1;
+		int b = keyword.hashCode() & mask;
+		while (buckets[b] != -1) {
+			b = (b + 1) & mask;
+		}
+		names[numWords] = keyword;
+		addWord(b, -1, keyword.length());
+	}
+
+	private boolean matches(int id, int offset, int length) {
+		if (wordLengths[id] != length) {
+			return false;
+		}
+		int wordOffset = wordOffsets[id];
+		if (wordOffset >= 0) {
+			return Arrays.equals(source, wordOffset, wordOffset + length, source, offset, offset + length);
+		}
+		String name = names[id];
+		for (int k = 0; k < length; k++) {
+			if (name.charAt(k) != source[offset + k]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private int addWord(int bucket, int offset, int length) {
+		int id = numWords++;
+		if (id == names.length) {
+			wordOffsets = Arrays.copyOf(wordOffsets, id * 2);
+			wordLengths = Arrays.copyOf(wordLengths, id * 2);
+			names = Arrays.copyOf(names, id * 2);
+		}
+		buckets[bucket] = id;
+		wordOffsets[id] = offset;
+		wordLengths[id] = length;
+		if (offset >= 0) {
+			names[id] = new String(source, offset, length, StandardCharsets.ISO_8859_1);
+		}
+		// keep the table at most half full
+		if (numWords * 2 > buckets.length) {
+			rehash();
+		}
+		return id;
+	}
+
+	private void rehash() {
+		buckets = new int[buckets.length * 2];
+		Arrays.fill(buckets, -1);
+		int mask = buckets.length - 1;
+		for (int id = 0; id < numWords; id++) {
+			int b = hashOf(id) & mask;
+			while (buckets[b] != -1) {
+				b = (b + 1) & mask;
+			}
+			buckets[b] = id;
+		}
+	}
+
+	private int hashOf(int id) {
+		return wordOffsets[id] >= 0 ? hash(wordOffsets[id], wordLengths[id]) : names[id].hashCode();
+	}
+
+	// the same as `String.hashCode()` of the (ASCII) word, so that the
+	// keywords can be hashed from their names
+	private int hash(int offset, int length) {
+		int hash = 0;
+		for (int k = offset; k < offset + length; k++) {
+			hash = 31 * hash + source[k];
+		}
+		return hash;
+	}
+
+	// ===============================
+	// character classes (ASCII)
+	// ===============================
+
+	// `Character.isWhitespace()` of the ASCII characters
+	private static boolean isWhitespace(int c) {
+		return (c >= '\t' && c <= '\r') || c == ' ' || (c >= 0x1C && c <= 0x1F);
+	}
+
+	private static boolean isLetter(int c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+	}
+
+	private static boolean isDigit(int c) {
+		return c >= '0' && c <= '9';
+	}
+
+	private static boolean isWordCharacter(int c) {
+		return isLetter(c) || isDigit(c) || c == '_';
+	}
+}
@@ -0,0 +1,490 @@
+package balicompiler;
+import balicompiler.BaliLexer.TokenKind;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+
+// BaliParser is the front end shared by the SaM and x86 compilers; it
+// parses a whole Bali file into a `Program` (the AST) that any `Backend`
+// can then generate code from. Variable references are resolved to slots
+// here, so all the "not a valid variable" errors are reported while parsing
+public class BaliParser {
+	private BaliLexer t;
+	private Program program;
+	// kept from one file to the next
+	private final BaliSymbolTable symbols = new BaliSymbolTable();
+
+	// throws an IllegalArgumentException if the source can't be lexed
+	public Program parse(String fileName) throws IOException {
+		t = new BaliLexer(fileName);
+		program = new Program();
+		symbols.reset(t.getNumWords());
+		return getProgram();
+	}
+
+	// parses source code that isn't in a file (e.g., sent to the compiler
+	// daemon)
+	public Program parse(Reader source) throws IOException {
+		t = new BaliLexer(source);
+		program = new Program();
+		symbols.reset(t.getNumWords());
+		return getProgram();
+	}
+
+	private Program getProgram() {
+		// the program bootstraps by calling the `main()` method, which
+		// takes no parameters
+		MethodInfo mainMethodInfo = program.getMethodInfo("main");
+		mainMethodInfo.numParameters = 0;
+
+		while (t.peekAtKind() != TokenKind.EOF) {
+			program.methods.add(getMethod());
+		}
+		return program;
+	}
+
+	private MethodDecl getMethod() {
+		// the only type in Bali is `int`
+		assertAndConsume(BaliLexer.INT);
+
+		// look up the method; it could already have been called before
+		// it is defined
+		int methodWord = t.getWordId();
+		String methodID = t.getName(methodWord);
+		MethodInfo currMethodInfo = getMethodInfo(methodWord);
+		if (currMethodInfo.declaration != null) {
+			throw new Error("Error parsing method declaration for `" + methodID + "` on line " + t.lineNo() + "; the method is already defined");
+		}
+		MethodDecl method = new MethodDecl(currMethodInfo);
+		currMethodInfo.declaration = method;
+		method.slotNames = new ArrayList<String>();
+
+		// parse the formals
+		assertAndConsume('(');
+		int numParameters = parseFormals(method.slotNames);
+
+		// if not previously called, update the numParameters
+		// otherwise, check if numParameters matches the previous call
+		if (currMethodInfo.numParameters == -1) {
+			currMethodInfo.numParameters = numParameters;
+		} else if (currMethodInfo.numParameters != numParameters) {
+			throw new Error("Error parsing method declaration for `" + methodID + "`; its number of formals is different from the number of actuals in a call before its definition");
+		}
+		method.numParameters = numParameters;
+		assertAndConsume(')');
+
+		// parse the body
+		assertAndConsume('{');
+
+		// first, parse the variable declarations
+		// there can be multiple lines of declarations, and each
+		// line can have multiple variables declared
+		method.localInitializers = new ArrayList<Expr>();
+		while (t.check(BaliLexer.INT)) {
+			// consume a line of variable declaration
+			while (true) {
+				int varWord = t.getWordId();
+				// error out if the variable has already been defined
+				if (symbols.getSlot(varWord) >= 0) {
+					throw new Error("Error parsing a method's local variables: duplicate declaration of variable/parameter `"
+							+ t.getName(varWord) + "` on line " + t.lineNo());
+				}
+
+				// the initializer can only refer to the variables declared before
+				if (t.check('=')) {
+					method.localInitializers.add(getExpression());
+				} else {
+					method.localInitializers.add(null);
+				}
+
+				symbols.defineVariable(varWord, method.slotNames.size());
+				method.slotNames.add(t.getName(varWord));
+
+				if (!t.check(','))
+					break;
+			}
+
+			assertAndConsume(';');
+		}
+
+		// then, parse the statements
+		method.body = getStatements(false);
+		assertAndConsume('}');
+		symbols.resetVariables();
+
+		return method;
+	}
+
+	// return the number of formals; their names are appended to `slotNames`
+	private int parseFormals(ArrayList<String> slotNames) {
+		while (t.check(BaliLexer.INT)) {
+			int formalWord = t.getWordId();
+			if (symbols.getSlot(formalWord) >= 0) {
+				throw new Error("Error parsing formals on line " + t.lineNo() + ": duplicate parameter name `" + t.getName(formalWord) + "`");
+			}
+			symbols.defineVariable(formalWord, slotNames.size());
+			slotNames.add(t.getName(formalWord));
+			if (!t.check(',')) break;
+		}
+
+		return slotNames.size();
+	}
+
+	// ===============================
+	// statements
+	// ===============================
+
+	// the statements whose parsing has started but isn't finished; the
+	// parser keeps them on a stack of its own rather than recursing, so the
+	// nesting of blocks, `if`s and `while`s is only bounded by the heap
+	private static final int BLOCK = 0, IF_THEN = 1, IF_ELSE = 2, WHILE = 3;
+
+	private static final class StatementFrame {
+		int kind;
+		// whether a `break` statement is expected in the statements of
+		// this frame
+		final boolean inLoop;
+		// the statements of a `BLOCK` so far
+		ArrayList<Stmt> statements;
+		// the condition of an `IF_THEN`, `IF_ELSE` or `WHILE`
+		Expr condition;
+		// the `then` statement of an `IF_ELSE`
+		Stmt thenStmt;
+
+		StatementFrame(int kind, boolean inLoop) {
+			this.kind = kind;
+			this.inLoop = inLoop;
+		}
+	}
+
+	// parses statements up to (but not including) the closing `}`
+	// inLoop tells whether a `break` statement is expected
+	private Stmt.Block getStatements(boolean inLoop) {
+		ArrayList<StatementFrame> stack = new ArrayList<StatementFrame>();
+		// the method body; its `}` is consumed by the caller
+		stack.add(newBlockFrame(inLoop));
+		// a statement that was just parsed, for the frame on top of the stack
+		Stmt completed = null;
+
+		while (true) {
+			StatementFrame frame = stack.get(stack.size() - 1);
+			if (completed != null) {
+				switch (frame.kind) {
+					case BLOCK:
+						frame.statements.add(completed);
+						break;
+					case IF_THEN:
+						frame.thenStmt = completed;
+						assertAndConsume(BaliLexer.ELSE);
+						frame.kind = IF_ELSE;
+						break;
+					case IF_ELSE:
+						stack.remove(stack.size() - 1);
+						completed = new Stmt.If(frame.condition, frame.thenStmt, completed);
+						continue;
+					default:
+						stack.remove(stack.size() - 1);
+						completed = new Stmt.While(frame.condition, completed);
+						continue;
+				}
+				completed = null;
+			}
+
+			if (frame.kind == BLOCK) {
+				if (t.peekAtKind() == TokenKind.EOF) {
+					throw new Error("EOF encountered while parsing statements on line " + t.nextLineNo());
+				}
+				if (t.test('}')) {
+					stack.remove(stack.size() - 1);
+					Stmt.Block block = new Stmt.Block(frame.statements);
+					if (stack.isEmpty()) {
+						return block;
+					}
+					assertAndConsume('}');
+					completed = block;
+					continue;
+				}
+			}
+
+			completed = getStatement(frame.inLoop, stack);
+		}
+	}
+
+	private static StatementFrame newBlockFrame(boolean inLoop) {
+		StatementFrame frame = new StatementFrame(BLOCK, inLoop);
+		frame.statements = new ArrayList<Stmt>();
+		return frame;
+	}
+
+	// returns the statement if it has no statements inside; otherwise it
+	// pushes the frame that collects them on `stack` and returns null
+	private Stmt getStatement(boolean inLoop, ArrayList<StatementFrame> stack) {
+		switch (t.peekAtKind()) {
+			case OPERATOR:
+				char operator = t.getOp();
+				switch (operator) {
+					// `BLOCK` case
+					case '{':
+						stack.add(newBlockFrame(inLoop));
+						return null;
+					case ';':
+						return new Stmt.Block(new ArrayList<Stmt>(0));
+					default:
+						throw new Error(
+								"Error parsing a statement on line " + t.lineNo() + "; expecting either a `{` or a `;` but found `" + operator + "` instead");
+				}
+			case WORD:
+				int word = t.getWordId(); // needed for the assignment/default case
+				switch (word) {
+					case BaliLexer.RETURN:
+						Expr returnValue = getExpression();
+						assertAndConsume(';');
+						return new Stmt.Return(returnValue);
+					case BaliLexer.IF:
+						stack.add(newConditionalFrame(IF_THEN, inLoop));
+						return null;
+					case BaliLexer.WHILE:
+						stack.add(newConditionalFrame(WHILE, true));
+						return null;
+					case BaliLexer.BREAK:
+						if (!inLoop) {
+							throw new Error("Error parsing statements; not expecting a `break` on line " + t.lineNo());
+						}
+						assertAndConsume(';');
+						return new Stmt.Break();
+					default:
+						// default must be an assignment, otherwise parse error
+						int assigneeSlot = getSlot(word);
+						assertAndConsume('=');
+						Expr value = getExpression();
+						assertAndConsume(';');
+						return new Stmt.Assign(assigneeSlot, value);
+				}
+			default:
+				throw new Error(
+						"Error parsing statements; expecting either an operator or a word at the beginning but neither was found");
+		}
+	}
+
+	// called after having already consumed `if` or `while`; parses the
+	// parenthesized condition
+	private StatementFrame newConditionalFrame(int kind, boolean inLoop) {
+		StatementFrame frame = new StatementFrame(kind, inLoop);
+		assertAndConsume('(');
+		frame.condition = getExpression();
+		assertAndConsume(')');
+		return frame;
+	}
+
+	// ===============================
+	// expressions
+	// ===============================
+
+	// the expressions whose parsing has started but isn't finished, like
+	// the statements above: a `(` before its first operand (`OPEN`), a unary
+	// or binary operator before its (right) operand, or a method call
+	// between its actuals
+	private static final int OPEN = 0, UNARY = 1, BINARY = 2, CALL = 3;
+
+	private static final class ExpressionFrame {
+		int kind;
+		// the kind of a `UNARY`
+		Expr.Kind unaryKind;
+		// the operator and left operand of a `BINARY`
+		char operator;
+		Expr left;
+		// the callee, actuals so far and line of a `CALL`
+		MethodInfo callee;
+		ArrayList<Expr> actuals;
+		int line;
+
+		ExpressionFrame(int kind) {
+			this.kind = kind;
+		}
+	}
+
+	private Expr getExpression() {
+		ArrayList<ExpressionFrame> stack = new ArrayList<ExpressionFrame>();
+		while (true) {
+			// the start of an expression: a leaf, or a new frame to parse
+			// the expressions inside
+			Expr expression = null;
+			switch (t.peekAtKind()) {
+				case INTEGER:
+					expression = new Expr.IntLiteral(t.getInt());
+					break;
+				case WORD:
+					int word = t.getWordId();
+					switch (word) {
+						case BaliLexer.TRUE:
+							expression = new Expr.IntLiteral(1);
+							break;
+						case BaliLexer.FALSE:
+							expression = new Expr.IntLiteral(0);
+							break;
+						default:
+							// peek ahead to see if it's a method
+							if (t.check('(')) {
+								ExpressionFrame call = newCallFrame(word);
+								if (hasNextActual()) {
+									stack.add(call);
+								} else {
+									expression = getMethodCall(call);
+								}
+							} else {
+								// if not a method, must be a valid location
+								expression = new Expr.Variable(getSlot(word));
+							}
+					}
+					break;
+				case OPERATOR:
+					assertAndConsume('(');
+
+					// if the next token isn't `-` or `!`, it must be another expression
+					if (t.check('-')) {
+						ExpressionFrame unary = new ExpressionFrame(UNARY);
+						unary.unaryKind = Expr.Kind.NEGATE;
+						stack.add(unary);
+					} else if (t.check('!')) {
+						ExpressionFrame unary = new ExpressionFrame(UNARY);
+						unary.unaryKind = Expr.Kind.NOT;
+						stack.add(unary);
+					} else {
+						stack.add(new ExpressionFrame(OPEN));
+					}
+					break;
+				default:
+					throw new Error("Error parsing expression; unexpected token on line " + t.nextLineNo());
+			}
+
+			// hand the parsed expression to the frames waiting for it, until
+			// one of them needs another expression
+			while (expression != null) {
+				if (stack.isEmpty()) {
+					return expression;
+				}
+				ExpressionFrame frame = stack.get(stack.size() - 1);
+				switch (frame.kind) {
+					case OPEN:
+						// the next token must be an operator
+						char operator = t.getOp();
+						switch (operator) {
+							case '+':
+							case '-':
+							case '*':
+							case '/':
+							case '&':
+							case '|':
+							case '<':
+							case '>':
+							case '=':
+								frame.kind = BINARY;
+								frame.operator = operator;
+								frame.left = expression;
+								expression = null;
+								break;
+							case ')':
+								// already consumed the right paren, so the
+								// expression is the value of the parentheses
+								stack.remove(stack.size() - 1);
+								break;
+							default:
+								throw new Error("Error parsing expression; found unexpected operator `" + operator + "` on line " + t.lineNo());
+						}
+						break;
+					case UNARY:
+						stack.remove(stack.size() - 1);
+						expression = new Expr.Unary(frame.unaryKind, expression);
+						assertAndConsume(')');
+						break;
+					case BINARY:
+						stack.remove(stack.size() - 1);
+						expression = new Expr.Binary(frame.operator, frame.left, expression);
+						assertAndConsume(')');
+						break;
+					default:
+						frame.actuals.add(expression);
+						if (t.check(',') && hasNextActual()) {
+							expression = null;
+						} else {
+							stack.remove(stack.size() - 1);
+							expression = getMethodCall(frame);
+						}
+						break;
+				}
+			}
+		}
+	}
+
+	// called after having already consumed the left parenthesis
+	private ExpressionFrame newCallFrame(int methodWord) {
+		ExpressionFrame frame = new ExpressionFrame(CALL);
+		frame.line = t.lineNo();
+		frame.actuals = new ArrayList<Expr>(4);
+		// if the method hasn't been declared yet, the info is recorded
+		// based on the current call
+		frame.callee = getMethodInfo(methodWord);
+		return frame;
+	}
+
+	// whether another actual follows, rather than the right parenthesis
+	private boolean hasNextActual() {
+		if (t.peekAtKind() == TokenKind.EOF) {
+			throw new Error("EOF encountered while parsing actuals of a method on " + t.nextLineNo());
+		}
+		return !t.test(')');
+	}
+
+	// called once the actuals are parsed
+	private Expr getMethodCall(ExpressionFrame frame) {
+		assertAndConsume(')');
+
+		// if not previously declared/called, update the numParameters
+		// otherwise, check if numParameters matches the previous call/declaration
+		MethodInfo currMethodInfo = frame.callee;
+		int numParameters = frame.actuals.size();
+		if (currMethodInfo.numParameters == -1) {
+			currMethodInfo.numParameters = numParameters;
+		} else if (currMethodInfo.numParameters != numParameters) {
+			throw new Error("Error parsing method call for `" + currMethodInfo.name + "`; its number of parameters is different from the number of parameters in a previous call/in its declaration");
+		}
+
+		return new Expr.Call(currMethodInfo, frame.actuals.toArray(new Expr[numParameters]), frame.line);
+	}
+
+	// ===============================
+	// the following are utility/helper functions
+	// ===============================
+	private void assertAndConsume(int keyword) {
+		if (!t.check(keyword))
+			// TODO: print the unexpected token
+			throw new Error("Expected token `" + t.getName(keyword) + "` on line " + t.nextLineNo());
+	}
+
+	private void assertAndConsume(char c) {
+		if (!t.check(c))
+			// TODO: print the unexpected token
+			throw new Error("Expected token `" + c + "` on line " + t.nextLineNo());
+	}
+
+	// get the slot for a symbol; throws error if not found
+	private int getSlot(int word) {
+		int slot = symbols.getSlot(word);
+		if (slot < 0) {
+			throw new Error("Error parsing location reference; " + t.getName(word) + " is not a valid variable, found on line " + t.lineNo());
+		}
+		return slot;
+	}
+
+	// look up a method by its word; the `Program` creates its `MethodInfo`
+	// the first time
+	private MethodInfo getMethodInfo(int word) {
+		MethodInfo info = symbols.getMethod(word);
+		if (info == null) {
+			info = program.getMethodInfo(t.getName(word));
+			symbols.setMethod(word, info);
+		}
+		return info;
+	}
+}
@@ -0,0 +1,62 @@
+package balicompiler;
+
+import java.util.Arrays;
+
+// the symbols of the file being parsed, indexed by the ids that
+// `BaliLexer` gives the words: the slots of the variables of the current
+// method and the `MethodInfo`s of the methods. A lookup is an array access,
+// so it neither hashes nor allocates, and the arrays only take a few bytes
+// per distinct word of the file, however many methods it has. The slots are
+// cleared at the end of each method by going over the variables that were
+// defined rather than the whole array
+public class BaliSymbolTable {
+	// the slot of each word in the current method, or -1
+	private int[] slots = new int[0];
+	// the method of each word, or null if it hasn't been looked up yet
+	private MethodInfo[] methods = new MethodInfo[0];
+	// the words that have a slot
+	private int[] variables = new int[16];
+	private int numVariables = 0;
+
+	// starts a file with `numWords` distinct words; the arrays are kept
+	// from the previous files when they are large enough
+	public void reset(int numWords) {
+		if (slots.length < numWords) {
+			slots = new int[numWords];
+			methods = new MethodInfo[numWords];
+		}
+		Arrays.fill(slots, 0, numWords, -1);
+		Arrays.fill(methods, 0, numWords, null);
+		numVariables = 0;
+	}
+
+	// the slot of the variable, or -1 if it isn't a variable of the current
+	// method
+	public int getSlot(int wordId) {
+		return slots[wordId];
+	}
+
+	public void defineVariable(int wordId, int slot) {
+		if (numVariables == variables.length) {
+			variables = Arrays.copyOf(variables, numVariables * 2);
+		}
+		variables[numVariables++] = wordId;
+		slots[wordId] = slot;
+	}
+
+	// at the end of a method
+	public void resetVariables() {
+		for (int i = 0; i < numVariables; i++) {
+			slots[variables[i]] = -1;
+		}
+		numVariables = 0;
+	}
+
+	public MethodInfo getMethod(int wordId) {
+		return methods[wordId];
+	}
+
+	public void setMethod(int wordId, MethodInfo method) {
+		methods[wordId] = method;
+	}
+}
@@ -0,0 +1,237 @@
+package balicompiler;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// the `--batch` mode of the drivers: compiles many files (e.g., whole
+// directories) in one JVM, on a pool of `options.jobs` threads. Every file
+// is compiled by its own task with its own parser and backends, and the
+// results are summarized once they are all done
+public class BatchCompiler {
+	private final CompilerOptions options;
+	private final List<Target> targets;
+	// the totals of the `--stats` of all the files
+	private final CompilerStats stats;
+	// shared by all the files; null without `--cache`
+	private MethodCache cache;
+
+	// one Bali file and what happened to it
+	private static final class FileResult {
+		final Path input;
+		// the outputs and their sizes (in bytes) and generation times, indexed
+		// like `targets`
+		final Path[] outputs;
+		final long[] outputSizes;
+		final long[] generateNanos;
+		long parseNanos;
+		// null if the file compiled
+		String error;
+
+		FileResult(Path input, Path[] outputs) {
+			this.input = input;
+			this.outputs = outputs;
+			outputSizes = new long[outputs.length];
+			generateNanos = new long[outputs.length];
+		}
+	}
+
+	public BatchCompiler(CompilerOptions options, List<Target> targets) {
+		this.options = options;
+		this.targets = targets;
+		stats = new CompilerStats(options);
+	}
+
+	// returns the number of files that couldn't be compiled
+	public int run(PrintStream out) throws IOException {
+		List<FileResult> files = collectFiles();
+		cache = options.createCache();
+		stats.setCache(cache);
+		long start = System.nanoTime();
+
+		ArrayList<Callable<FileResult>> tasks = new ArrayList<Callable<FileResult>>();
+		for (FileResult file : files) {
+			tasks.add(() -> compileFile(file));
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(options.jobs, CompilerThreads.factory("bali-batch"));
+		try {
+			for (Future<FileResult> task : pool.invokeAll(tasks)) {
+				task.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while compiling", e);
+		} catch (ExecutionException e) {
+			// `compileFile()` keeps the errors of the files
+			throw new RuntimeException(e.getCause());
+		} finally {
+			pool.shutdown();
+		}
+
+		long wallNanos = System.nanoTime() - start;
+		return report(files, wallNanos, out);
+	}
+
+	// the files to compile, with their outputs, in a stable order
+	private List<FileResult> collectFiles() throws IOException {
+		ArrayList<FileResult> files = new ArrayList<FileResult>();
+		for (String fileName : options.fileNames) {
+			Path path = Path.of(fileName);
+			if (Files.isDirectory(path)) {
+				List<Path> sources;
+				try (Stream<Path> walk = Files.walk(path)) {
+					sources = walk.filter(p -> p.toString().endsWith(".bali") && Files.isRegularFile(p))
+							.sorted()
+							.collect(Collectors.toList());
+				}
+				for (Path source : sources) {
+					files.add(new FileResult(source, getOutputs(source, path.relativize(source))));
+				}
+			} else {
+				files.add(new FileResult(path, getOutputs(path, path.getFileName())));
+			}
+		}
+		return files;
+	}
+
+	// `relative` is where the output goes in `--out-dir`
+	private Path[] getOutputs(Path source, Path relative) {
+		String name = relative.toString();
+		if (name.endsWith(".bali")) {
+			name = name.substring(0, name.length() - ".bali".length());
+		}
+		Path[] outputs = new Path[targets.size()];
+		for (int t = 0; t < outputs.length; t++) {
+			String outputName = name + targets.get(t).extension;
+			if (options.outputDirectory != null) {
+				outputs[t] = Path.of(options.outputDirectory).resolve(outputName);
+			} else {
+				outputs[t] = source.resolveSibling(Path.of(outputName).getFileName());
+			}
+		}
+		return outputs;
+	}
+
+	private FileResult compileFile(FileResult file) {
+		try {
+			long start = System.nanoTime();
+			BaliCompilation compilation = new BaliCompilation(file.input.toString(), null, options);
+			file.parseNanos = System.nanoTime() - start;
+			if (compilation.getErrorMessage() != null) {
+				file.error = compilation.getErrorMessage();
+				return file;
+			}
+			stats.add(compilation);
+
+			for (int t = 0; t < targets.size(); t++) {
+				start = System.nanoTime();
+				Path output = file.outputs[t];
+				if (output.getParent() != null) {
+					Files.createDirectories(output.getParent());
+				}
+				try (Writer writer = Files.newBufferedWriter(output)) {
+					Driver.generate(compilation, targets.get(t), options, writer, cache, stats);
+				}
+				file.generateNanos[t] = System.nanoTime() - start;
+				file.outputSizes[t] = Files.size(output);
+			}
+		} catch (StackOverflowError e) {
+			file.error = "the program is nested too deeply";
+		} catch (VirtualMachineError e) {
+			throw e;
+		} catch (IOException | UncheckedIOException e) {
+			file.error = e.toString();
+		} catch (RuntimeException | Error e) {
+			// the syntax errors are thrown as `Error`s
+			file.error = e.getMessage() != null ? e.getMessage() : e.toString();
+		}
+		return file;
+	}
+
+	// ===============================
+	// the summary
+	// ===============================
+
+	private int report(List<FileResult> files, long wallNanos, PrintStream out) throws IOException {
+		if (options.summaryFileName != null) {
+			writeCSV(files);
+		} else {
+			out.printf("%-40s %10s", "file", "parse ms");
+			for (Target target : targets) {
+				String name = target.name().toLowerCase();
+				out.printf(" %10s %10s", name + " ms", name + " bytes");
+			}
+			out.println("  status");
+			for (FileResult file : files) {
+				out.printf("%-40s %10.2f", file.input, toMillis(file.parseNanos));
+				for (int t = 0; t < targets.size(); t++) {
+					out.printf(" %10.2f %10d", toMillis(file.generateNanos[t]), file.outputSizes[t]);
+				}
+				out.println(file.error == null ? "  ok" : "  error");
+			}
+		}
+
+		int failures = 0;
+		long cpuNanos = 0;
+		long[] totalSizes = new long[targets.size()];
+		for (FileResult file : files) {
+			cpuNanos += file.parseNanos;
+			for (int t = 0; t < targets.size(); t++) {
+				cpuNanos += file.generateNanos[t];
+				totalSizes[t] += file.outputSizes[t];
+			}
+			if (file.error != null) {
+				failures++;
+				out.println("error: " + file.input + ": " + file.error);
+			}
+		}
+		out.printf("%d files, %d failed, in %.2f ms (%.2f ms of compiling on %d threads)%n",
+				files.size(), failures, toMillis(wallNanos), toMillis(cpuNanos), options.jobs);
+		for (int t = 0; t < targets.size(); t++) {
+			out.printf("%s output: %d bytes%n", targets.get(t).name(), totalSizes[t]);
+		}
+		if (options.stats) {
+			stats.report(out);
+		}
+		return failures;
+	}
+
+	private void writeCSV(List<FileResult> files) throws IOException {
+		try (PrintStream csv = new PrintStream(Files.newOutputStream(Path.of(options.summaryFileName)))) {
+			csv.print("file,parse_ms");
+			for (Target target : targets) {
+				String name = target.name().toLowerCase();
+				csv.print("," + name + "_output," + name + "_ms," + name + "_bytes");
+			}
+			csv.println(",error");
+			for (FileResult file : files) {
+				csv.print(quote(file.input.toString()) + "," + String.format("%.3f", toMillis(file.parseNanos)));
+				for (int t = 0; t < targets.size(); t++) {
+					csv.print("," + quote(file.outputs[t].toString()) + "," + String.format("%.3f", toMillis(file.generateNanos[t]))
+							+ "," + file.outputSizes[t]);
+				}
+				csv.println("," + (file.error == null ? "" : quote(file.error)));
+			}
+		}
+	}
+
+	private static String quote(String field) {
+		return "\"" + field.replace("\"", "\"\"") + "\"";
+	}
+
+	private static double toMillis(long nanos) {
+		return nanos / 1e6;
+	}
+}
@@ -0,0 +1,165 @@
+package balicompiler;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// the calls between the methods of a program, rooted at `main` (which the
+// generated code bootstraps with). It is built once the AST is optimized,
+// so that a method whose calls were all inlined or removed as dead code is
+// no longer reachable, and `removeUnreachable()` then drops the methods
+// that can never run, so that no backend generates code for them.
+//
+// `checkCallees()` is run on the parsed program instead, so that a call of
+// a method that is never declared is an error wherever it is (even in code
+// that can't run), rather than code jumping to a missing label
+public class CallGraph {
+	private final ArrayList<MethodDecl> methods;
+	// indexed by `MethodInfo.id`: the methods called by each declared method
+	// (in order of first call) with their number of call sites, and whether
+	// the method is reachable from `main`
+	private final ArrayList<LinkedHashMap<MethodInfo, Integer>> calls;
+	private final boolean[] reachable;
+	private int numUnreachable = 0;
+
+	// throws an Error if `main()` or a called method is never declared
+	public static void checkCallees(Program program) {
+		MethodInfo main = program.methodInfos.get("main");
+		if (main == null || main.declaration == null) {
+			throw new Error("The program has no `main()` method");
+		}
+		for (MethodDecl method : program.methods) {
+			Inliner.CallVisitor check = call -> {
+				if (call.callee.declaration == null) {
+					throw new Error("Method `" + call.callee.name + "` called on line " + call.line + " is never declared");
+				}
+			};
+			for (Expr initializer : method.localInitializers) {
+				if (initializer != null) {
+					Inliner.forEachCall(initializer, check);
+				}
+			}
+			Inliner.forEachExpression(method.body, expression -> Inliner.forEachCall(expression, check));
+		}
+	}
+
+	// also measures the methods (`MethodInfo.size`)
+	public CallGraph(Program program) {
+		methods = new ArrayList<MethodDecl>(program.methods);
+		int numInfos = program.methodInfoList.size();
+		calls = new ArrayList<LinkedHashMap<MethodInfo, Integer>>(numInfos);
+		for (int i = 0; i < numInfos; i++) {
+			calls.add(null);
+		}
+		for (MethodDecl method : methods) {
+			LinkedHashMap<MethodInfo, Integer> callees = new LinkedHashMap<MethodInfo, Integer>();
+			Inliner.CallVisitor add = call -> callees.merge(call.callee, 1, Integer::sum);
+			for (Expr initializer : method.localInitializers) {
+				if (initializer != null) {
+					Inliner.forEachCall(initializer, add);
+				}
+			}
+			Inliner.forEachExpression(method.body, expression -> Inliner.forEachCall(expression, add));
+			calls.set(method.info.id, callees);
+			method.info.size = Inliner.measure(method);
+		}
+
+		// a worklist rather than recursion, as a chain of calls can be as
+		// long as the program
+		reachable = new boolean[numInfos];
+		ArrayList<MethodInfo> worklist = new ArrayList<MethodInfo>();
+		MethodInfo main = program.methodInfos.get("main");
+		if (main != null && main.declaration != null) {
+			reachable[main.id] = true;
+			worklist.add(main);
+		}
+		while (!worklist.isEmpty()) {
+			MethodInfo caller = worklist.remove(worklist.size() - 1);
+			for (MethodInfo callee : calls.get(caller.id).keySet()) {
+				if (!reachable[callee.id] && callee.declaration != null) {
+					reachable[callee.id] = true;
+					worklist.add(callee);
+				}
+			}
+		}
+		for (MethodDecl method : methods) {
+			if (!reachable[method.info.id]) {
+				numUnreachable++;
+			}
+		}
+	}
+
+	public boolean isReachable(MethodInfo method) {
+		return reachable[method.id];
+	}
+
+	public int getNumUnreachable() {
+		return numUnreachable;
+	}
+
+	// removes the methods that aren't reachable from `program` (they stay in
+	// the graph, e.g. to be written out)
+	public void removeUnreachable(Program program) {
+		if (numUnreachable > 0) {
+			program.methods.removeIf(method -> !reachable[method.info.id]);
+		}
+	}
+
+	// ===============================
+	// writing the graph out
+	// ===============================
+
+	// as JSON if the file name ends with `.json`, otherwise as DOT
+	public void write(Path path) throws IOException {
+		try (Writer writer = Files.newBufferedWriter(path)) {
+			if (path.toString().endsWith(".json")) {
+				writeJson(writer);
+			} else {
+				writeDot(writer);
+			}
+		}
+	}
+
+	// a node per method, labeled with its size in AST nodes (the
+	// unreachable ones dashed), and an edge per caller/callee pair, labeled
+	// with the number of call sites
+	public void writeDot(Writer out) throws IOException {
+		out.write("digraph calls {\n");
+		for (MethodDecl method : methods) {
+			MethodInfo info = method.info;
+			out.write("  \"" + info.name + "\" [label=\"" + info.name + "\\n" + info.size + " nodes\""
+					+ (reachable[info.id] ? "" : ", style=dashed") + "];\n");
+		}
+		for (MethodDecl method : methods) {
+			for (Map.Entry<MethodInfo, Integer> callee : calls.get(method.info.id).entrySet()) {
+				out.write("  \"" + method.info.name + "\" -> \"" + callee.getKey().name + "\" [label=\"" + callee.getValue() + "\"];\n");
+			}
+		}
+		out.write("}\n");
+	}
+
+	// `{"methods": [{"name": ..., "size": ..., "reachable": ..., "calls":
+	// [{"callee": ..., "sites": ...}, ...]}, ...]}`; the names are Bali
+	// identifiers, so they don't need escaping
+	public void writeJson(Writer out) throws IOException {
+		out.write("{\"methods\": [");
+		String separator = "\n";
+		for (MethodDecl method : methods) {
+			MethodInfo info = method.info;
+			out.write(separator + "  {\"name\": \"" + info.name + "\", \"size\": " + info.size + ", \"reachable\": " + reachable[info.id]
+					+ ", \"calls\": [");
+			String callSeparator = "";
+			for (Map.Entry<MethodInfo, Integer> callee : calls.get(info.id).entrySet()) {
+				out.write(callSeparator + "{\"callee\": \"" + callee.getKey().name + "\", \"sites\": " + callee.getValue() + "}");
+				callSeparator = ", ";
+			}
+			out.write("]}");
+			separator = ",\n";
+		}
+		out.write("\n]}\n");
+	}
+}
@@ -0,0 +1,71 @@
+package balicompiler;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+
+// `CodeEmitter` appends the generated code straight to a `Writer` (which
+// should be buffered) so that the whole program never has to be built up
+// as one big string; every backend writes its output through it.
+public class CodeEmitter {
+	private final Writer out;
+
+	public CodeEmitter(Writer out) {
+		this.out = out;
+	}
+
+	// emit a whole line (e.g., an instruction without operands)
+	public void emit(String line) {
+		write(line);
+		write('\n');
+	}
+
+	public void emit(String opcode, int operand) {
+		write(opcode);
+		write(' ');
+		write(Integer.toString(operand));
+		write('\n');
+	}
+
+	public void emit(String opcode, String operand) {
+		write(opcode);
+		write(' ');
+		write(operand);
+		write('\n');
+	}
+
+	public void emitLabel(String label) {
+		write(label);
+		write(":\n");
+	}
+
+	// append code that was generated before (e.g., by `MethodCache`) as it is
+	public void emitCode(String code) {
+		write(code);
+	}
+
+	public void flush() {
+		try {
+			out.flush();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	// the `Writer` methods throw checked exceptions; we rethrow them unchecked
+	// so that every code generation method doesn't have to declare them
+	private void write(String s) {
+		try {
+			out.write(s);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void write(char c) {
+		try {
+			out.write(c);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+}
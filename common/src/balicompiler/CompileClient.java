@@ -0,0 +1,145 @@
+package balicompiler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketException;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+
+import static balicompiler.CompileServer.readLine;
+import static balicompiler.CompileServer.writeLine;
+
+// the thin client of the compiler daemon (see `CompileServer`); it takes
+// the same arguments as the drivers (`[flags] file.bali output`), sends
+// the request and writes the code it gets back to the output file. The
+// target is the one given with `--targets`, or else picked by the output
+// extension (`.asm`/`.nasm`/`.s` for x86, anything else for SaM).
+//
+// `--cache` isn't sent, the daemon uses the cache it was started with. If
+// no daemon is listening it compiles in-process (with `--cache`, if
+// given), so it can always be used in place of the drivers
+public class CompileClient {
+	public static void main(String[] args) throws IOException {
+		CompilerOptions options;
+		try {
+			options = CompilerOptions.parse(args);
+		} catch (IllegalArgumentException e) {
+			System.out.println(e.getMessage() + "\n" + CompilerOptions.USAGE);
+			return;
+		}
+		if (options.fileNames.size() != 2) {
+			System.out.println("This client requires 2 input parameters; first one is the Bali file name, and the second one the target SaM or NASM file name.\n"
+					+ CompilerOptions.USAGE);
+			return;
+		}
+
+		CompileServer.Request request = new CompileServer.Request();
+		Path output = Path.of(options.fileNames.get(1));
+		request.target = options.targets.isEmpty() ? getTarget(output.toString()) : options.targets.get(0);
+		// the daemon runs in another directory
+		request.path = Path.of(options.fileNames.get(0)).toAbsolutePath().toString();
+		for (String flag : args) {
+			if (flag.startsWith("--") && !flag.startsWith("--cache=") && !flag.startsWith("--socket=")
+					&& !flag.startsWith("--targets=")) {
+				request.flags.add(flag);
+			}
+		}
+
+		ArrayList<String> diagnostics = new ArrayList<String>();
+		String error;
+		SocketChannel channel;
+		try {
+			channel = SocketChannel.open(UnixDomainSocketAddress.of(options.getSocket()));
+		} catch (SocketException e) {
+			// no socket, or a stale one
+			channel = null;
+		}
+		if (channel != null) {
+			try (SocketChannel daemon = channel) {
+				error = compileRemotely(request, daemon, output, diagnostics);
+			}
+		} else {
+			// on a thread with a large stack, like the drivers and the daemon
+			MethodCache cache = options.createCache();
+			String[] localError = new String[1];
+			CompilerThreads.run("bali-compiler", () -> localError[0] = CompileServer.compile(request, cache,
+					() -> Files.newBufferedWriter(output), diagnostics));
+			error = localError[0];
+		}
+		for (String diagnostic : diagnostics) {
+			System.err.println(diagnostic);
+		}
+		if (error != null) {
+			System.err.println(error);
+			System.exit(1);
+		}
+	}
+
+	// returns the error, if any; the output file is only written if the
+	// program compiled
+	private static String compileRemotely(CompileServer.Request request, SocketChannel daemon, Path output,
+			ArrayList<String> diagnostics) throws IOException {
+		InputStream in = new BufferedInputStream(Channels.newInputStream(daemon));
+		OutputStream out = new BufferedOutputStream(Channels.newOutputStream(daemon));
+		writeLine(out, "COMPILE");
+		writeLine(out, "target: " + request.target.name().toLowerCase());
+		for (String flag : request.flags) {
+			writeLine(out, "option: " + flag);
+		}
+		writeLine(out, "path: " + request.path);
+		writeLine(out, "");
+		out.flush();
+
+		String status = readLine(in);
+		String message = null;
+		String line;
+		while ((line = readLine(in)) != null && !line.isEmpty()) {
+			if (line.startsWith("message: ")) {
+				message = line.substring("message: ".length());
+			}
+		}
+		if (!"status: ok".equals(status)) {
+			return message != null ? message : "The compiler daemon didn't answer";
+		}
+
+		try (OutputStream code = new BufferedOutputStream(Files.newOutputStream(output))) {
+			int length;
+			while ((length = readChunkLength(in)) > 0) {
+				byte[] chunk = in.readNBytes(length);
+				if (chunk.length != length) {
+					throw new IOException("The compiler daemon closed the connection");
+				}
+				code.write(chunk);
+			}
+		}
+		while ((line = readLine(in)) != null && !line.isEmpty()) {
+			if (line.startsWith("diagnostic: ")) {
+				diagnostics.add(line.substring("diagnostic: ".length()));
+			}
+		}
+		return null;
+	}
+
+	private static int readChunkLength(InputStream in) throws IOException {
+		String line = readLine(in);
+		try {
+			return Integer.parseInt(line);
+		} catch (NumberFormatException e) {
+			throw new IOException("Malformed response from the compiler daemon: `" + line + "`");
+		}
+	}
+
+	private static Target getTarget(String fileName) {
+		if (fileName.endsWith(".asm") || fileName.endsWith(".nasm") || fileName.endsWith(".s")) {
+			return Target.X86;
+		}
+		return Target.SAM;
+	}
+}
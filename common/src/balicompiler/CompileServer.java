@@ -0,0 +1,388 @@
+package balicompiler;
+
+import balicompiler.sam.SamPeephole;
+import balicompiler.x86.X86Peephole;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.io.Writer;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// a long-lived compiler (the drivers' `--server` mode), so that the JVM
+// startup and the JIT warm-up are paid once instead of on every compile.
+// It listens on a Unix domain socket and serves one request per connection.
+//
+// Whoever can connect can have the daemon read any file its user can, so
+// the socket must be in a directory that only that user can access (the
+// default `~/.bali-compiler` is created that way); on file systems without
+// POSIX permissions (Windows) the user's home directory is relied on. The
+// requests can't make the daemon write files either (see below).
+//
+// The protocol is text (UTF-8) with `\n`-terminated lines. A request is a
+// command line followed by header lines and an empty line:
+//
+//     COMPILE
+//     target: sam | x86
+//     option: --no-peephole        (any number of the compiler flags)
+//     path: /the/file.bali         (a file the server can read), or
+//     source-length: N             (N bytes of source follow the empty line)
+//
+// and the response is a `status: ok` or `status: error` line, an optional
+// `message: ...` line, an empty line and then, if ok, the generated code in
+// chunks (`N\n` followed by N bytes), ended by `0\n`. The code is buffered
+// until the compile has succeeded, so that a failure is never reported
+// after a `status: ok`. Last come any `diagnostic: ...` lines (e.g., the
+// `--stats` report) and an empty line. `SHUTDOWN` (followed by an empty
+// line) stops the server.
+//
+// The daemon only returns the code of one file, so the requests can't have
+// the flags of the other modes (`--run`, `--batch`, `--call-graph`) or the
+// ones that write files (`--cache`, `--out-dir`, `--summary`); the daemon
+// uses the cache it was started with, if any
+public class CompileServer {
+	public static final Path DEFAULT_SOCKET = Path.of(System.getProperty("user.home"), ".bali-compiler", "daemon.sock");
+	// compiled a few times at startup, so that the first requests already
+	// run JIT-compiled code
+	private static final String WARM_UP_SOURCE = "int f(int n) { if ((n < 2)) return n; else return (f((n - 1)) + f((n - 2))); }\n"
+			+ "int main() { int i, s; i = 0; s = 0; while ((i < 10)) { s = (s + ((f(i) * 3) / 2)); i = (i + 1); } return s; }\n";
+	private static final int WARM_UP_ROUNDS = 200;
+
+	// one compile request, as read from a connection
+	static final class Request {
+		Target target = Target.SAM;
+		ArrayList<String> flags = new ArrayList<String>();
+		// exactly one of `path` and `source` is set
+		String path;
+		String source;
+	}
+
+	// opens the writer for the generated code; it's only called once the
+	// program has been parsed
+	interface CodeSink {
+		Writer open() throws IOException;
+	}
+
+	private final Path socketPath;
+	private final ExecutorService workers;
+	// shared by all the requests; null without `--cache`
+	private final MethodCache cache;
+	private volatile ServerSocketChannel serverChannel;
+
+	public CompileServer(Path socketPath, int jobs, MethodCache cache) {
+		this.socketPath = socketPath.toAbsolutePath();
+		this.cache = cache;
+		workers = Executors.newFixedThreadPool(jobs, CompilerThreads.factory("bali-worker"));
+	}
+
+	// serves requests until a `SHUTDOWN` request
+	public void run() throws IOException {
+		checkPrivateDirectory(socketPath.getParent());
+		if (Files.exists(socketPath)) {
+			if (isListening(socketPath)) {
+				throw new IOException("A compiler daemon is already listening on " + socketPath);
+			}
+			// left by a daemon that didn't shut down
+			Files.delete(socketPath);
+		}
+		warmUp();
+		try (ServerSocketChannel channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+			channel.bind(UnixDomainSocketAddress.of(socketPath));
+			serverChannel = channel;
+			System.out.println("Bali compiler daemon listening on " + socketPath);
+			while (true) {
+				SocketChannel connection;
+				try {
+					connection = channel.accept();
+				} catch (ClosedChannelException e) {
+					// closed by `SHUTDOWN`
+					break;
+				}
+				workers.execute(() -> serve(connection));
+			}
+		} finally {
+			workers.shutdown();
+			Files.deleteIfExists(socketPath);
+		}
+	}
+
+	private void warmUp() {
+		Request request = new Request();
+		request.source = WARM_UP_SOURCE;
+		for (int i = 0; i < WARM_UP_ROUNDS; i++) {
+			for (Target target : Target.values()) {
+				request.target = target;
+				compile(request, null, () -> Writer.nullWriter(), new ArrayList<String>());
+			}
+		}
+	}
+
+	private void serve(SocketChannel connection) {
+		try (SocketChannel channel = connection) {
+			InputStream in = new BufferedInputStream(Channels.newInputStream(channel));
+			OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel));
+			String command = readLine(in);
+			if ("SHUTDOWN".equals(command)) {
+				writeLine(out, "status: ok");
+				writeLine(out, "");
+				out.flush();
+				serverChannel.close();
+				return;
+			}
+
+			Request request;
+			try {
+				if (!"COMPILE".equals(command)) {
+					throw new IllegalArgumentException("Unknown command `" + command + "`");
+				}
+				request = readRequest(in);
+			} catch (IllegalArgumentException e) {
+				writeError(out, e.getMessage());
+				return;
+			}
+
+			ArrayList<String> diagnostics = new ArrayList<String>();
+			ByteArrayOutputStream code = new ByteArrayOutputStream();
+			String error = compile(request, cache, () -> new OutputStreamWriter(code, StandardCharsets.UTF_8), diagnostics);
+			if (error != null) {
+				writeError(out, error);
+				return;
+			}
+			writeLine(out, "status: ok");
+			writeLine(out, "");
+			ChunkedOutputStream chunks = new ChunkedOutputStream(out);
+			code.writeTo(chunks);
+			chunks.finish();
+			for (String diagnostic : diagnostics) {
+				writeLine(out, "diagnostic: " + diagnostic);
+			}
+			writeLine(out, "");
+			out.flush();
+		} catch (IOException e) {
+			// the client went away; nothing to answer
+		}
+	}
+
+	// compiles `request` (reusing the code in `cache`, if not null), writing
+	// the code to `sink` and adding the diagnostics (one per line) to
+	// `diagnostics`; returns the error, if the program couldn't be compiled,
+	// in which case `sink` isn't opened. The client's fallback (no daemon
+	// running) compiles with this too
+	static String compile(Request request, MethodCache cache, CodeSink sink, List<String> diagnostics) {
+		try {
+			CompilerOptions options = CompilerOptions.parse(request.flags.toArray(new String[0]));
+			options.checkRequestFlags();
+			HashSet<String> knownRules = SamPeephole.getRuleNames();
+			knownRules.addAll(X86Peephole.getRuleNames());
+			options.checkRuleNames(knownRules);
+
+			// I/O and tokenizer problems still produce the fallback code, the
+			// same as the command line compiler does
+			BaliCompilation compilation = request.path != null
+					? new BaliCompilation(request.path, null, options)
+					: new BaliCompilation(new StringReader(request.source), null, options);
+			if (compilation.getErrorMessage() != null) {
+				diagnostics.add(compilation.getErrorMessage());
+			}
+
+			CompilerStats stats = new CompilerStats(options);
+			stats.add(compilation);
+			stats.setCache(cache);
+			try (Writer writer = sink.open()) {
+				Driver.generate(compilation, request.target, options, writer, cache, stats);
+			}
+			if (options.stats) {
+				ByteArrayOutputStream report = new ByteArrayOutputStream();
+				stats.report(new PrintStream(report, true, StandardCharsets.UTF_8));
+				for (String line : report.toString(StandardCharsets.UTF_8).split("\n")) {
+					if (!line.isEmpty()) {
+						diagnostics.add(line);
+					}
+				}
+			}
+			return null;
+		} catch (StackOverflowError e) {
+			return "The program is nested too deeply";
+		} catch (VirtualMachineError e) {
+			throw e;
+		} catch (IOException | RuntimeException | Error e) {
+			// the syntax errors are thrown as `Error`s
+			return e.getMessage() != null ? e.getMessage() : e.toString();
+		}
+	}
+
+	// ===============================
+	// the following are the protocol's utility/helper functions, shared
+	// with `CompileClient`
+	// ===============================
+
+	// whether a daemon accepts connections on `socketPath`
+	static boolean isListening(Path socketPath) {
+		try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(socketPath))) {
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	// throws an IOException unless `directory` (created if needed) can only
+	// be accessed by the user running the daemon
+	private static void checkPrivateDirectory(Path directory) throws IOException {
+		if (!directory.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+			Files.createDirectories(directory);
+			return;
+		}
+		if (!Files.exists(directory)) {
+			Files.createDirectories(directory, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+		}
+		String permissions = PosixFilePermissions.toString(Files.getPosixFilePermissions(directory));
+		if (!permissions.endsWith("------") || !Files.getOwner(directory).getName().equals(System.getProperty("user.name"))) {
+			throw new IOException("The directory of the daemon's socket, " + directory
+					+ ", must be owned by and only accessible to its user (e.g., `chmod 700`)");
+		}
+	}
+
+	// throws an IllegalArgumentException for a malformed request
+	private static Request readRequest(InputStream in) throws IOException {
+		Request request = new Request();
+		int sourceLength = -1;
+		String line;
+		while ((line = readLine(in)) != null && !line.isEmpty()) {
+			int colon = line.indexOf(':');
+			if (colon < 0) {
+				throw new IllegalArgumentException("Malformed header `" + line + "`");
+			}
+			String name = line.substring(0, colon).trim();
+			String value = line.substring(colon + 1).trim();
+			switch (name) {
+				case "target":
+					request.target = Target.parse(value);
+					break;
+				case "option":
+					request.flags.add(value);
+					break;
+				case "path":
+					request.path = value;
+					break;
+				case "source-length":
+					try {
+						sourceLength = Integer.parseInt(value);
+					} catch (NumberFormatException e) {
+						throw new IllegalArgumentException("Malformed source length `" + value + "`");
+					}
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown header `" + name + "`");
+			}
+		}
+		if ((request.path == null) == (sourceLength < 0)) {
+			throw new IllegalArgumentException("Expecting either a `path` or a `source-length` header");
+		}
+		if (sourceLength >= 0) {
+			byte[] source = in.readNBytes(sourceLength);
+			if (source.length != sourceLength) {
+				throw new IllegalArgumentException("The source is shorter than its `source-length`");
+			}
+			request.source = new String(source, StandardCharsets.UTF_8);
+		}
+		return request;
+	}
+
+	private static void writeError(OutputStream out, String message) throws IOException {
+		writeLine(out, "status: error");
+		writeLine(out, "message: " + message.replace('\n', ' '));
+		writeLine(out, "");
+		out.flush();
+	}
+
+	// null at the end of the stream
+	static String readLine(InputStream in) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int b;
+		while ((b = in.read()) != '\n') {
+			if (b < 0) {
+				return line.size() == 0 ? null : line.toString(StandardCharsets.UTF_8);
+			}
+			line.write(b);
+		}
+		return line.toString(StandardCharsets.UTF_8);
+	}
+
+	static void writeLine(OutputStream out, String line) throws IOException {
+		out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+	}
+
+	// frames what is written to it as the chunks of a response; closing it
+	// only flushes (the connection stays open for the end of the response)
+	private static final class ChunkedOutputStream extends OutputStream {
+		private final OutputStream out;
+		private final byte[] buffer = new byte[8192];
+		private int count = 0;
+
+		ChunkedOutputStream(OutputStream out) {
+			this.out = out;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (count == buffer.length) {
+				flush();
+			}
+			buffer[count++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length) throws IOException {
+			while (length > 0) {
+				if (count == buffer.length) {
+					flush();
+				}
+				int n = Math.min(length, buffer.length - count);
+				System.arraycopy(bytes, offset, buffer, count, n);
+				count += n;
+				offset += n;
+				length -= n;
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (count > 0) {
+				writeLine(out, Integer.toString(count));
+				out.write(buffer, 0, count);
+				count = 0;
+			}
+			out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			flush();
+		}
+
+		void finish() throws IOException {
+			flush();
+			writeLine(out, "0");
+		}
+	}
+}
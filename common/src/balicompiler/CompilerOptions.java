@@ -0,0 +1,185 @@
+package balicompiler;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+
+// the command line of the compiler drivers: the `--` flags come first,
+// followed by the file names
+public class CompilerOptions {
+	public static final String USAGE = "Options:\n"
+			+ "  --no-peephole            don't run the peephole optimizers\n"
+			+ "  --disable-rule=a,b,...   don't apply the named peephole rules (of both targets)\n"
+			+ "  --stats                  print what each pass did: the instructions each peephole rule\n"
+			+ "                           removed, the dead code, dataflow and loop optimizations, and\n"
+			+ "                           the methods reused from the cache (see `CompilerStats`)\n"
+			+ "  --no-dce                 keep the statements that can never run\n"
+			+ "  --no-dataflow            don't propagate copies, reuse common subexpressions or remove\n"
+			+ "                           dead stores\n"
+			+ "  --no-loop-opt            don't hoist loop-invariant expressions or strength-reduce\n"
+			+ "                           multiplications by induction variables\n"
+			+ "  --call-graph=FILE        write the call graph of the compiled file, with the size of each\n"
+			+ "                           method, to FILE as JSON if it ends with `.json`, otherwise as DOT\n"
+			+ "  --batch                  compile every given file and every `.bali` file in the given\n"
+			+ "                           directories in parallel, then print a summary; the outputs are\n"
+			+ "                           named after the inputs (`f.bali` gives `f.sam`/`f.asm`)\n"
+			+ "  --targets=sam,x86        the targets to compile to in batch mode\n"
+			+ "  --out-dir=DIR            where to write the batch outputs (default: next to the inputs)\n"
+			+ "  --jobs=N                 the number of files compiled at the same time in batch mode\n"
+			+ "  --summary=FILE           write the per-file batch summary to FILE as CSV\n"
+			+ "  --inline-budget=N        how much inlining may grow the program, in percent (0 to not\n"
+			+ "                           inline; default " + Inliner.DEFAULT_BUDGET + ")\n"
+			+ "  --inline-size=N          inline the methods of at most N AST nodes (default " + Inliner.DEFAULT_SIZE_LIMIT + "), and\n"
+			+ "                           the ones called from a single place\n"
+			+ "  --cache=DIR              reuse the code of the methods that didn't change since the\n"
+			+ "                           last compile with the same DIR (see `MethodCache`)\n"
+			+ "  --run                    compile the single given file to JVM bytecode and run it\n"
+			+ "                           in-process, printing `main`'s return value (see `JvmBackend`)\n"
+			+ "  --server                 run as a compiler daemon (see `CompileServer`)\n"
+			+ "  --socket=FILE            the Unix domain socket of the compiler daemon, in a directory\n"
+			+ "                           only the user can access (default " + CompileServer.DEFAULT_SOCKET + ")\n";
+
+	public boolean peephole = true;
+	public HashSet<String> disabledRules = new HashSet<String>();
+	public boolean stats = false;
+	public boolean deadCode = true;
+	public boolean dataflow = true;
+	public boolean loops = true;
+	// null to not write the call graph
+	public String callGraphFileName = null;
+	public boolean batch = false;
+	// empty for the driver's own target
+	public ArrayList<Target> targets = new ArrayList<Target>();
+	// null to write the batch outputs next to the inputs
+	public String outputDirectory = null;
+	public int jobs = Runtime.getRuntime().availableProcessors();
+	public String summaryFileName = null;
+	public int inlineBudget = Inliner.DEFAULT_BUDGET;
+	public int inlineSizeLimit = Inliner.DEFAULT_SIZE_LIMIT;
+	// null to not cache the code of the methods
+	public String cacheDirectory = null;
+	public boolean run = false;
+	public boolean server = false;
+	// null for `CompileServer.DEFAULT_SOCKET`
+	public String socketFileName = null;
+	public ArrayList<String> fileNames = new ArrayList<String>();
+
+	// throws an IllegalArgumentException for an unknown flag
+	public static CompilerOptions parse(String[] args) {
+		CompilerOptions options = new CompilerOptions();
+		int i = 0;
+		for (; i < args.length && args[i].startsWith("--"); i++) {
+			String flag = args[i];
+			if (flag.equals("--no-peephole")) {
+				options.peephole = false;
+			} else if (flag.startsWith("--disable-rule=")) {
+				options.disabledRules.addAll(Arrays.asList(flag.substring("--disable-rule=".length()).split(",")));
+			} else if (flag.equals("--stats")) {
+				options.stats = true;
+			} else if (flag.equals("--no-dce")) {
+				options.deadCode = false;
+			} else if (flag.equals("--no-dataflow")) {
+				options.dataflow = false;
+			} else if (flag.equals("--no-loop-opt")) {
+				options.loops = false;
+			} else if (flag.startsWith("--call-graph=")) {
+				options.callGraphFileName = flag.substring("--call-graph=".length());
+			} else if (flag.equals("--batch")) {
+				options.batch = true;
+			} else if (flag.startsWith("--targets=")) {
+				for (String target : flag.substring("--targets=".length()).split(",")) {
+					options.targets.add(Target.parse(target));
+				}
+			} else if (flag.startsWith("--out-dir=")) {
+				options.outputDirectory = flag.substring("--out-dir=".length());
+			} else if (flag.startsWith("--jobs=")) {
+				options.jobs = parseInt(flag, flag.substring("--jobs=".length()), 1);
+			} else if (flag.startsWith("--summary=")) {
+				options.summaryFileName = flag.substring("--summary=".length());
+			} else if (flag.startsWith("--inline-budget=")) {
+				options.inlineBudget = parseInt(flag, flag.substring("--inline-budget=".length()), 0);
+			} else if (flag.startsWith("--inline-size=")) {
+				options.inlineSizeLimit = parseInt(flag, flag.substring("--inline-size=".length()), 1);
+			} else if (flag.startsWith("--cache=")) {
+				options.cacheDirectory = flag.substring("--cache=".length());
+			} else if (flag.equals("--run")) {
+				options.run = true;
+			} else if (flag.equals("--server")) {
+				options.server = true;
+			} else if (flag.startsWith("--socket=")) {
+				options.socketFileName = flag.substring("--socket=".length());
+			} else {
+				throw new IllegalArgumentException("Unknown option `" + flag + "`");
+			}
+		}
+		for (; i < args.length; i++) {
+			options.fileNames.add(args[i]);
+		}
+		return options;
+	}
+
+	// the targets given with `--targets`, or `defaultTarget`
+	public ArrayList<Target> getTargets(Target defaultTarget) {
+		if (targets.isEmpty()) {
+			ArrayList<Target> defaultTargets = new ArrayList<Target>();
+			defaultTargets.add(defaultTarget);
+			return defaultTargets;
+		}
+		return targets;
+	}
+
+	// the socket given with `--socket`, or the default one
+	public Path getSocket() {
+		return socketFileName == null ? CompileServer.DEFAULT_SOCKET : Path.of(socketFileName);
+	}
+
+	private static int parseInt(String flag, String value, int minimum) {
+		try {
+			int result = Integer.parseInt(value);
+			if (result >= minimum) {
+				return result;
+			}
+		} catch (NumberFormatException e) {
+		}
+		throw new IllegalArgumentException("Expecting a number of at least " + minimum + " in `" + flag + "`");
+	}
+
+	// null if `--cache` wasn't given
+	public MethodCache createCache() throws IOException {
+		return cacheDirectory == null ? null : new MethodCache(Path.of(cacheDirectory));
+	}
+
+	// throws an IllegalArgumentException for the flags of the modes that
+	// give more than the code of one file, which the compiler daemon
+	// (`CompileServer`) can't serve
+	public void checkServerFlags() {
+		String flag = run ? "--run" : batch ? "--batch" : callGraphFileName != null ? "--call-graph" : null;
+		if (flag != null) {
+			throw new IllegalArgumentException("`" + flag + "` isn't supported by the compiler daemon");
+		}
+	}
+
+	// the same as `checkServerFlags()`, for the flags of a request to the
+	// daemon, which also can't name files for the daemon to write (the
+	// daemon only writes to the cache it was started with)
+	public void checkRequestFlags() {
+		checkServerFlags();
+		String flag = cacheDirectory != null ? "--cache" : outputDirectory != null ? "--out-dir"
+				: summaryFileName != null ? "--summary" : null;
+		if (flag != null) {
+			throw new IllegalArgumentException("`" + flag + "` isn't supported in a request to the compiler daemon");
+		}
+	}
+
+	// `knownRules` are the names of the peephole rules of the targets
+	public void checkRuleNames(Collection<String> knownRules) {
+		for (String rule : disabledRules) {
+			if (!knownRules.contains(rule)) {
+				throw new IllegalArgumentException("Unknown peephole rule `" + rule + "`");
+			}
+		}
+	}
+}
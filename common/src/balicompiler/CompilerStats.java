@@ -0,0 +1,95 @@
+package balicompiler;
+
+import balicompiler.sam.SamPeephole;
+import balicompiler.x86.X86Peephole;
+
+import java.io.PrintStream;
+
+// what the passes did, for `--stats`: the drivers, the daemon and the batch
+// mode add the AST passes and the peephole optimizers of each compile (and
+// the method cache), and `report()` prints the ones that ran. The counts of
+// several compiles (e.g., the files of a batch) are totalled
+public class CompilerStats {
+	private final CompilerOptions options;
+	// null until a pass of that kind is added
+	private SamPeephole samPeephole;
+	private X86Peephole x86Peephole;
+	private DeadCodeEliminator deadCodeEliminator;
+	private DataflowOptimizer dataflowOptimizer;
+	private LoopOptimizer loopOptimizer;
+	// null without `--cache`
+	private MethodCache cache;
+
+	// `options` are the ones of the compiles, which all have the same
+	// peephole rules enabled
+	public CompilerStats(CompilerOptions options) {
+		this.options = options;
+	}
+
+	// adds what the AST passes of `compilation` did
+	public synchronized void add(BaliCompilation compilation) {
+		if (compilation.getDeadCodeEliminator() != null) {
+			if (deadCodeEliminator == null) {
+				deadCodeEliminator = new DeadCodeEliminator();
+			}
+			deadCodeEliminator.merge(compilation.getDeadCodeEliminator());
+		}
+		if (compilation.getDataflowOptimizer() != null) {
+			if (dataflowOptimizer == null) {
+				dataflowOptimizer = new DataflowOptimizer();
+			}
+			dataflowOptimizer.merge(compilation.getDataflowOptimizer());
+		}
+		if (compilation.getLoopOptimizer() != null) {
+			if (loopOptimizer == null) {
+				loopOptimizer = new LoopOptimizer();
+			}
+			loopOptimizer.merge(compilation.getLoopOptimizer());
+		}
+	}
+
+	// `peephole` is null with `--no-peephole`
+	public synchronized void add(SamPeephole peephole) {
+		if (peephole != null) {
+			if (samPeephole == null) {
+				samPeephole = new SamPeephole(options.disabledRules);
+			}
+			samPeephole.merge(peephole);
+		}
+	}
+
+	public synchronized void add(X86Peephole peephole) {
+		if (peephole != null) {
+			if (x86Peephole == null) {
+				x86Peephole = new X86Peephole(options.disabledRules);
+			}
+			x86Peephole.merge(peephole);
+		}
+	}
+
+	// the cache is shared by the compiles, so it keeps its own counts
+	public synchronized void setCache(MethodCache cache) {
+		this.cache = cache;
+	}
+
+	public synchronized void report(PrintStream out) {
+		if (samPeephole != null) {
+			samPeephole.report(out);
+		}
+		if (x86Peephole != null) {
+			x86Peephole.report(out);
+		}
+		if (cache != null) {
+			cache.report(out);
+		}
+		if (deadCodeEliminator != null) {
+			deadCodeEliminator.report(out);
+		}
+		if (dataflowOptimizer != null) {
+			dataflowOptimizer.report(out);
+		}
+		if (loopOptimizer != null) {
+			loopOptimizer.report(out);
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package balicompiler;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// the threads that compile: `BaliParser` keeps its own stack, but the AST
+// passes and the backends recurse once per nesting level of the program, so
+// they run on threads with a large (1 GiB) stack. The stack is only
+// committed as it is used, so this costs nothing for the usual programs.
+// The nesting depth is still bounded by the stack, since the passes and
+// the backends aren't iterative: it is only raised from the few thousand
+// levels of the default thread stack to over a million, and a program
+// nested deeper than the stack allows is reported as a compile error (see
+// `BaliCompilation`).
+//
+// Every entry point (the drivers, `BaliCompiler`, `balix86compiler.Compiler`,
+// `CompileServer`, `BatchCompiler` and the local fallback of `CompileClient`)
+// compiles on these threads. `BaliCompiler.compile()` and `Compiler.compile()`
+// start a new thread per call; the daemon and the batch mode reuse a pool
+public final class CompilerThreads {
+	public static final long STACK_SIZE = 1L << 30;
+
+	// the work of a driver
+	public interface Task {
+		void run() throws IOException;
+	}
+
+	private CompilerThreads() {
+	}
+
+	// runs `task` on a new thread and waits for it; what it throws is
+	// rethrown here, so the drivers fail the same way as on their own thread
+	public static void run(String name, Task task) throws IOException {
+		Throwable[] failure = new Throwable[1];
+		Thread thread = new Thread(null, () -> {
+			try {
+				task.run();
+			} catch (Throwable e) {
+				failure[0] = e;
+			}
+		}, name, STACK_SIZE);
+		thread.start();
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while compiling", e);
+		}
+
+		if (failure[0] instanceof IOException) {
+			throw (IOException) failure[0];
+		} else if (failure[0] instanceof RuntimeException) {
+			throw (RuntimeException) failure[0];
+		} else if (failure[0] instanceof Error) {
+			throw (Error) failure[0];
+		}
+	}
+
+	// for the pools of `BatchCompiler` and `CompileServer`
+	public static ThreadFactory factory(String name) {
+		AtomicInteger count = new AtomicInteger();
+		return task -> new Thread(null, task, name + "-" + count.incrementAndGet(), STACK_SIZE);
+	}
+}
@@ -0,0 +1,246 @@
+package balicompiler;
+
+// folds constant subexpressions (e.g., `(1 + 2)` becomes `3`) and propagates
+// the constants assigned to variables into the expressions that read them,
+// so that no backend ever generates code that computes a constant.
+//
+// The known constants are tracked per slot while walking each method's
+// statements in order; at the end of an `if` only the constants both
+// branches agree on are kept, and a `while` forgets every variable that is
+// assigned anywhere in it (the loop may run any number of times). When a
+// condition is constant, only the code that runs is followed
+public class ConstantFolder {
+	// the constant value of each slot of the current method, or null if
+	// the value isn't known at the current point
+	private Integer[] constants;
+
+	public void fold(Program program) {
+		for (MethodDecl method : program.methods) {
+			foldMethod(method);
+		}
+	}
+
+	private void foldMethod(MethodDecl method) {
+		// the parameters are unknown; a local without an initializer is `0`
+		constants = new Integer[method.numSlots()];
+		for (int i = 0; i < method.numLocals(); i++) {
+			Expr initializer = method.localInitializers.get(i);
+			int slot = method.numParameters + i;
+			if (initializer == null) {
+				constants[slot] = Integer.valueOf(0);
+			} else {
+				initializer = foldExpression(initializer);
+				method.localInitializers.set(i, initializer);
+				constants[slot] = getConstant(initializer);
+			}
+		}
+		foldStatement(method.body);
+	}
+
+	private void foldStatement(Stmt statement) {
+		switch (statement.kind) {
+			case BLOCK:
+				for (Stmt inner : ((Stmt.Block) statement).statements) {
+					foldStatement(inner);
+				}
+				break;
+			case ASSIGN:
+				Stmt.Assign assign = (Stmt.Assign) statement;
+				assign.value = foldExpression(assign.value);
+				constants[assign.slot] = getConstant(assign.value);
+				break;
+			case RETURN:
+				Stmt.Return returnStatement = (Stmt.Return) statement;
+				returnStatement.value = foldExpression(returnStatement.value);
+				break;
+			case IF:
+				Stmt.If ifStatement = (Stmt.If) statement;
+				ifStatement.condition = foldExpression(ifStatement.condition);
+				if (ifStatement.condition.kind == Expr.Kind.INT_LITERAL) {
+					// only the branch that is taken runs (and the other one
+					// is removed by `DeadCodeEliminator`)
+					boolean taken = ((Expr.IntLiteral) ifStatement.condition).value != 0;
+					foldStatement(taken ? ifStatement.thenStmt : ifStatement.elseStmt);
+					break;
+				}
+				Integer[] beforeBranches = constants.clone();
+				foldStatement(ifStatement.thenStmt);
+				Integer[] afterThen = constants;
+				constants = beforeBranches;
+				foldStatement(ifStatement.elseStmt);
+				for (int slot = 0; slot < constants.length; slot++) {
+					if (constants[slot] != null && !constants[slot].equals(afterThen[slot])) {
+						constants[slot] = null;
+					}
+				}
+				break;
+			case WHILE:
+				Stmt.While whileStatement = (Stmt.While) statement;
+				// what we know at the start of every iteration (and after
+				// the loop) is what isn't changed by the loop
+				Integer[] beforeLoop = constants.clone();
+				boolean[] assigned = new boolean[constants.length];
+				findAssignedSlots(whileStatement.body, assigned);
+				for (int slot = 0; slot < constants.length; slot++) {
+					if (assigned[slot]) {
+						constants[slot] = null;
+					}
+				}
+				Integer[] atLoopStart = constants.clone();
+				whileStatement.condition = foldExpression(whileStatement.condition);
+				if (isConstant(getConstant(whileStatement.condition), 0)) {
+					// the loop never runs
+					constants = beforeLoop;
+					break;
+				}
+				foldStatement(whileStatement.body);
+				constants = atLoopStart;
+				break;
+			case BREAK:
+				break;
+		}
+	}
+
+	// returns the folded expression, which may be a new node
+	private Expr foldExpression(Expr expression) {
+		switch (expression.kind) {
+			case VARIABLE:
+				Integer constant = constants[((Expr.Variable) expression).slot];
+				return constant == null ? expression : new Expr.IntLiteral(constant.intValue());
+			case NEGATE:
+			case NOT:
+				Expr.Unary unary = (Expr.Unary) expression;
+				unary.operand = foldExpression(unary.operand);
+				if (unary.operand.kind != Expr.Kind.INT_LITERAL) {
+					return unary;
+				}
+				int value = ((Expr.IntLiteral) unary.operand).value;
+				return new Expr.IntLiteral(unary.kind == Expr.Kind.NEGATE ? -value : toInt(value == 0));
+			case BINARY:
+				return foldBinaryExpression((Expr.Binary) expression);
+			case CALL:
+				Expr.Call call = (Expr.Call) expression;
+				for (int i = 0; i < call.arguments.length; i++) {
+					call.arguments[i] = foldExpression(call.arguments[i]);
+				}
+				return call;
+			default:
+				return expression;
+		}
+	}
+
+	private Expr foldBinaryExpression(Expr.Binary binary) {
+		binary.left = foldExpression(binary.left);
+		binary.right = foldExpression(binary.right);
+		Integer left = getConstant(binary.left);
+		Integer right = getConstant(binary.right);
+
+		if (left != null && right != null) {
+			int l = left.intValue();
+			int r = right.intValue();
+			switch (binary.operator) {
+				case '+':
+					return new Expr.IntLiteral(l + r);
+				case '-':
+					return new Expr.IntLiteral(l - r);
+				case '*':
+					return new Expr.IntLiteral(l * r);
+				case '/':
+					// dividing by `0` (and overflowing) is left to happen
+					// at run time, the way the target machine does it
+					if (r == 0 || (l == Integer.MIN_VALUE && r == -1)) {
+						return binary;
+					}
+					return new Expr.IntLiteral(l / r);
+				case '&':
+					return new Expr.IntLiteral(toInt(l != 0 && r != 0));
+				case '|':
+					return new Expr.IntLiteral(toInt(l != 0 || r != 0));
+				case '<':
+					return new Expr.IntLiteral(toInt(l < r));
+				case '>':
+					return new Expr.IntLiteral(toInt(l > r));
+				case '=':
+					return new Expr.IntLiteral(toInt(l == r));
+				default:
+					throw new Error("Unknown Bali operator `" + binary.operator + "`");
+			}
+		}
+
+		// the identities that keep the other operand as it is
+		switch (binary.operator) {
+			case '+':
+				if (isConstant(left, 0)) {
+					return binary.right;
+				}
+				if (isConstant(right, 0)) {
+					return binary.left;
+				}
+				break;
+			case '-':
+				if (isConstant(right, 0)) {
+					return binary.left;
+				}
+				if (isConstant(left, 0)) {
+					return new Expr.Unary(Expr.Kind.NEGATE, binary.right);
+				}
+				break;
+			case '*':
+				if (isConstant(left, 1)) {
+					return binary.right;
+				}
+				if (isConstant(right, 1)) {
+					return binary.left;
+				}
+				break;
+			case '/':
+				if (isConstant(right, 1)) {
+					return binary.left;
+				}
+				break;
+		}
+		return binary;
+	}
+
+	// ===============================
+	// the following are utility/helper functions
+	// ===============================
+	private static Integer getConstant(Expr expression) {
+		if (expression.kind != Expr.Kind.INT_LITERAL) {
+			return null;
+		}
+		return Integer.valueOf(((Expr.IntLiteral) expression).value);
+	}
+
+	private static boolean isConstant(Integer constant, int value) {
+		return constant != null && constant.intValue() == value;
+	}
+
+	private static int toInt(boolean value) {
+		return value ? 1 : 0;
+	}
+
+	// marks the slots assigned anywhere in `statement`
+	static void findAssignedSlots(Stmt statement, boolean[] assigned) {
+		switch (statement.kind) {
+			case BLOCK:
+				for (Stmt inner : ((Stmt.Block) statement).statements) {
+					findAssignedSlots(inner, assigned);
+				}
+				break;
+			case ASSIGN:
+				assigned[((Stmt.Assign) statement).slot] = true;
+				break;
+			case IF:
+				Stmt.If ifStatement = (Stmt.If) statement;
+				findAssignedSlots(ifStatement.thenStmt, assigned);
+				findAssignedSlots(ifStatement.elseStmt, assigned);
+				break;
+			case WHILE:
+				findAssignedSlots(((Stmt.While) statement).body, assigned);
+				break;
+			default:
+				break;
+		}
+	}
+}
@@ -0,0 +1,208 @@
+package balicompiler;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+
+// the basic blocks of a method, built over its AST: a block holds the
+// assignments and the `return`s that run in a row (the statements themselves,
+// so that what the analyses find can be applied to the AST) and ends with
+// the condition of an `if`/`while`, if it branches. The local initializers
+// aren't in the blocks; they run before `entry`.
+//
+// `computeLiveness()` finds the variables (by slot) that are live in and out
+// of each block, iterating over the blocks backwards until nothing changes
+// (the blocks are created in the order the code runs, so a pass handles
+// everything but the back edges of the loops). The liveness is the strong
+// one: an assignment to a variable that isn't live (and that can't fail)
+// doesn't make what it reads live, so that `findDeadAssignments()` finds the
+// chains of dead assignments at once, rather than one link per analysis
+public class ControlFlowGraph {
+	public static final class BasicBlock {
+		public final ArrayList<Stmt> statements = new ArrayList<Stmt>();
+		// evaluated at the end of the block; null if the block doesn't branch
+		public Expr condition;
+		public final ArrayList<BasicBlock> successors = new ArrayList<BasicBlock>(2);
+		// the statements (by index) that can fail, which run even if what
+		// they assign is dead
+		final BitSet failing = new BitSet();
+		public final BitSet liveIn = new BitSet();
+		public final BitSet liveOut = new BitSet();
+	}
+
+	public final ArrayList<BasicBlock> blocks = new ArrayList<BasicBlock>();
+	public final BasicBlock entry;
+
+	// while building: the block being filled and the blocks that end with
+	// a `break` of the innermost loop
+	private BasicBlock current;
+	private ArrayList<BasicBlock> loopBreaks;
+
+	public ControlFlowGraph(MethodDecl method) {
+		entry = newBlock();
+		current = entry;
+		add(method.body);
+	}
+
+	// ===============================
+	// building the blocks
+	// ===============================
+
+	private BasicBlock newBlock() {
+		BasicBlock block = new BasicBlock();
+		blocks.add(block);
+		return block;
+	}
+
+	private void add(Stmt statement) {
+		switch (statement.kind) {
+			case BLOCK:
+				for (Stmt inner : ((Stmt.Block) statement).statements) {
+					add(inner);
+				}
+				break;
+			case ASSIGN:
+				current.statements.add(statement);
+				break;
+			case RETURN:
+				current.statements.add(statement);
+				// what follows (if anything) can't be reached from here
+				current = newBlock();
+				break;
+			case BREAK:
+				loopBreaks.add(current);
+				current = newBlock();
+				break;
+			case IF:
+				Stmt.If ifStatement = (Stmt.If) statement;
+				BasicBlock branch = current;
+				branch.condition = ifStatement.condition;
+				BasicBlock[] armEnds = new BasicBlock[2];
+				Stmt[] arms = { ifStatement.thenStmt, ifStatement.elseStmt };
+				for (int i = 0; i < 2; i++) {
+					current = newBlock();
+					branch.successors.add(current);
+					add(arms[i]);
+					armEnds[i] = current;
+				}
+				current = newBlock();
+				armEnds[0].successors.add(current);
+				armEnds[1].successors.add(current);
+				break;
+			case WHILE:
+				Stmt.While whileStatement = (Stmt.While) statement;
+				BasicBlock head = newBlock();
+				current.successors.add(head);
+				head.condition = whileStatement.condition;
+				ArrayList<BasicBlock> outerLoopBreaks = loopBreaks;
+				loopBreaks = new ArrayList<BasicBlock>();
+				current = newBlock();
+				head.successors.add(current);
+				add(whileStatement.body);
+				current.successors.add(head);
+				BasicBlock exit = newBlock();
+				head.successors.add(exit);
+				for (BasicBlock breakBlock : loopBreaks) {
+					breakBlock.successors.add(exit);
+				}
+				loopBreaks = outerLoopBreaks;
+				current = exit;
+				break;
+		}
+	}
+
+	// ===============================
+	// liveness
+	// ===============================
+
+	public void computeLiveness() {
+		for (BasicBlock block : blocks) {
+			block.failing.clear();
+			block.liveIn.clear();
+			block.liveOut.clear();
+			for (int i = 0; i < block.statements.size(); i++) {
+				Stmt statement = block.statements.get(i);
+				if (statement.kind == Stmt.Kind.ASSIGN && Inliner.canFail(((Stmt.Assign) statement).value)) {
+					block.failing.set(i);
+				}
+			}
+		}
+
+		BitSet live = new BitSet();
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int i = blocks.size() - 1; i >= 0; i--) {
+				BasicBlock block = blocks.get(i);
+				for (BasicBlock successor : block.successors) {
+					block.liveOut.or(successor.liveIn);
+				}
+				live.clear();
+				live.or(block.liveOut);
+				transfer(block, live, null);
+				if (!live.equals(block.liveIn)) {
+					block.liveIn.or(live);
+					changed = true;
+				}
+			}
+		}
+	}
+
+	// the assignments whose variable isn't live afterwards and that can't
+	// fail, once the liveness is computed
+	public ArrayList<Stmt> findDeadAssignments() {
+		ArrayList<Stmt> dead = new ArrayList<Stmt>();
+		BitSet live = new BitSet();
+		for (BasicBlock block : blocks) {
+			live.clear();
+			live.or(block.liveOut);
+			transfer(block, live, dead);
+		}
+		return dead;
+	}
+
+	// turns `live` from the slots live out of `block` into the ones live in,
+	// adding the dead assignments to `dead` if it isn't null
+	private static void transfer(BasicBlock block, BitSet live, ArrayList<Stmt> dead) {
+		if (block.condition != null) {
+			addUses(block.condition, live);
+		}
+		for (int i = block.statements.size() - 1; i >= 0; i--) {
+			Stmt statement = block.statements.get(i);
+			if (statement.kind == Stmt.Kind.RETURN) {
+				addUses(((Stmt.Return) statement).value, live);
+				continue;
+			}
+			Stmt.Assign assign = (Stmt.Assign) statement;
+			if (live.get(assign.slot) || block.failing.get(i)) {
+				live.clear(assign.slot);
+				addUses(assign.value, live);
+			} else if (dead != null) {
+				dead.add(assign);
+			}
+		}
+	}
+
+	// marks the slots that `expression` reads
+	static void addUses(Expr expression, BitSet uses) {
+		switch (expression.kind) {
+			case VARIABLE:
+				uses.set(((Expr.Variable) expression).slot);
+				break;
+			case NEGATE:
+			case NOT:
+				addUses(((Expr.Unary) expression).operand, uses);
+				break;
+			case BINARY:
+				addUses(((Expr.Binary) expression).left, uses);
+				addUses(((Expr.Binary) expression).right, uses);
+				break;
+			case CALL:
+				for (Expr argument : ((Expr.Call) expression).arguments) {
+					addUses(argument, uses);
+				}
+				break;
+			default:
+				break;
+		}
+	}
+}
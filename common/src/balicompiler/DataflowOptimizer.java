@@ -0,0 +1,630 @@
+package balicompiler;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+// the optimizations that follow values across statements, run after
+// `DeadCodeEliminator` and `LoopOptimizer`:
+// - global value numbering: every value a method computes gets a number,
+//   so that two expressions with the same operator and operand numbers
+//   (e.g., `(a - 1)` twice with `a` unchanged in between) are known to be
+//   equal. The statements are visited in dominator order, which the
+//   structured control flow gives directly: in order, with the numbers of
+//   the slots assigned in only one branch of an `if` (or anywhere in a loop)
+//   replaced by new ones where the paths meet, like the phis of SSA form.
+//   An expression is then replaced by a variable that holds its value (copy
+//   propagation, and the reuse of `y` in `y = a - 1; ... (a - 1) * 2`), or
+//   by a new local (`cse.N`) assigned right before the statement that first
+//   computes it, if a later one recomputes it
+// - dead-store elimination: an assignment (or local initializer) whose
+//   variable isn't live afterwards, on the `ControlFlowGraph` of the method,
+//   is removed, e.g. the copies that the propagation left unused.
+//
+// Calls aren't numbered (each one is a new value), and nothing that can
+// fail (a division by `0`, a call that may not return) is removed or moved
+// before a call: the program still fails where it did
+public class DataflowOptimizer {
+	private int copiesPropagated = 0;
+	private int expressionsReused = 0;
+	private int deadStoresRemoved = 0;
+
+	// a computation of an expression (in `statement`) that the later ones
+	// can read from `slot` instead, once it is set
+	private static final class Occurrence {
+		final Expr expression;
+		final Stmt statement;
+		// the post-order of the computations, so that the ones computed
+		// before a statement come innermost first
+		final int order;
+		int slot = -1;
+
+		Occurrence(Expr expression, Stmt statement, int order) {
+			this.expression = expression;
+			this.statement = statement;
+			this.order = order;
+		}
+	}
+
+	// the tags of the unary operators in the keys of the expression numbers
+	private static final char NEGATE = 1, NOT = 2;
+
+	private MethodDecl method;
+	private int numTemps;
+	// the value number of each slot at the current point
+	private int[] values;
+	// by value number: the slot it was first assigned to (or -1), which
+	// still holds it while the slot's number is the same, and the first
+	// computation of it that dominates the current point (or null)
+	private int[] holders = new int[64];
+	private Occurrence[] available = new Occurrence[64];
+	private int numNumbers;
+	private final BitSet literalNumbers = new BitSet();
+	private final HashMap<Integer, Integer> literalNumbersByValue = new HashMap<Integer, Integer>();
+	// the numbers of the expressions, in an open-addressing hash table of
+	// their keys (the operator and the operand numbers; 0 for an empty
+	// bucket) that is kept at most half full
+	private long[] expressionKeys = new long[256];
+	private int[] expressionNumbers = new int[256];
+	private int numExpressions;
+	// the numbers made available, to forget them at the end of a branch or
+	// a loop
+	private int[] availableLog = new int[64];
+	private int availableLogSize;
+	private int numOccurrences;
+
+	// the statement being numbered, whether the expressions it computes
+	// first can be computed right before it and whether it has a call
+	private Stmt statement;
+	private boolean canMoveBefore;
+	private boolean hasCall;
+	// the nodes of its expression in post-order: their value numbers, the
+	// sizes of their subtrees (to find the operands of a node from its
+	// index) and whether they can fail
+	private int[] nodeNumbers = new int[64];
+	private int[] nodeSizes = new int[64];
+	private boolean[] nodeFailing = new boolean[64];
+	private int numNodes;
+	// > 0 in the right operand of an `&` or a `|`, which the backends may
+	// skip
+	private int conditional;
+
+	// what the numbering found, applied to the AST afterwards: the
+	// expressions to replace with the `slot` of an occurrence, and the
+	// occurrences to compute before each statement
+	private final IdentityHashMap<Expr, Occurrence> replacements = new IdentityHashMap<Expr, Occurrence>();
+	private final IdentityHashMap<Stmt, ArrayList<Occurrence>> computedBefore = new IdentityHashMap<Stmt, ArrayList<Occurrence>>();
+
+	public void optimize(Program program) {
+		for (MethodDecl method : program.methods) {
+			this.method = method;
+			numberMethod(method);
+			method.body = (Stmt.Block) rewrite(method.body);
+			eliminateDeadStores(method);
+		}
+		this.method = null;
+	}
+
+	// adds the counts of `other` (e.g., to total the counts of the files
+	// compiled in parallel)
+	public synchronized void merge(DataflowOptimizer other) {
+		copiesPropagated += other.copiesPropagated;
+		expressionsReused += other.expressionsReused;
+		deadStoresRemoved += other.deadStoresRemoved;
+	}
+
+	public void report(PrintStream out) {
+		out.println("Dataflow:");
+		out.printf("  %-20s replaced %6d variable reads%n", "copy propagation", copiesPropagated);
+		out.printf("  %-20s replaced %6d expressions%n", "value numbering", expressionsReused);
+		out.printf("  %-20s removed %6d assignments%n", "dead stores", deadStoresRemoved);
+	}
+
+	// ===============================
+	// value numbering
+	// ===============================
+
+	private void numberMethod(MethodDecl method) {
+		numTemps = 0;
+		Arrays.fill(available, 0, numNumbers, null);
+		numNumbers = 0;
+		literalNumbers.clear();
+		literalNumbersByValue.clear();
+		if (numExpressions > 0) {
+			Arrays.fill(expressionKeys, 0);
+			numExpressions = 0;
+		}
+		availableLogSize = 0;
+		numOccurrences = 0;
+		replacements.clear();
+		computedBefore.clear();
+
+		values = new int[method.numSlots()];
+		for (int slot = 0; slot < method.numParameters; slot++) {
+			values[slot] = newNumber(slot);
+		}
+		// the initializers are numbered (so that the locals can be reused)
+		// but left as they are
+		for (int i = 0; i < method.numLocals(); i++) {
+			Expr initializer = method.localInitializers.get(i);
+			int slot = method.numParameters + i;
+			numNodes = 0;
+			if (initializer == null) {
+				values[slot] = literalNumber(0);
+			} else {
+				// numbered before `nodeNumbers` is read, as it can grow
+				int root = number(initializer);
+				values[slot] = nodeNumbers[root];
+			}
+			if (holderOf(values[slot]) < 0) {
+				holders[values[slot]] = slot;
+			}
+		}
+		numberStatement(method.body);
+	}
+
+	private void numberStatement(Stmt statement) {
+		switch (statement.kind) {
+			case BLOCK:
+				for (Stmt inner : ((Stmt.Block) statement).statements) {
+					numberStatement(inner);
+				}
+				break;
+			case ASSIGN:
+				Stmt.Assign assign = (Stmt.Assign) statement;
+				int value = numberExpression(statement, assign.value, true);
+				values[assign.slot] = value;
+				if (holderOf(value) < 0) {
+					holders[value] = assign.slot;
+				}
+				break;
+			case RETURN:
+				numberExpression(statement, ((Stmt.Return) statement).value, true);
+				break;
+			case IF:
+				Stmt.If ifStatement = (Stmt.If) statement;
+				numberExpression(statement, ifStatement.condition, true);
+				int mark = availableLogSize;
+				int[] beforeBranches = values.clone();
+				numberStatement(ifStatement.thenStmt);
+				forgetAvailable(mark);
+				int[] afterThen = values;
+				values = beforeBranches;
+				numberStatement(ifStatement.elseStmt);
+				forgetAvailable(mark);
+				// where the branches meet, a slot keeps its number only if
+				// both agree on it
+				for (int slot = 0; slot < values.length; slot++) {
+					if (values[slot] != afterThen[slot]) {
+						values[slot] = newNumber(slot);
+					}
+				}
+				break;
+			case WHILE:
+				Stmt.While whileStatement = (Stmt.While) statement;
+				// the slots assigned in the loop get a new value at the start
+				// of every iteration, and another one after the loop (which
+				// may be left with a `break`)
+				boolean[] assigned = new boolean[values.length];
+				ConstantFolder.findAssignedSlots(whileStatement.body, assigned);
+				renumber(assigned);
+				mark = availableLogSize;
+				// the condition is evaluated again every iteration, so
+				// nothing can be computed before it
+				numberExpression(statement, whileStatement.condition, false);
+				numberStatement(whileStatement.body);
+				forgetAvailable(mark);
+				renumber(assigned);
+				break;
+			case BREAK:
+				break;
+		}
+	}
+
+	private void renumber(boolean[] assigned) {
+		for (int slot = 0; slot < values.length; slot++) {
+			if (assigned[slot]) {
+				values[slot] = newNumber(slot);
+			}
+		}
+	}
+
+	private void forgetAvailable(int mark) {
+		while (availableLogSize > mark) {
+			available[availableLog[--availableLogSize]] = null;
+		}
+	}
+
+	// returns the value number of `expression`, the top-level expression of
+	// `statement`
+	private int numberExpression(Stmt statement, Expr expression, boolean canMoveBefore) {
+		this.statement = statement;
+		this.canMoveBefore = canMoveBefore;
+		hasCall = false;
+		numNodes = 0;
+		int root = number(expression);
+		visit(expression, root);
+		return nodeNumbers[root];
+	}
+
+	// numbers `expression` and its subexpressions; returns its index in
+	// the `node...` arrays
+	private int number(Expr expression) {
+		int number;
+		int size = 1;
+		boolean canFail = false;
+		switch (expression.kind) {
+			case INT_LITERAL:
+				number = literalNumber(((Expr.IntLiteral) expression).value);
+				break;
+			case VARIABLE:
+				number = values[((Expr.Variable) expression).slot];
+				break;
+			case NEGATE:
+			case NOT:
+				int operand = number(((Expr.Unary) expression).operand);
+				number = expressionNumber(expression.kind == Expr.Kind.NEGATE ? NEGATE : NOT, nodeNumbers[operand], 0);
+				size += nodeSizes[operand];
+				canFail = nodeFailing[operand];
+				break;
+			case BINARY:
+				Expr.Binary binary = (Expr.Binary) expression;
+				int leftNode = number(binary.left);
+				int rightNode = number(binary.right);
+				int left = nodeNumbers[leftNode];
+				int right = nodeNumbers[rightNode];
+				char operator = binary.operator;
+				// the same value whatever the order of the operands
+				if (operator == '>') {
+					operator = '<';
+					int swap = left;
+					left = right;
+					right = swap;
+				} else if ((operator == '+' || operator == '*' || operator == '&' || operator == '|' || operator == '=') && left > right) {
+					int swap = left;
+					left = right;
+					right = swap;
+				}
+				number = expressionNumber(operator, left, right);
+				size += nodeSizes[leftNode] + nodeSizes[rightNode];
+				canFail = operator == '/' || nodeFailing[leftNode] || nodeFailing[rightNode];
+				break;
+			default:
+				for (Expr argument : ((Expr.Call) expression).arguments) {
+					int argumentNode = number(argument);
+					size += nodeSizes[argumentNode];
+				}
+				// a call is a new value every time
+				number = newNumber(-1);
+				hasCall = true;
+				canFail = true;
+				break;
+		}
+		if (numNodes == nodeNumbers.length) {
+			nodeNumbers = Arrays.copyOf(nodeNumbers, numNodes * 2);
+			nodeSizes = Arrays.copyOf(nodeSizes, numNodes * 2);
+			nodeFailing = Arrays.copyOf(nodeFailing, numNodes * 2);
+		}
+		nodeNumbers[numNodes] = number;
+		nodeSizes[numNodes] = size;
+		nodeFailing[numNodes] = canFail;
+		return numNodes++;
+	}
+
+	// decides what to replace in `expression` (`node` in the `node...`
+	// arrays), from the outside in: an expression whose value is already at
+	// hand isn't looked into
+	private void visit(Expr expression, int node) {
+		int number = nodeNumbers[node];
+		if (expression.kind == Expr.Kind.INT_LITERAL || literalNumbers.get(number)) {
+			// constants are left to `ConstantFolder`
+			return;
+		}
+		int holder = holderOf(number);
+		if (expression.kind == Expr.Kind.VARIABLE) {
+			if (holder >= 0 && holder != ((Expr.Variable) expression).slot) {
+				replace(expression, holder);
+				copiesPropagated++;
+			}
+			return;
+		}
+		if (holder >= 0) {
+			replace(expression, holder);
+			expressionsReused++;
+			return;
+		}
+		Occurrence first = available[number];
+		if (first != null) {
+			if (first.slot < 0) {
+				// the first computation now goes into a new local
+				first.slot = newTemp();
+				replacements.put(first.expression, first);
+				computedBefore.computeIfAbsent(first.statement, key -> new ArrayList<Occurrence>(1)).add(first);
+			}
+			replacements.put(expression, first);
+			expressionsReused++;
+			return;
+		}
+
+		// in post-order, the last operand comes right before its node and
+		// each operand right before the subtree of the next one
+		switch (expression.kind) {
+			case NEGATE:
+			case NOT:
+				visit(((Expr.Unary) expression).operand, node - 1);
+				break;
+			case BINARY:
+				Expr.Binary binary = (Expr.Binary) expression;
+				int rightNode = node - 1;
+				visit(binary.left, rightNode - nodeSizes[rightNode]);
+				boolean shortCircuit = binary.operator == '&' || binary.operator == '|';
+				if (shortCircuit) {
+					conditional++;
+				}
+				visit(binary.right, rightNode);
+				if (shortCircuit) {
+					conditional--;
+				}
+				break;
+			case CALL:
+				Expr[] arguments = ((Expr.Call) expression).arguments;
+				int[] argumentNodes = new int[arguments.length];
+				int argumentNode = node - 1;
+				for (int i = arguments.length - 1; i >= 0; i--) {
+					argumentNodes[i] = argumentNode;
+					argumentNode -= nodeSizes[argumentNode];
+				}
+				for (int i = 0; i < arguments.length; i++) {
+					visit(arguments[i], argumentNodes[i]);
+				}
+				return;
+			default:
+				break;
+		}
+
+		// this computation can be moved right before the statement if it
+		// always runs and if moving it doesn't make it fail before a call
+		if (canMoveBefore && conditional == 0 && !(hasCall && nodeFailing[node])) {
+			available[number] = new Occurrence(expression, statement, numOccurrences++);
+			if (availableLogSize == availableLog.length) {
+				availableLog = Arrays.copyOf(availableLog, availableLogSize * 2);
+			}
+			availableLog[availableLogSize++] = number;
+		}
+	}
+
+	private void replace(Expr expression, int slot) {
+		Occurrence holder = new Occurrence(expression, statement, -1);
+		holder.slot = slot;
+		replacements.put(expression, holder);
+	}
+
+	// the slot that holds the value `number`, or -1
+	private int holderOf(int number) {
+		int holder = holders[number];
+		return holder >= 0 && values[holder] == number ? holder : -1;
+	}
+
+	// `holder` is the slot that gets the new value, or -1
+	private int newNumber(int holder) {
+		if (numNumbers == holders.length) {
+			holders = Arrays.copyOf(holders, numNumbers * 2);
+			available = Arrays.copyOf(available, numNumbers * 2);
+		}
+		holders[numNumbers] = holder;
+		return numNumbers++;
+	}
+
+	private int literalNumber(int value) {
+		Integer number = literalNumbersByValue.get(value);
+		if (number == null) {
+			number = newNumber(-1);
+			literalNumbersByValue.put(value, number);
+			literalNumbers.set(number);
+		}
+		return number;
+	}
+
+	private int expressionNumber(char operator, int left, int right) {
+		long key = ((long) operator << 56) | ((long) left << 28) | right;
+		int mask = expressionKeys.length - 1;
+		int b = hash(key) & mask;
+		for (; expressionKeys[b] != 0; b = (b + 1) & mask) {
+			if (expressionKeys[b] == key) {
+				return expressionNumbers[b];
+			}
+		}
+		int number = newNumber(-1);
+		expressionKeys[b] = key;
+		expressionNumbers[b] = number;
+		if (++numExpressions * 2 > expressionKeys.length) {
+			rehash();
+		}
+		return number;
+	}
+
+	private void rehash() {
+		long[] keys = expressionKeys;
+		int[] numbers = expressionNumbers;
+		expressionKeys = new long[keys.length * 2];
+		expressionNumbers = new int[keys.length * 2];
+		int mask = expressionKeys.length - 1;
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] != 0) {
+				int b = hash(keys[i]) & mask;
+				while (expressionKeys[b] != 0) {
+					b = (b + 1) & mask;
+				}
+				expressionKeys[b] = keys[i];
+				expressionNumbers[b] = numbers[i];
+			}
+		}
+	}
+
+	private static int hash(long key) {
+		int hash = (int) (key ^ (key >>> 28) ^ (key >>> 56)) * 0x9E3779B9;
+		return hash ^ (hash >>> 16);
+	}
+
+	private int newTemp() {
+		int slot = method.numSlots();
+		method.localInitializers.add(null);
+		method.slotNames.add("cse." + numTemps++);
+		return slot;
+	}
+
+	// ===============================
+	// applying the replacements
+	// ===============================
+
+	// returns the statement to use instead of `statement`
+	private Stmt rewrite(Stmt statement) {
+		if (statement.kind == Stmt.Kind.BLOCK) {
+			Stmt.Block block = (Stmt.Block) statement;
+			ArrayList<Stmt> statements = new ArrayList<Stmt>(block.statements.size());
+			for (Stmt inner : block.statements) {
+				addRewritten(inner, statements);
+			}
+			block.statements = statements;
+			return block;
+		}
+		ArrayList<Stmt> statements = new ArrayList<Stmt>(1);
+		addRewritten(statement, statements);
+		return statements.size() == 1 ? statements.get(0) : new Stmt.Block(statements);
+	}
+
+	private void addRewritten(Stmt statement, ArrayList<Stmt> statements) {
+		ArrayList<Occurrence> computed = computedBefore.get(statement);
+		if (computed != null) {
+			computed.sort((a, b) -> Integer.compare(a.order, b.order));
+			for (Occurrence occurrence : computed) {
+				rewriteOperands(occurrence.expression);
+				statements.add(new Stmt.Assign(occurrence.slot, occurrence.expression));
+			}
+		}
+		switch (statement.kind) {
+			case BLOCK:
+				rewrite(statement);
+				break;
+			case ASSIGN:
+				Stmt.Assign assign = (Stmt.Assign) statement;
+				assign.value = rewrite(assign.value);
+				break;
+			case RETURN:
+				Stmt.Return returnStatement = (Stmt.Return) statement;
+				returnStatement.value = rewrite(returnStatement.value);
+				break;
+			case IF:
+				Stmt.If ifStatement = (Stmt.If) statement;
+				ifStatement.condition = rewrite(ifStatement.condition);
+				ifStatement.thenStmt = rewrite(ifStatement.thenStmt);
+				ifStatement.elseStmt = rewrite(ifStatement.elseStmt);
+				break;
+			case WHILE:
+				Stmt.While whileStatement = (Stmt.While) statement;
+				whileStatement.condition = rewrite(whileStatement.condition);
+				whileStatement.body = rewrite(whileStatement.body);
+				break;
+			case BREAK:
+				break;
+		}
+		statements.add(statement);
+	}
+
+	// returns the expression to use instead of `expression`
+	private Expr rewrite(Expr expression) {
+		Occurrence replacement = replacements.get(expression);
+		if (replacement != null) {
+			return new Expr.Variable(replacement.slot);
+		}
+		rewriteOperands(expression);
+		return expression;
+	}
+
+	private void rewriteOperands(Expr expression) {
+		switch (expression.kind) {
+			case NEGATE:
+			case NOT:
+				Expr.Unary unary = (Expr.Unary) expression;
+				unary.operand = rewrite(unary.operand);
+				break;
+			case BINARY:
+				Expr.Binary binary = (Expr.Binary) expression;
+				binary.left = rewrite(binary.left);
+				binary.right = rewrite(binary.right);
+				break;
+			case CALL:
+				Expr[] arguments = ((Expr.Call) expression).arguments;
+				for (int i = 0; i < arguments.length; i++) {
+					arguments[i] = rewrite(arguments[i]);
+				}
+				break;
+			default:
+				break;
+		}
+	}
+
+	// ===============================
+	// dead stores
+	// ===============================
+
+	private void eliminateDeadStores(MethodDecl method) {
+		ControlFlowGraph graph = new ControlFlowGraph(method);
+		graph.computeLiveness();
+		ArrayList<Stmt> deadStores = graph.findDeadAssignments();
+		deadStoresRemoved += deadStores.size();
+		if (!deadStores.isEmpty()) {
+			Set<Stmt> dead = Collections.newSetFromMap(new IdentityHashMap<Stmt, Boolean>());
+			dead.addAll(deadStores);
+			removeStatements(method.body, dead);
+		}
+
+		// the initializers run before the entry block; a local that is dead
+		// there starts at `0` instead
+		BitSet live = (BitSet) graph.entry.liveIn.clone();
+		for (int i = method.numLocals() - 1; i >= 0; i--) {
+			int slot = method.numParameters + i;
+			Expr initializer = method.localInitializers.get(i);
+			if (initializer != null && !live.get(slot) && !Inliner.canFail(initializer)) {
+				method.localInitializers.set(i, null);
+				deadStoresRemoved++;
+				initializer = null;
+			}
+			live.clear(slot);
+			if (initializer != null) {
+				ControlFlowGraph.addUses(initializer, live);
+			}
+		}
+	}
+
+	// returns the statement to keep in place of `statement`
+	private static Stmt removeStatements(Stmt statement, Set<Stmt> dead) {
+		switch (statement.kind) {
+			case BLOCK:
+				ArrayList<Stmt> statements = ((Stmt.Block) statement).statements;
+				statements.removeIf(dead::contains);
+				for (int i = 0; i < statements.size(); i++) {
+					statements.set(i, removeStatements(statements.get(i), dead));
+				}
+				return statement;
+			case ASSIGN:
+				return dead.contains(statement) ? new Stmt.Block(new ArrayList<Stmt>(0)) : statement;
+			case IF:
+				Stmt.If ifStatement = (Stmt.If) statement;
+				ifStatement.thenStmt = removeStatements(ifStatement.thenStmt, dead);
+				ifStatement.elseStmt = removeStatements(ifStatement.elseStmt, dead);
+				return statement;
+			case WHILE:
+				Stmt.While whileStatement = (Stmt.While) statement;
+				whileStatement.body = removeStatements(whileStatement.body, dead);
+				return statement;
+			default:
+				return statement;
+		}
+	}
+}
@@ -0,0 +1,127 @@
+package balicompiler;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+
+// removes the statements that can never run, so that no backend generates
+// code (or labels) for them: what follows a statement that never completes
+// in the same block (a `return`, a `break`, an `if` whose branches both
+// return, a `while (true)` without a `break`...), the branch of an `if`
+// that its constant condition rules out and `while (false)` loops. It runs
+// after `ConstantFolder`, which turns the conditions that are known into
+// literals
+public class DeadCodeEliminator {
+	// what was removed, in statements (not counting the blocks)
+	private int unreachableRemoved = 0;
+	private int constantRemoved = 0;
+	// whether the statement that was just visited can complete normally
+	private boolean completes;
+	// whether a `break` of the innermost loop was kept
+	private boolean loopBreaks;
+
+	public void eliminate(Program program) {
+		for (MethodDecl method : program.methods) {
+			eliminate(method.body);
+		}
+	}
+
+	// adds the counts of `other` (e.g., to total the counts of the files
+	// compiled in parallel)
+	public synchronized void merge(DeadCodeEliminator other) {
+		unreachableRemoved += other.unreachableRemoved;
+		constantRemoved += other.constantRemoved;
+	}
+
+	public void report(PrintStream out) {
+		out.println("Dead code:");
+		out.printf("  %-20s removed %6d statements%n", "unreachable", unreachableRemoved);
+		out.printf("  %-20s removed %6d statements%n", "constant conditions", constantRemoved);
+		out.printf("  %-20s removed %6d statements%n", "total", unreachableRemoved + constantRemoved);
+	}
+
+	// returns the statement to keep in place of `statement` (a block stays
+	// the same block) and sets `completes`
+	private Stmt eliminate(Stmt statement) {
+		switch (statement.kind) {
+			case BLOCK:
+				ArrayList<Stmt> statements = ((Stmt.Block) statement).statements;
+				int kept = 0;
+				boolean blockCompletes = true;
+				for (Stmt inner : statements) {
+					if (!blockCompletes) {
+						unreachableRemoved += countStatements(inner);
+						continue;
+					}
+					inner = eliminate(inner);
+					blockCompletes = completes;
+					// what's left of an `if (false) ...` or a `while (false)`
+					if (!isEmpty(inner)) {
+						statements.set(kept++, inner);
+					}
+				}
+				statements.subList(kept, statements.size()).clear();
+				completes = blockCompletes;
+				return statement;
+			case RETURN:
+				completes = false;
+				return statement;
+			case BREAK:
+				loopBreaks = true;
+				completes = false;
+				return statement;
+			case IF:
+				Stmt.If ifStatement = (Stmt.If) statement;
+				if (ifStatement.condition.kind == Expr.Kind.INT_LITERAL) {
+					boolean taken = ((Expr.IntLiteral) ifStatement.condition).value != 0;
+					constantRemoved += countStatements(taken ? ifStatement.elseStmt : ifStatement.thenStmt);
+					return eliminate(taken ? ifStatement.thenStmt : ifStatement.elseStmt);
+				}
+				ifStatement.thenStmt = eliminate(ifStatement.thenStmt);
+				boolean thenCompletes = completes;
+				ifStatement.elseStmt = eliminate(ifStatement.elseStmt);
+				completes = completes || thenCompletes;
+				return statement;
+			case WHILE:
+				Stmt.While whileStatement = (Stmt.While) statement;
+				boolean constantCondition = whileStatement.condition.kind == Expr.Kind.INT_LITERAL;
+				if (constantCondition && ((Expr.IntLiteral) whileStatement.condition).value == 0) {
+					constantRemoved += countStatements(statement);
+					completes = true;
+					return new Stmt.Block(new ArrayList<Stmt>(0));
+				}
+				boolean outerLoopBreaks = loopBreaks;
+				loopBreaks = false;
+				whileStatement.body = eliminate(whileStatement.body);
+				// a loop whose condition is always true only ends with a
+				// `break`
+				completes = !constantCondition || loopBreaks;
+				loopBreaks = outerLoopBreaks;
+				return statement;
+			default:
+				completes = true;
+				return statement;
+		}
+	}
+
+	private static boolean isEmpty(Stmt statement) {
+		return statement.kind == Stmt.Kind.BLOCK && ((Stmt.Block) statement).statements.isEmpty();
+	}
+
+	private static int countStatements(Stmt statement) {
+		switch (statement.kind) {
+			case BLOCK:
+				int count = 0;
+				for (Stmt inner : ((Stmt.Block) statement).statements) {
+					count += countStatements(inner);
+				}
+				return count;
+			case IF:
+				Stmt.If ifStatement = (Stmt.If) statement;
+				return 1 + countStatements(ifStatement.thenStmt) + countStatements(ifStatement.elseStmt);
+			case WHILE:
+				return 1 + countStatements(((Stmt.While) statement).body);
+			default:
+				return 1;
+		}
+	}
+}
@@ -0,0 +1,128 @@
+package balicompiler;
+
+import balicompiler.jvm.JvmBackend;
+import balicompiler.sam.SamBackend;
+import balicompiler.sam.SamPeephole;
+import balicompiler.x86.X86Backend;
+import balicompiler.x86.X86Peephole;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+
+// the command line of both compilers (`BaliCompilerDriver` of hw1 and
+// `balix86compiler.CompilerDriver` of hw2), which only differ by their
+// target: the `--server`, `--run` and `--batch` modes, and compiling one
+// file to the driver's target (and, given a third file name, to the other
+// target from the same parse)
+public final class Driver {
+	private Driver() {
+	}
+
+	// `target` is the one of the driver, which `--batch` defaults to
+	public static void main(String[] args, Target target) throws IOException {
+		// the AST passes and the backends recurse once per nesting level of
+		// the program, so the compiler runs on a thread with a large stack
+		CompilerThreads.run("bali-compiler", () -> compile(args, target));
+	}
+
+	// writes the code that `compilation` gets for `target`, with the
+	// peephole optimizer of `options`, and adds the optimizer to `stats`
+	// (the drivers, `BatchCompiler` and `CompileServer` generate with this)
+	static void generate(BaliCompilation compilation, Target target, CompilerOptions options, Writer writer,
+			MethodCache cache, CompilerStats stats) {
+		if (target == Target.SAM) {
+			SamPeephole peephole = options.peephole ? new SamPeephole(options.disabledRules) : null;
+			compilation.generate(new SamBackend(peephole), writer, cache);
+			stats.add(peephole);
+		} else {
+			X86Peephole peephole = options.peephole ? new X86Peephole(options.disabledRules) : null;
+			compilation.generate(new X86Backend(peephole), writer, cache);
+			stats.add(peephole);
+		}
+	}
+
+	private static void compile(String[] args, Target target) throws IOException {
+		CompilerOptions options;
+		try {
+			options = CompilerOptions.parse(args);
+			HashSet<String> knownRules = SamPeephole.getRuleNames();
+			knownRules.addAll(X86Peephole.getRuleNames());
+			options.checkRuleNames(knownRules);
+			if (options.server) {
+				options.checkServerFlags();
+			}
+		} catch (IllegalArgumentException e) {
+			System.out.println(e.getMessage() + "\n" + CompilerOptions.USAGE);
+			return;
+		}
+		if (options.server) {
+			new CompileServer(options.getSocket(), options.jobs, options.createCache()).run();
+			return;
+		}
+		if (options.run) {
+			if (options.fileNames.size() != 1) {
+				System.out.println("`--run` requires exactly 1 input parameter, the Bali file name.\n" + CompilerOptions.USAGE);
+				return;
+			}
+			BaliCompilation compilation = new BaliCompilation(options.fileNames.get(0), System.out, options);
+			if (compilation.getProgram() == null) {
+				System.exit(1);
+			}
+			System.exit(JvmBackend.run(compilation.getProgram(), System.out, System.err));
+		}
+		if (options.batch) {
+			int failures = new BatchCompiler(options, options.getTargets(target)).run(System.out);
+			if (failures > 0) {
+				System.exit(1);
+			}
+			return;
+		}
+
+		Target otherTarget = target == Target.SAM ? Target.X86 : Target.SAM;
+		if (options.fileNames.size() != 2 && options.fileNames.size() != 3) {
+			System.out.println("This compiler requires 2 input parameters; first one is the Bali file name, and the second one the target "
+					+ getFileKind(target) + " file name. An optional third one is a target " + getFileKind(otherTarget)
+					+ " file name, to also output " + getCodeKind(otherTarget) + " code from the same parse.\n"
+					+ CompilerOptions.USAGE);
+			return;
+		}
+
+		// the file is parsed once; the code is streamed into the file(s) as
+		// it is generated
+		BaliCompilation compilation = new BaliCompilation(options.fileNames.get(0), System.out, options);
+		MethodCache cache = options.createCache();
+		CompilerStats stats = new CompilerStats(options);
+		stats.add(compilation);
+		stats.setCache(cache);
+		try (Writer writer = Files.newBufferedWriter(Path.of(options.fileNames.get(1)))) {
+			generate(compilation, target, options, writer, cache, stats);
+		}
+		if (options.fileNames.size() == 3) {
+			try (Writer writer = Files.newBufferedWriter(Path.of(options.fileNames.get(2)))) {
+				generate(compilation, otherTarget, options, writer, cache, stats);
+			}
+		}
+		if (options.stats) {
+			stats.report(System.err);
+		}
+		if (options.callGraphFileName != null && compilation.getCallGraph() != null) {
+			compilation.getCallGraph().write(Path.of(options.callGraphFileName));
+		}
+	}
+
+	// ===============================
+	// the following are utility/helper functions
+	// ===============================
+
+	// how the usage names the output file of `target`
+	private static String getFileKind(Target target) {
+		return target == Target.SAM ? "SaM" : "NASM";
+	}
+
+	private static String getCodeKind(Target target) {
+		return target == Target.SAM ? "SaM" : "x86";
+	}
+}
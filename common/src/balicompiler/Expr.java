@@ -0,0 +1,78 @@
+package balicompiler;
+
+// the expression nodes of the Bali AST. Every node records its `kind` so
+// that the passes and backends can dispatch with a plain `switch` and then
+// cast to the matching subclass.
+//
+// Bali only has `int`s, so `true`/`false` are parsed into `IntLiteral`s
+// (`1`/`0`) and parenthesized expressions don't get their own node
+public abstract class Expr {
+	public enum Kind {
+		INT_LITERAL, VARIABLE, NEGATE, NOT, BINARY, CALL
+	}
+
+	public final Kind kind;
+
+	protected Expr(Kind kind) {
+		this.kind = kind;
+	}
+
+	public static final class IntLiteral extends Expr {
+		public int value;
+
+		public IntLiteral(int value) {
+			super(Kind.INT_LITERAL);
+			this.value = value;
+		}
+	}
+
+	// a reference to a parameter or a local variable; `slot` indexes the
+	// method's variables (parameters first, then locals)
+	public static final class Variable extends Expr {
+		public int slot;
+
+		public Variable(int slot) {
+			super(Kind.VARIABLE);
+			this.slot = slot;
+		}
+	}
+
+	// `(-e)` (kind `NEGATE`) or `(!e)` (kind `NOT`)
+	public static final class Unary extends Expr {
+		public Expr operand;
+
+		public Unary(Kind kind, Expr operand) {
+			super(kind);
+			this.operand = operand;
+		}
+	}
+
+	// `operator` is the Bali operator character (`+`, `-`, `*`, `/`, `&`,
+	// `|`, `<`, `>` or `=`)
+	public static final class Binary extends Expr {
+		public char operator;
+		public Expr left;
+		public Expr right;
+
+		public Binary(char operator, Expr left, Expr right) {
+			super(Kind.BINARY);
+			this.operator = operator;
+			this.left = left;
+			this.right = right;
+		}
+	}
+
+	public static final class Call extends Expr {
+		public MethodInfo callee;
+		public Expr[] arguments;
+		// remembered for error messages
+		public int line;
+
+		public Call(MethodInfo callee, Expr[] arguments, int line) {
+			super(Kind.CALL);
+			this.callee = callee;
+			this.arguments = arguments;
+			this.line = line;
+		}
+	}
+}
@@ -0,0 +1,806 @@
+package balicompiler;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+
+// replaces calls with the body of the callee, to save the frame setup of
+// the calls to small helpers and to methods called from a single place.
+//
+// A callee is inlined if it isn't (mutually) recursive and either its size
+// is at most `sizeLimit` AST nodes or it has a single call site. Every
+// inlined copy is charged to the budget, a percentage of the size of the
+// whole program, so that the code can only grow that much. The methods are
+// processed callees first, so a callee's calls are already inlined when it
+// is inlined itself.
+//
+// There are two ways to inline:
+// - a callee whose body is only `return e;` (and that has no locals) is
+//   substituted into any expression, with the actuals in place of the
+//   parameters. An actual that isn't a variable or a literal must be used
+//   exactly once (or not at all if it can't fail), so that it's never
+//   evaluated twice
+// - any other callee is inlined at a statement `x = f(...);` or
+//   `return f(...);` (calls deeper in an assigned or returned value are
+//   first moved out to such statements, see `hoistCalls()`): its parameters and locals get new slots in the
+//   caller, which are assigned the actuals and the initial values, and then
+//   comes the body with its `return e`s turned into `x = e` (or left as
+//   they are for `return f(...)`). If some `return` isn't the last thing
+//   the body does, the body is wrapped in `while (true) { ... break; }` and
+//   those become `{ x = e; break; }`; a `return` inside a loop of the
+//   callee can't be handled this way, so such callees aren't inlined there
+public class Inliner {
+	// percent of the size of the program
+	public static final int DEFAULT_BUDGET = 100;
+	public static final int DEFAULT_SIZE_LIMIT = 16;
+
+	private final int budgetPercent;
+	private final int sizeLimit;
+	// the number of AST nodes that can still be added
+	private int budget;
+	private int inlinedCount = 0;
+
+	// the methods that can reach themselves through calls
+	private final HashSet<MethodInfo> recursive = new HashSet<MethodInfo>();
+	// the method being inlined into
+	private MethodDecl method;
+
+	public Inliner(int budgetPercent, int sizeLimit) {
+		this.budgetPercent = budgetPercent;
+		this.sizeLimit = sizeLimit;
+	}
+
+	public void inline(Program program) {
+		int programSize = 0;
+		for (MethodDecl method : program.methods) {
+			method.info.size = measure(method);
+			programSize += method.info.size;
+			countCallSites(method);
+		}
+		budget = (int) ((long) programSize * budgetPercent / 100);
+		if (budget <= 0) {
+			return;
+		}
+
+		for (MethodInfo info : new CallGraphOrder(program).order) {
+			method = info.declaration;
+			for (int i = 0; i < method.numLocals(); i++) {
+				Expr initializer = method.localInitializers.get(i);
+				if (initializer != null) {
+					method.localInitializers.set(i, inlineExpression(initializer));
+				}
+			}
+			method.body = (Stmt.Block) inlineStatement(method.body);
+			method.info.size = measure(method);
+		}
+	}
+
+	public int getInlinedCount() {
+		return inlinedCount;
+	}
+
+	private void countCallSites(MethodDecl method) {
+		for (Expr initializer : method.localInitializers) {
+			if (initializer != null) {
+				forEachCall(initializer, call -> call.callee.callSites++);
+			}
+		}
+		forEachExpression(method.body, expression -> forEachCall(expression, call -> call.callee.callSites++));
+	}
+
+	// ===============================
+	// the methods in the order they are inlined into, callees first (the
+	// strongly connected components of the call graph, with Tarjan's
+	// algorithm); the methods in a cycle are marked `recursive`
+	// ===============================
+
+	private final class CallGraphOrder {
+		final ArrayList<MethodInfo> order = new ArrayList<MethodInfo>();
+		private final IdentityHashMap<MethodInfo, Integer> indices = new IdentityHashMap<MethodInfo, Integer>();
+		private final IdentityHashMap<MethodInfo, Integer> lowLinks = new IdentityHashMap<MethodInfo, Integer>();
+		private final ArrayList<MethodInfo> stack = new ArrayList<MethodInfo>();
+		private final HashSet<MethodInfo> onStack = new HashSet<MethodInfo>();
+
+		CallGraphOrder(Program program) {
+			for (MethodDecl method : program.methods) {
+				if (!indices.containsKey(method.info)) {
+					visit(method.info);
+				}
+			}
+		}
+
+		private void visit(MethodInfo info) {
+			int index = indices.size();
+			indices.put(info, index);
+			lowLinks.put(info, index);
+			stack.add(info);
+			onStack.add(info);
+
+			for (MethodInfo callee : getCallees(info.declaration)) {
+				if (callee.declaration == null) {
+					continue;
+				}
+				if (!indices.containsKey(callee)) {
+					visit(callee);
+					lowLinks.put(info, Math.min(lowLinks.get(info), lowLinks.get(callee)));
+				} else if (onStack.contains(callee)) {
+					lowLinks.put(info, Math.min(lowLinks.get(info), indices.get(callee)));
+				}
+				if (callee == info) {
+					recursive.add(info);
+				}
+			}
+
+			if (lowLinks.get(info).intValue() == index) {
+				int start = stack.lastIndexOf(info);
+				boolean cycle = stack.size() - start > 1;
+				for (MethodInfo member : stack.subList(start, stack.size())) {
+					onStack.remove(member);
+					order.add(member);
+					if (cycle) {
+						recursive.add(member);
+					}
+				}
+				stack.subList(start, stack.size()).clear();
+			}
+		}
+
+		private HashSet<MethodInfo> getCallees(MethodDecl method) {
+			HashSet<MethodInfo> callees = new HashSet<MethodInfo>();
+			for (Expr initializer : method.localInitializers) {
+				if (initializer != null) {
+					forEachCall(initializer, call -> callees.add(call.callee));
+				}
+			}
+			forEachExpression(method.body, expression -> forEachCall(expression, call -> callees.add(call.callee)));
+			return callees;
+		}
+	}
+
+	// ===============================
+	// inlining at the call sites
+	// ===============================
+
+	// returns the statement to use instead of `statement`
+	private Stmt inlineStatement(Stmt statement) {
+		switch (statement.kind) {
+			case BLOCK:
+				ArrayList<Stmt> statements = ((Stmt.Block) statement).statements;
+				for (int i = 0; i < statements.size(); i++) {
+					statements.set(i, inlineStatement(statements.get(i)));
+				}
+				return statement;
+			case ASSIGN:
+				Stmt.Assign assign = (Stmt.Assign) statement;
+				ArrayList<Stmt> hoisted = new ArrayList<Stmt>();
+				assign.value = hoistCalls(inlineExpression(assign.value), hoisted);
+				if (assign.value.kind == Expr.Kind.CALL) {
+					Stmt inlined = inlineCallStatement((Expr.Call) assign.value, assign.slot);
+					if (inlined != null) {
+						return withHoisted(hoisted, inlined);
+					}
+				}
+				return withHoisted(hoisted, statement);
+			case RETURN:
+				Stmt.Return returnStatement = (Stmt.Return) statement;
+				hoisted = new ArrayList<Stmt>();
+				returnStatement.value = hoistCalls(inlineExpression(returnStatement.value), hoisted);
+				if (returnStatement.value.kind == Expr.Kind.CALL) {
+					Stmt inlined = inlineCallStatement((Expr.Call) returnStatement.value, -1);
+					if (inlined != null) {
+						return withHoisted(hoisted, inlined);
+					}
+				}
+				return withHoisted(hoisted, statement);
+			case IF:
+				Stmt.If ifStatement = (Stmt.If) statement;
+				ifStatement.condition = inlineExpression(ifStatement.condition);
+				ifStatement.thenStmt = inlineStatement(ifStatement.thenStmt);
+				ifStatement.elseStmt = inlineStatement(ifStatement.elseStmt);
+				return statement;
+			case WHILE:
+				Stmt.While whileStatement = (Stmt.While) statement;
+				whileStatement.condition = inlineExpression(whileStatement.condition);
+				whileStatement.body = inlineStatement(whileStatement.body);
+				return statement;
+			default:
+				return statement;
+		}
+	}
+
+	// returns the expression to use instead of `expression`
+	private Expr inlineExpression(Expr expression) {
+		switch (expression.kind) {
+			case NEGATE:
+			case NOT:
+				Expr.Unary unary = (Expr.Unary) expression;
+				unary.operand = inlineExpression(unary.operand);
+				return unary;
+			case BINARY:
+				Expr.Binary binary = (Expr.Binary) expression;
+				binary.left = inlineExpression(binary.left);
+				binary.right = inlineExpression(binary.right);
+				return binary;
+			case CALL:
+				Expr.Call call = (Expr.Call) expression;
+				for (int i = 0; i < call.arguments.length; i++) {
+					call.arguments[i] = inlineExpression(call.arguments[i]);
+				}
+				MethodDecl callee = call.callee.declaration;
+				Expr value = callee != null && callee.numLocals() == 0 ? getOnlyReturnValue(callee.body) : null;
+				if (value == null || !canSubstitute(value, call.arguments) || !shouldInline(call.callee)) {
+					return call;
+				}
+				charge(call.callee);
+				return copy(value, null, call.arguments);
+			default:
+				return expression;
+		}
+	}
+
+	// `resultSlot` is the variable assigned the call's value, or -1 for
+	// `return f(...)`; returns null if the call can't be inlined
+	private Stmt inlineCallStatement(Expr.Call call, int resultSlot) {
+		MethodDecl callee = call.callee.declaration;
+		if (!shouldInline(call.callee)) {
+			return null;
+		}
+		// a parameter that the callee never assigns is replaced by its
+		// actual if that is a variable or a literal (the inlined code only
+		// assigns its own variables, and `resultSlot` right before it ends);
+		// every other variable of the callee gets a new slot after the
+		// caller's locals
+		boolean[] assigned = new boolean[callee.numSlots()];
+		ConstantFolder.findAssignedSlots(callee.body, assigned);
+		Expr[] substitutions = new Expr[callee.numSlots()];
+		int[] slots = new int[callee.numSlots()];
+		int nextSlot = method.numSlots();
+		for (int i = 0; i < callee.numSlots(); i++) {
+			if (i < call.arguments.length && !assigned[i] && isLeaf(call.arguments[i])) {
+				substitutions[i] = call.arguments[i];
+			} else {
+				slots[i] = nextSlot++;
+			}
+		}
+
+		Stmt.Block body = (Stmt.Block) copy(callee.body, slots, substitutions);
+		if (resultSlot >= 0) {
+			body = lowerReturns(body, resultSlot);
+			if (body == null) {
+				return null;
+			}
+		}
+		charge(call.callee);
+
+		ArrayList<Stmt> statements = new ArrayList<Stmt>();
+		for (int i = 0; i < callee.numSlots(); i++) {
+			if (substitutions[i] != null) {
+				continue;
+			}
+			method.localInitializers.add(null);
+			method.slotNames.add(call.callee.name + "." + callee.slotNames.get(i));
+			if (i < call.arguments.length) {
+				statements.add(new Stmt.Assign(slots[i], call.arguments[i]));
+			} else {
+				// the locals start over on every call
+				Expr initializer = callee.localInitializers.get(i - callee.numParameters);
+				statements.add(new Stmt.Assign(slots[i],
+						initializer == null ? new Expr.IntLiteral(0) : copy(initializer, slots, substitutions)));
+			}
+		}
+		statements.add(body);
+		return new Stmt.Block(statements);
+	}
+
+	// the calls inside `value` (an assigned or returned value) that can be
+	// inlined are moved out to statements `t = f(...);` before it, with new
+	// variables `t`, which are added to `hoisted`. Calls have no side
+	// effects, so this only changes when they run relative to the rest of
+	// `value`, which mustn't be able to fail then (e.g., a division by `0`
+	// would happen after a call that doesn't terminate instead of before)
+	private Expr hoistCalls(Expr value, ArrayList<Stmt> hoisted) {
+		if (value.kind == Expr.Kind.CALL || canFailOutsideInlinedCalls(value)) {
+			return value;
+		}
+		return hoist(value, hoisted);
+	}
+
+	private Expr hoist(Expr expression, ArrayList<Stmt> hoisted) {
+		switch (expression.kind) {
+			case NEGATE:
+			case NOT:
+				Expr.Unary unary = (Expr.Unary) expression;
+				unary.operand = hoist(unary.operand, hoisted);
+				return unary;
+			case BINARY:
+				Expr.Binary binary = (Expr.Binary) expression;
+				binary.left = hoist(binary.left, hoisted);
+				binary.right = hoist(binary.right, hoisted);
+				return binary;
+			case CALL:
+				Expr.Call call = (Expr.Call) expression;
+				if (!canInlineStatement(call.callee)) {
+					return call;
+				}
+				int slot = method.numSlots();
+				method.localInitializers.add(null);
+				method.slotNames.add(call.callee.name + ".result");
+				Stmt assign = new Stmt.Assign(slot, call);
+				Stmt inlined = inlineCallStatement(call, slot);
+				hoisted.add(inlined != null ? inlined : assign);
+				return new Expr.Variable(slot);
+			default:
+				return expression;
+		}
+	}
+
+	private boolean canFailOutsideInlinedCalls(Expr expression) {
+		switch (expression.kind) {
+			case NEGATE:
+			case NOT:
+				return canFailOutsideInlinedCalls(((Expr.Unary) expression).operand);
+			case BINARY:
+				Expr.Binary binary = (Expr.Binary) expression;
+				return binary.operator == '/' || canFailOutsideInlinedCalls(binary.left) || canFailOutsideInlinedCalls(binary.right);
+			case CALL:
+				return !canInlineStatement(((Expr.Call) expression).callee);
+			default:
+				return false;
+		}
+	}
+
+	private boolean canInlineStatement(MethodInfo callee) {
+		if (!shouldInline(callee)) {
+			return false;
+		}
+		Stmt.Block body = (Stmt.Block) copy(callee.declaration.body, null, null);
+		moveIntoElse(body);
+		return returnsOnlyAtEnd(body, true) || !returnsInLoop(body, false);
+	}
+
+	private static Stmt withHoisted(ArrayList<Stmt> hoisted, Stmt statement) {
+		if (hoisted.isEmpty()) {
+			return statement;
+		}
+		hoisted.add(statement);
+		return new Stmt.Block(hoisted);
+	}
+
+	private boolean shouldInline(MethodInfo callee) {
+		return callee.declaration != null && !recursive.contains(callee)
+				&& (callee.size <= sizeLimit || callee.callSites == 1) && callee.size <= budget;
+	}
+
+	// the copy replaces the call
+	private void charge(MethodInfo callee) {
+		budget -= callee.size - 1;
+		inlinedCount++;
+	}
+
+	// ===============================
+	// substituting a `return e;` callee
+	// ===============================
+
+	// the `e` of a body that is only `return e;` (maybe in nested blocks,
+	// and next to empty statements), or null
+	private static Expr getOnlyReturnValue(Stmt statement) {
+		switch (statement.kind) {
+			case BLOCK:
+				Stmt only = null;
+				for (Stmt inner : ((Stmt.Block) statement).statements) {
+					if (isEmpty(inner)) {
+						continue;
+					}
+					if (only != null) {
+						return null;
+					}
+					only = inner;
+				}
+				return only == null ? null : getOnlyReturnValue(only);
+			case RETURN:
+				return ((Stmt.Return) statement).value;
+			default:
+				return null;
+		}
+	}
+
+	private static boolean canSubstitute(Expr value, Expr[] arguments) {
+		int[] uses = new int[arguments.length];
+		countUses(value, uses);
+		for (int i = 0; i < arguments.length; i++) {
+			Expr argument = arguments[i];
+			if (isLeaf(argument) || uses[i] == 1) {
+				continue;
+			}
+			// an unused actual is dropped, unless it could fail (or not
+			// terminate)
+			if (uses[i] == 0 && !canFail(argument)) {
+				continue;
+			}
+			return false;
+		}
+		return true;
+	}
+
+	private static void countUses(Expr expression, int[] uses) {
+		switch (expression.kind) {
+			case VARIABLE:
+				uses[((Expr.Variable) expression).slot]++;
+				break;
+			case NEGATE:
+			case NOT:
+				countUses(((Expr.Unary) expression).operand, uses);
+				break;
+			case BINARY:
+				countUses(((Expr.Binary) expression).left, uses);
+				countUses(((Expr.Binary) expression).right, uses);
+				break;
+			case CALL:
+				for (Expr argument : ((Expr.Call) expression).arguments) {
+					countUses(argument, uses);
+				}
+				break;
+			default:
+				break;
+		}
+	}
+
+	// a division may be by `0`, and a call may not return
+	static boolean canFail(Expr expression) {
+		switch (expression.kind) {
+			case NEGATE:
+			case NOT:
+				return canFail(((Expr.Unary) expression).operand);
+			case BINARY:
+				Expr.Binary binary = (Expr.Binary) expression;
+				return binary.operator == '/' || canFail(binary.left) || canFail(binary.right);
+			case CALL:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	// ===============================
+	// turning the `return`s of an inlined body into assignments
+	// ===============================
+
+	// returns null if some `return` is inside a loop
+	private static Stmt.Block lowerReturns(Stmt.Block body, int resultSlot) {
+		moveIntoElse(body);
+		if (returnsOnlyAtEnd(body, true)) {
+			return (Stmt.Block) replaceReturns(body, resultSlot, false);
+		}
+		if (returnsInLoop(body, false)) {
+			return null;
+		}
+		ArrayList<Stmt> loopBody = new ArrayList<Stmt>();
+		loopBody.add(replaceReturns(body, resultSlot, true));
+		loopBody.add(new Stmt.Break());
+		ArrayList<Stmt> statements = new ArrayList<Stmt>();
+		statements.add(new Stmt.While(new Expr.IntLiteral(1), new Stmt.Block(loopBody)));
+		return new Stmt.Block(statements);
+	}
+
+	// `if (c) return a; else s; rest` becomes `if (c) return a; else { s;
+	// rest }` (and the same the other way around), so that more `return`s
+	// end up at the end. Loops are left alone
+	private static void moveIntoElse(Stmt statement) {
+		switch (statement.kind) {
+			case BLOCK:
+				ArrayList<Stmt> statements = ((Stmt.Block) statement).statements;
+				for (int i = 0; i < statements.size(); i++) {
+					if (statements.get(i).kind != Stmt.Kind.IF || i == statements.size() - 1) {
+						continue;
+					}
+					Stmt.If ifStatement = (Stmt.If) statements.get(i);
+					boolean thenReturns = alwaysReturns(ifStatement.thenStmt);
+					boolean elseReturns = alwaysReturns(ifStatement.elseStmt);
+					if (!thenReturns && !elseReturns) {
+						continue;
+					}
+					ArrayList<Stmt> rest = new ArrayList<Stmt>(statements.subList(i + 1, statements.size()));
+					statements.subList(i + 1, statements.size()).clear();
+					// after an `if` whose branches both return, `rest` is
+					// unreachable
+					if (!thenReturns) {
+						ifStatement.thenStmt = append(ifStatement.thenStmt, rest);
+					} else if (!elseReturns) {
+						ifStatement.elseStmt = append(ifStatement.elseStmt, rest);
+					}
+				}
+				for (Stmt inner : statements) {
+					moveIntoElse(inner);
+				}
+				break;
+			case IF:
+				moveIntoElse(((Stmt.If) statement).thenStmt);
+				moveIntoElse(((Stmt.If) statement).elseStmt);
+				break;
+			default:
+				break;
+		}
+	}
+
+	// outside of loops, so without `break`s
+	private static boolean alwaysReturns(Stmt statement) {
+		switch (statement.kind) {
+			case RETURN:
+				return true;
+			case BLOCK:
+				for (Stmt inner : ((Stmt.Block) statement).statements) {
+					if (alwaysReturns(inner)) {
+						return true;
+					}
+				}
+				return false;
+			case IF:
+				return alwaysReturns(((Stmt.If) statement).thenStmt) && alwaysReturns(((Stmt.If) statement).elseStmt);
+			default:
+				return false;
+		}
+	}
+
+	private static boolean returnsOnlyAtEnd(Stmt statement, boolean atEnd) {
+		switch (statement.kind) {
+			case RETURN:
+				return atEnd;
+			case BLOCK:
+				ArrayList<Stmt> statements = ((Stmt.Block) statement).statements;
+				int last = statements.size() - 1;
+				while (last >= 0 && isEmpty(statements.get(last))) {
+					last--;
+				}
+				for (int i = 0; i < statements.size(); i++) {
+					if (!returnsOnlyAtEnd(statements.get(i), atEnd && i >= last)) {
+						return false;
+					}
+				}
+				return true;
+			case IF:
+				return returnsOnlyAtEnd(((Stmt.If) statement).thenStmt, atEnd) && returnsOnlyAtEnd(((Stmt.If) statement).elseStmt, atEnd);
+			case WHILE:
+				return !returnsInLoop(statement, false);
+			default:
+				return true;
+		}
+	}
+
+	private static boolean returnsInLoop(Stmt statement, boolean inLoop) {
+		switch (statement.kind) {
+			case RETURN:
+				return inLoop;
+			case BLOCK:
+				for (Stmt inner : ((Stmt.Block) statement).statements) {
+					if (returnsInLoop(inner, inLoop)) {
+						return true;
+					}
+				}
+				return false;
+			case IF:
+				return returnsInLoop(((Stmt.If) statement).thenStmt, inLoop) || returnsInLoop(((Stmt.If) statement).elseStmt, inLoop);
+			case WHILE:
+				return returnsInLoop(((Stmt.While) statement).body, true);
+			default:
+				return false;
+		}
+	}
+
+	private static Stmt replaceReturns(Stmt statement, int resultSlot, boolean withBreak) {
+		switch (statement.kind) {
+			case RETURN:
+				Stmt assign = new Stmt.Assign(resultSlot, ((Stmt.Return) statement).value);
+				if (!withBreak) {
+					return assign;
+				}
+				ArrayList<Stmt> statements = new ArrayList<Stmt>();
+				statements.add(assign);
+				statements.add(new Stmt.Break());
+				return new Stmt.Block(statements);
+			case BLOCK:
+				ArrayList<Stmt> inner = ((Stmt.Block) statement).statements;
+				for (int i = 0; i < inner.size(); i++) {
+					inner.set(i, replaceReturns(inner.get(i), resultSlot, withBreak));
+				}
+				return statement;
+			case IF:
+				Stmt.If ifStatement = (Stmt.If) statement;
+				ifStatement.thenStmt = replaceReturns(ifStatement.thenStmt, resultSlot, withBreak);
+				ifStatement.elseStmt = replaceReturns(ifStatement.elseStmt, resultSlot, withBreak);
+				return statement;
+			default:
+				// there are no `return`s in loops here
+				return statement;
+		}
+	}
+
+	// ===============================
+	// the following are utility/helper functions
+	// ===============================
+
+	interface CallVisitor {
+		void visit(Expr.Call call);
+	}
+
+	interface ExpressionVisitor {
+		void visit(Expr expression);
+	}
+
+	static void forEachCall(Expr expression, CallVisitor visitor) {
+		switch (expression.kind) {
+			case NEGATE:
+			case NOT:
+				forEachCall(((Expr.Unary) expression).operand, visitor);
+				break;
+			case BINARY:
+				forEachCall(((Expr.Binary) expression).left, visitor);
+				forEachCall(((Expr.Binary) expression).right, visitor);
+				break;
+			case CALL:
+				visitor.visit((Expr.Call) expression);
+				for (Expr argument : ((Expr.Call) expression).arguments) {
+					forEachCall(argument, visitor);
+				}
+				break;
+			default:
+				break;
+		}
+	}
+
+	// visits the top-level expressions of the statements
+	static void forEachExpression(Stmt statement, ExpressionVisitor visitor) {
+		switch (statement.kind) {
+			case BLOCK:
+				for (Stmt inner : ((Stmt.Block) statement).statements) {
+					forEachExpression(inner, visitor);
+				}
+				break;
+			case ASSIGN:
+				visitor.visit(((Stmt.Assign) statement).value);
+				break;
+			case RETURN:
+				visitor.visit(((Stmt.Return) statement).value);
+				break;
+			case IF:
+				visitor.visit(((Stmt.If) statement).condition);
+				forEachExpression(((Stmt.If) statement).thenStmt, visitor);
+				forEachExpression(((Stmt.If) statement).elseStmt, visitor);
+				break;
+			case WHILE:
+				visitor.visit(((Stmt.While) statement).condition);
+				forEachExpression(((Stmt.While) statement).body, visitor);
+				break;
+			default:
+				break;
+		}
+	}
+
+	private static boolean isEmpty(Stmt statement) {
+		if (statement.kind != Stmt.Kind.BLOCK) {
+			return false;
+		}
+		for (Stmt inner : ((Stmt.Block) statement).statements) {
+			if (!isEmpty(inner)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static Stmt append(Stmt statement, ArrayList<Stmt> rest) {
+		ArrayList<Stmt> statements = new ArrayList<Stmt>();
+		statements.add(statement);
+		statements.addAll(rest);
+		return new Stmt.Block(statements);
+	}
+
+	// the number of AST nodes
+	static int measure(MethodDecl method) {
+		int size = measure(method.body);
+		for (Expr initializer : method.localInitializers) {
+			if (initializer != null) {
+				size += measure(initializer);
+			}
+		}
+		return size;
+	}
+
+	private static int measure(Stmt statement) {
+		switch (statement.kind) {
+			case BLOCK:
+				int size = 0;
+				for (Stmt inner : ((Stmt.Block) statement).statements) {
+					size += measure(inner);
+				}
+				return size;
+			case ASSIGN:
+				return 1 + measure(((Stmt.Assign) statement).value);
+			case RETURN:
+				return 1 + measure(((Stmt.Return) statement).value);
+			case IF:
+				Stmt.If ifStatement = (Stmt.If) statement;
+				return 1 + measure(ifStatement.condition) + measure(ifStatement.thenStmt) + measure(ifStatement.elseStmt);
+			case WHILE:
+				return 1 + measure(((Stmt.While) statement).condition) + measure(((Stmt.While) statement).body);
+			default:
+				return 1;
+		}
+	}
+
+	private static int measure(Expr expression) {
+		switch (expression.kind) {
+			case NEGATE:
+			case NOT:
+				return 1 + measure(((Expr.Unary) expression).operand);
+			case BINARY:
+				return 1 + measure(((Expr.Binary) expression).left) + measure(((Expr.Binary) expression).right);
+			case CALL:
+				int size = 1;
+				for (Expr argument : ((Expr.Call) expression).arguments) {
+					size += measure(argument);
+				}
+				return size;
+			default:
+				return 1;
+		}
+	}
+
+	// a deep copy of the callee's `statement`, with its variables moved to
+	// `slots` or replaced by (copies of) `substitutions` where they aren't
+	// null; a null `slots` keeps the slots as they are
+	private static Stmt copy(Stmt statement, int[] slots, Expr[] substitutions) {
+		switch (statement.kind) {
+			case BLOCK:
+				ArrayList<Stmt> statements = new ArrayList<Stmt>();
+				for (Stmt inner : ((Stmt.Block) statement).statements) {
+					statements.add(copy(inner, slots, substitutions));
+				}
+				return new Stmt.Block(statements);
+			case ASSIGN:
+				// the assigned variables are never substituted
+				Stmt.Assign assign = (Stmt.Assign) statement;
+				return new Stmt.Assign(slots == null ? assign.slot : slots[assign.slot], copy(assign.value, slots, substitutions));
+			case RETURN:
+				return new Stmt.Return(copy(((Stmt.Return) statement).value, slots, substitutions));
+			case IF:
+				Stmt.If ifStatement = (Stmt.If) statement;
+				return new Stmt.If(copy(ifStatement.condition, slots, substitutions),
+						copy(ifStatement.thenStmt, slots, substitutions), copy(ifStatement.elseStmt, slots, substitutions));
+			case WHILE:
+				Stmt.While whileStatement = (Stmt.While) statement;
+				return new Stmt.While(copy(whileStatement.condition, slots, substitutions), copy(whileStatement.body, slots, substitutions));
+			default:
+				return new Stmt.Break();
+		}
+	}
+
+	private static Expr copy(Expr expression, int[] slots, Expr[] substitutions) {
+		switch (expression.kind) {
+			case INT_LITERAL:
+				return new Expr.IntLiteral(((Expr.IntLiteral) expression).value);
+			case VARIABLE:
+				int slot = ((Expr.Variable) expression).slot;
+				if (substitutions != null && slot < substitutions.length && substitutions[slot] != null) {
+					return copy(substitutions[slot], null, null);
+				}
+				return new Expr.Variable(slots == null ? slot : slots[slot]);
+			case NEGATE:
+			case NOT:
+				return new Expr.Unary(expression.kind, copy(((Expr.Unary) expression).operand, slots, substitutions));
+			case BINARY:
+				Expr.Binary binary = (Expr.Binary) expression;
+				return new Expr.Binary(binary.operator, copy(binary.left, slots, substitutions), copy(binary.right, slots, substitutions));
+			default:
+				Expr.Call call = (Expr.Call) expression;
+				Expr[] arguments = new Expr[call.arguments.length];
+				for (int i = 0; i < arguments.length; i++) {
+					arguments[i] = copy(call.arguments[i], slots, substitutions);
+				}
+				return new Expr.Call(call.callee, arguments, call.line);
+		}
+	}
+
+	private static boolean isLeaf(Expr expression) {
+		return expression.kind == Expr.Kind.INT_LITERAL || expression.kind == Expr.Kind.VARIABLE;
+	}
+}
@@ -0,0 +1,544 @@
+package balicompiler;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+// moves work out of the `while` loops, run before `DataflowOptimizer` (which
+// then propagates the copies and removes the stores it makes useless):
+// - loop-invariant code motion: an expression that only reads variables the
+//   loop never assigns (and that neither calls nor divides, so it can't
+//   fail) is computed once into a new local (`licm.N`), in a preheader right
+//   before the loop, and read from it in the loop. Only the largest
+//   invariant expressions are moved, and the same one is computed once.
+// - induction-variable strength reduction: for a variable `i` that the loop
+//   assigns once, with `i = i + c` or `i = i - c` at the top level of its
+//   body, a product `i * k` (with `k` a literal or invariant) read at least
+//   twice in the loop is kept in a new local (`iv.N`), set to `i * k` in the
+//   preheader and advanced by `c * k` right after `i` is. Both are equal
+//   wherever the loop reads them, however it is left (a `break` included),
+//   and the `int`s wrap around the same either way.
+//
+// The outer loops are done first, so that what is invariant in a whole
+// nest is moved out of all of it, and the inner loops then move what is only
+// invariant in them. Bali has no globals, so a call can't change what an
+// invariant expression reads
+public class LoopOptimizer {
+	private int expressionsHoisted = 0;
+	private int multiplicationsReduced = 0;
+
+	// a product `i * k` of the loop being optimized
+	private static final class Reduction {
+		final int inductionSlot;
+		final Expr factor;
+		int uses = 0;
+		// the local that holds the product, once it is created
+		int slot = -1;
+
+		Reduction(int inductionSlot, Expr factor) {
+			this.inductionSlot = inductionSlot;
+			this.factor = factor;
+		}
+	}
+
+	private MethodDecl method;
+	private int numHoistTemps;
+	private int numReductionTemps;
+
+	// for the loop being optimized: how many times the loop assigns each slot
+	// (the slots created for it are past the end), the invariant expressions
+	// computed in its preheader (with their locals) and the statements of
+	// the preheader
+	private int[] assignments;
+	private final ArrayList<Expr> hoisted = new ArrayList<Expr>();
+	private final ArrayList<Integer> hoistedSlots = new ArrayList<Integer>();
+	private ArrayList<Stmt> preheader;
+	// by slot: the increment `c` of the induction variables, or null
+	private Integer[] increments;
+	private final LinkedHashMap<Long, Reduction> reductions = new LinkedHashMap<Long, Reduction>();
+
+	public void optimize(Program program) {
+		for (MethodDecl method : program.methods) {
+			this.method = method;
+			numHoistTemps = 0;
+			numReductionTemps = 0;
+			optimize(method.body);
+		}
+		this.method = null;
+	}
+
+	// adds the counts of `other` (e.g., to total the counts of the files
+	// compiled in parallel)
+	public synchronized void merge(LoopOptimizer other) {
+		expressionsHoisted += other.expressionsHoisted;
+		multiplicationsReduced += other.multiplicationsReduced;
+	}
+
+	public void report(PrintStream out) {
+		out.println("Loops:");
+		out.printf("  %-20s hoisted %6d expressions%n", "invariant code", expressionsHoisted);
+		out.printf("  %-20s reduced %6d multiplications%n", "induction variables", multiplicationsReduced);
+	}
+
+	// returns the statement to keep in place of `statement` (a loop with a
+	// preheader becomes a block)
+	private Stmt optimize(Stmt statement) {
+		switch (statement.kind) {
+			case BLOCK:
+				ArrayList<Stmt> statements = ((Stmt.Block) statement).statements;
+				for (int i = 0; i < statements.size(); i++) {
+					statements.set(i, optimize(statements.get(i)));
+				}
+				return statement;
+			case IF:
+				Stmt.If ifStatement = (Stmt.If) statement;
+				ifStatement.thenStmt = optimize(ifStatement.thenStmt);
+				ifStatement.elseStmt = optimize(ifStatement.elseStmt);
+				return statement;
+			case WHILE:
+				Stmt.While whileStatement = (Stmt.While) statement;
+				ArrayList<Stmt> loopPreheader = optimizeLoop(whileStatement);
+				whileStatement.body = optimize(whileStatement.body);
+				if (loopPreheader.isEmpty()) {
+					return statement;
+				}
+				loopPreheader.add(statement);
+				return new Stmt.Block(loopPreheader);
+			default:
+				return statement;
+		}
+	}
+
+	// returns the preheader of the loop
+	private ArrayList<Stmt> optimizeLoop(Stmt.While loop) {
+		if (!completes(loop.body)) {
+			// the body runs at most once
+			return new ArrayList<Stmt>(0);
+		}
+		assignments = new int[method.numSlots()];
+		countAssignments(loop.body, assignments);
+		preheader = new ArrayList<Stmt>();
+		hoisted.clear();
+		hoistedSlots.clear();
+
+		loop.condition = hoistFrom(loop.condition);
+		hoistFrom(loop.body);
+
+		// the induction variables are only looked for at the top level of
+		// the body, where their assignment is the only one
+		if (loop.body.kind != Stmt.Kind.BLOCK) {
+			ArrayList<Stmt> statements = new ArrayList<Stmt>(1);
+			statements.add(loop.body);
+			loop.body = new Stmt.Block(statements);
+		}
+		ArrayList<Stmt> body = ((Stmt.Block) loop.body).statements;
+		increments = new Integer[assignments.length];
+		boolean found = false;
+		for (Stmt statement : body) {
+			if (statement.kind == Stmt.Kind.ASSIGN) {
+				Stmt.Assign assign = (Stmt.Assign) statement;
+				Integer increment = getIncrement(assign);
+				if (increment != null && assignments[assign.slot] == 1) {
+					increments[assign.slot] = increment;
+					found = true;
+				}
+			}
+		}
+		if (found) {
+			reduceInductions(loop, body);
+		}
+		increments = null;
+		assignments = null;
+		ArrayList<Stmt> loopPreheader = preheader;
+		preheader = null;
+		return loopPreheader;
+	}
+
+	// ===============================
+	// loop-invariant code motion
+	// ===============================
+
+	private void hoistFrom(Stmt statement) {
+		switch (statement.kind) {
+			case BLOCK:
+				for (Stmt inner : ((Stmt.Block) statement).statements) {
+					hoistFrom(inner);
+				}
+				break;
+			case ASSIGN:
+				Stmt.Assign assign = (Stmt.Assign) statement;
+				assign.value = hoistFrom(assign.value);
+				break;
+			case RETURN:
+				Stmt.Return returnStatement = (Stmt.Return) statement;
+				returnStatement.value = hoistFrom(returnStatement.value);
+				break;
+			case IF:
+				Stmt.If ifStatement = (Stmt.If) statement;
+				ifStatement.condition = hoistFrom(ifStatement.condition);
+				hoistFrom(ifStatement.thenStmt);
+				hoistFrom(ifStatement.elseStmt);
+				break;
+			case WHILE:
+				Stmt.While whileStatement = (Stmt.While) statement;
+				whileStatement.condition = hoistFrom(whileStatement.condition);
+				hoistFrom(whileStatement.body);
+				break;
+			default:
+				break;
+		}
+	}
+
+	// returns the expression to use instead of `expression`
+	private Expr hoistFrom(Expr expression) {
+		return isInvariant(expression) ? hoist(expression) : expression;
+	}
+
+	// whether `expression` can be computed before the loop; its largest
+	// invariant operands are hoisted if it can't
+	private boolean isInvariant(Expr expression) {
+		switch (expression.kind) {
+			case INT_LITERAL:
+				return true;
+			case VARIABLE:
+				int slot = ((Expr.Variable) expression).slot;
+				return slot >= assignments.length || assignments[slot] == 0;
+			case NEGATE:
+			case NOT:
+				return isInvariant(((Expr.Unary) expression).operand);
+			case BINARY:
+				Expr.Binary binary = (Expr.Binary) expression;
+				boolean leftInvariant = isInvariant(binary.left);
+				boolean rightInvariant = isInvariant(binary.right);
+				if (leftInvariant && rightInvariant && binary.operator != '/') {
+					return true;
+				}
+				if (leftInvariant) {
+					binary.left = hoist(binary.left);
+				}
+				if (rightInvariant) {
+					binary.right = hoist(binary.right);
+				}
+				return false;
+			default:
+				Expr[] arguments = ((Expr.Call) expression).arguments;
+				for (int i = 0; i < arguments.length; i++) {
+					if (isInvariant(arguments[i])) {
+						arguments[i] = hoist(arguments[i]);
+					}
+				}
+				return false;
+		}
+	}
+
+	// returns what to read `expression` (invariant) from in the loop
+	private Expr hoist(Expr expression) {
+		if (expression.kind == Expr.Kind.INT_LITERAL || expression.kind == Expr.Kind.VARIABLE) {
+			return expression;
+		}
+		expressionsHoisted++;
+		for (int i = 0; i < hoisted.size(); i++) {
+			if (sameExpression(hoisted.get(i), expression)) {
+				return new Expr.Variable(hoistedSlots.get(i));
+			}
+		}
+		int slot = newTemp("licm." + numHoistTemps++);
+		hoisted.add(expression);
+		hoistedSlots.add(slot);
+		preheader.add(new Stmt.Assign(slot, expression));
+		return new Expr.Variable(slot);
+	}
+
+	// ===============================
+	// induction-variable strength reduction
+	// ===============================
+
+	private void reduceInductions(Stmt.While loop, ArrayList<Stmt> body) {
+		reductions.clear();
+		Inliner.forEachExpression(loop, this::findProducts);
+		boolean worthIt = false;
+		for (Reduction reduction : reductions.values()) {
+			worthIt |= reduction.uses >= 2;
+		}
+		if (!worthIt) {
+			return;
+		}
+
+		loop.condition = reduce(loop.condition);
+		reduce(loop.body);
+		// each product is advanced right after its induction variable
+		for (int i = 0; i < body.size(); i++) {
+			Stmt statement = body.get(i);
+			if (statement.kind != Stmt.Kind.ASSIGN || increments[((Stmt.Assign) statement).slot] == null) {
+				continue;
+			}
+			int inductionSlot = ((Stmt.Assign) statement).slot;
+			int increment = increments[inductionSlot];
+			for (Reduction reduction : reductions.values()) {
+				if (reduction.slot >= 0 && reduction.inductionSlot == inductionSlot) {
+					body.add(++i, new Stmt.Assign(reduction.slot, advance(reduction, increment)));
+				}
+			}
+		}
+	}
+
+	// `c` for `i = i + c`, `i = c + i` and `i = i - c`, otherwise null
+	private static Integer getIncrement(Stmt.Assign assign) {
+		if (assign.value.kind != Expr.Kind.BINARY) {
+			return null;
+		}
+		Expr.Binary binary = (Expr.Binary) assign.value;
+		if (binary.operator == '+' && isVariable(binary.left, assign.slot) && binary.right.kind == Expr.Kind.INT_LITERAL) {
+			return ((Expr.IntLiteral) binary.right).value;
+		}
+		if (binary.operator == '+' && isVariable(binary.right, assign.slot) && binary.left.kind == Expr.Kind.INT_LITERAL) {
+			return ((Expr.IntLiteral) binary.left).value;
+		}
+		if (binary.operator == '-' && isVariable(binary.left, assign.slot) && binary.right.kind == Expr.Kind.INT_LITERAL) {
+			return -((Expr.IntLiteral) binary.right).value;
+		}
+		return null;
+	}
+
+	// counts the products of an induction variable and an invariant factor
+	// in `expression`
+	private void findProducts(Expr expression) {
+		switch (expression.kind) {
+			case NEGATE:
+			case NOT:
+				findProducts(((Expr.Unary) expression).operand);
+				break;
+			case BINARY:
+				Expr.Binary binary = (Expr.Binary) expression;
+				Reduction reduction = getReduction(binary);
+				if (reduction != null) {
+					reduction.uses++;
+					break;
+				}
+				findProducts(binary.left);
+				findProducts(binary.right);
+				break;
+			case CALL:
+				for (Expr argument : ((Expr.Call) expression).arguments) {
+					findProducts(argument);
+				}
+				break;
+			default:
+				break;
+		}
+	}
+
+	// the reduction of `binary` if it is a product of an induction variable
+	// and an invariant factor, otherwise null
+	private Reduction getReduction(Expr.Binary binary) {
+		if (binary.operator != '*') {
+			return null;
+		}
+		Expr induction = binary.left;
+		Expr factor = binary.right;
+		if (!isInduction(induction)) {
+			induction = binary.right;
+			factor = binary.left;
+			if (!isInduction(induction)) {
+				return null;
+			}
+		}
+		long key;
+		if (factor.kind == Expr.Kind.INT_LITERAL) {
+			key = ((Expr.IntLiteral) factor).value & 0xFFFFFFFFL;
+		} else if (factor.kind == Expr.Kind.VARIABLE && !isInduction(factor) && isInvariant(factor)) {
+			key = (1L << 32) | ((Expr.Variable) factor).slot;
+		} else {
+			return null;
+		}
+		int inductionSlot = ((Expr.Variable) induction).slot;
+		key |= (long) inductionSlot << 33;
+		Reduction reduction = reductions.get(key);
+		if (reduction == null) {
+			reduction = new Reduction(inductionSlot, factor);
+			reductions.put(key, reduction);
+		}
+		return reduction;
+	}
+
+	private boolean isInduction(Expr expression) {
+		if (expression.kind != Expr.Kind.VARIABLE) {
+			return false;
+		}
+		int slot = ((Expr.Variable) expression).slot;
+		return slot < increments.length && increments[slot] != null;
+	}
+
+	private void reduce(Stmt statement) {
+		switch (statement.kind) {
+			case BLOCK:
+				for (Stmt inner : ((Stmt.Block) statement).statements) {
+					reduce(inner);
+				}
+				break;
+			case ASSIGN:
+				Stmt.Assign assign = (Stmt.Assign) statement;
+				assign.value = reduce(assign.value);
+				break;
+			case RETURN:
+				Stmt.Return returnStatement = (Stmt.Return) statement;
+				returnStatement.value = reduce(returnStatement.value);
+				break;
+			case IF:
+				Stmt.If ifStatement = (Stmt.If) statement;
+				ifStatement.condition = reduce(ifStatement.condition);
+				reduce(ifStatement.thenStmt);
+				reduce(ifStatement.elseStmt);
+				break;
+			case WHILE:
+				Stmt.While whileStatement = (Stmt.While) statement;
+				whileStatement.condition = reduce(whileStatement.condition);
+				reduce(whileStatement.body);
+				break;
+			default:
+				break;
+		}
+	}
+
+	// returns the expression to use instead of `expression`
+	private Expr reduce(Expr expression) {
+		switch (expression.kind) {
+			case NEGATE:
+			case NOT:
+				Expr.Unary unary = (Expr.Unary) expression;
+				unary.operand = reduce(unary.operand);
+				return expression;
+			case BINARY:
+				Expr.Binary binary = (Expr.Binary) expression;
+				Reduction reduction = getReduction(binary);
+				if (reduction != null && reduction.uses >= 2) {
+					if (reduction.slot < 0) {
+						reduction.slot = newTemp("iv." + numReductionTemps++);
+						preheader.add(new Stmt.Assign(reduction.slot,
+								new Expr.Binary('*', new Expr.Variable(reduction.inductionSlot), copyLeaf(reduction.factor))));
+					}
+					multiplicationsReduced++;
+					return new Expr.Variable(reduction.slot);
+				}
+				binary.left = reduce(binary.left);
+				binary.right = reduce(binary.right);
+				return expression;
+			case CALL:
+				Expr[] arguments = ((Expr.Call) expression).arguments;
+				for (int i = 0; i < arguments.length; i++) {
+					arguments[i] = reduce(arguments[i]);
+				}
+				return expression;
+			default:
+				return expression;
+		}
+	}
+
+	// `r + c * k` (`c * k` is folded for a literal `k`, and computed in the
+	// preheader otherwise)
+	private Expr advance(Reduction reduction, int increment) {
+		Expr current = new Expr.Variable(reduction.slot);
+		if (reduction.factor.kind == Expr.Kind.INT_LITERAL) {
+			return new Expr.Binary('+', current, new Expr.IntLiteral(increment * ((Expr.IntLiteral) reduction.factor).value));
+		}
+		if (increment == 1 || increment == -1) {
+			return new Expr.Binary(increment == 1 ? '+' : '-', current, copyLeaf(reduction.factor));
+		}
+		int stepSlot = newTemp("iv." + numReductionTemps++);
+		preheader.add(new Stmt.Assign(stepSlot, new Expr.Binary('*', new Expr.IntLiteral(increment), copyLeaf(reduction.factor))));
+		return new Expr.Binary('+', current, new Expr.Variable(stepSlot));
+	}
+
+	// ===============================
+	// the following are utility/helper functions
+	// ===============================
+
+	private int newTemp(String name) {
+		int slot = method.numSlots();
+		method.localInitializers.add(null);
+		method.slotNames.add(name);
+		return slot;
+	}
+
+	// a new node for a literal or a variable, so that no node is in the AST
+	// twice
+	private static Expr copyLeaf(Expr expression) {
+		if (expression.kind == Expr.Kind.INT_LITERAL) {
+			return new Expr.IntLiteral(((Expr.IntLiteral) expression).value);
+		}
+		return new Expr.Variable(((Expr.Variable) expression).slot);
+	}
+
+	// whether the end of `statement` can be reached, so that a loop body
+	// can run again
+	private static boolean completes(Stmt statement) {
+		switch (statement.kind) {
+			case BLOCK:
+				for (Stmt inner : ((Stmt.Block) statement).statements) {
+					if (!completes(inner)) {
+						return false;
+					}
+				}
+				return true;
+			case RETURN:
+			case BREAK:
+				return false;
+			case IF:
+				Stmt.If ifStatement = (Stmt.If) statement;
+				return completes(ifStatement.thenStmt) || completes(ifStatement.elseStmt);
+			default:
+				return true;
+		}
+	}
+
+	private static boolean isVariable(Expr expression, int slot) {
+		return expression.kind == Expr.Kind.VARIABLE && ((Expr.Variable) expression).slot == slot;
+	}
+
+	// counts the assignments of each slot in `statement`
+	private static void countAssignments(Stmt statement, int[] assignments) {
+		switch (statement.kind) {
+			case BLOCK:
+				for (Stmt inner : ((Stmt.Block) statement).statements) {
+					countAssignments(inner, assignments);
+				}
+				break;
+			case ASSIGN:
+				assignments[((Stmt.Assign) statement).slot]++;
+				break;
+			case IF:
+				Stmt.If ifStatement = (Stmt.If) statement;
+				countAssignments(ifStatement.thenStmt, assignments);
+				countAssignments(ifStatement.elseStmt, assignments);
+				break;
+			case WHILE:
+				countAssignments(((Stmt.While) statement).body, assignments);
+				break;
+			default:
+				break;
+		}
+	}
+
+	private static boolean sameExpression(Expr a, Expr b) {
+		if (a.kind != b.kind) {
+			return false;
+		}
+		switch (a.kind) {
+			case INT_LITERAL:
+				return ((Expr.IntLiteral) a).value == ((Expr.IntLiteral) b).value;
+			case VARIABLE:
+				return ((Expr.Variable) a).slot == ((Expr.Variable) b).slot;
+			case NEGATE:
+			case NOT:
+				return sameExpression(((Expr.Unary) a).operand, ((Expr.Unary) b).operand);
+			case BINARY:
+				Expr.Binary binaryA = (Expr.Binary) a;
+				Expr.Binary binaryB = (Expr.Binary) b;
+				return binaryA.operator == binaryB.operator && sameExpression(binaryA.left, binaryB.left)
+						&& sameExpression(binaryA.right, binaryB.right);
+			default:
+				// invariant expressions have no calls
+				return false;
+		}
+	}
+}
@@ -0,0 +1,178 @@
+package balicompiler;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// an on-disk cache of the generated code of each method (the drivers'
+// `--cache=DIR`), so that only the methods that changed since the last
+// compile are generated again. An entry is keyed by a hash of the method's
+// optimized AST, the signatures of the methods it calls and the backend's
+// configuration; that's all the code of a method depends on (see
+// `Backend.generateMethod()`), so a hit gives the same code byte for byte.
+//
+// Entries are written to a temporary file and then moved in place, so the
+// cache can be shared by concurrent compiles (e.g., `--batch`). Nothing is
+// ever evicted; delete the directory to clear it
+public class MethodCache {
+	// change it whenever the code generation changes, to ignore the old
+	// entries
+	private static final String VERSION = "5";
+
+	private final Path directory;
+	private final AtomicInteger hits = new AtomicInteger();
+	private final AtomicInteger misses = new AtomicInteger();
+
+	public MethodCache(Path directory) throws IOException {
+		this.directory = directory;
+		Files.createDirectories(directory);
+	}
+
+	// the same as `backend.generate(program, out)`, reusing the cached code
+	// of the unchanged methods
+	public void generate(Program program, Backend backend, CodeEmitter out) {
+		backend.generateStart(program, out);
+		for (MethodDecl method : program.methods) {
+			Path entry = directory.resolve(getKey(method, backend.getConfiguration()));
+			String code = read(entry);
+			if (code != null) {
+				hits.incrementAndGet();
+			} else {
+				misses.incrementAndGet();
+				StringWriter methodCode = new StringWriter();
+				CodeEmitter methodOut = new CodeEmitter(methodCode);
+				backend.generateMethod(method, methodOut);
+				methodOut.flush();
+				code = methodCode.toString();
+				write(entry, code);
+			}
+			out.emitCode(code);
+		}
+	}
+
+	public void report(PrintStream out) {
+		out.printf("Method cache: %d methods reused, %d generated%n", hits.get(), misses.get());
+	}
+
+	// null if there's no (readable) entry
+	private static String read(Path entry) {
+		try {
+			return Files.readString(entry);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	// a cache that can't be written to only costs the time to generate the
+	// code again
+	private void write(Path entry, String code) {
+		try {
+			Path temporary = Files.createTempFile(directory, "entry", ".tmp");
+			Files.writeString(temporary, code);
+			Files.move(temporary, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+		}
+	}
+
+	private static String getKey(MethodDecl method, String configuration) {
+		StringBuilder key = new StringBuilder();
+		key.append(VERSION).append('\n').append(configuration).append('\n');
+		key.append(method.info.name).append(' ').append(method.numParameters).append(" (");
+		for (Expr initializer : method.localInitializers) {
+			if (initializer == null) {
+				key.append("_");
+			} else {
+				appendExpression(key, initializer);
+			}
+			key.append(' ');
+		}
+		key.append(")\n");
+		appendStatement(key, method.body);
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			return HexFormat.of().formatHex(digest.digest(key.toString().getBytes(StandardCharsets.UTF_8)));
+		} catch (NoSuchAlgorithmException e) {
+			// every Java platform has SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	// ===============================
+	// the following write the AST in prefix form, for the keys
+	// ===============================
+
+	private static void appendStatement(StringBuilder key, Stmt statement) {
+		switch (statement.kind) {
+			case BLOCK:
+				key.append("{ ");
+				for (Stmt inner : ((Stmt.Block) statement).statements) {
+					appendStatement(key, inner);
+				}
+				key.append("} ");
+				break;
+			case ASSIGN:
+				Stmt.Assign assign = (Stmt.Assign) statement;
+				key.append("= ").append(assign.slot).append(' ');
+				appendExpression(key, assign.value);
+				break;
+			case RETURN:
+				key.append("return ");
+				appendExpression(key, ((Stmt.Return) statement).value);
+				break;
+			case IF:
+				Stmt.If ifStatement = (Stmt.If) statement;
+				key.append("if ");
+				appendExpression(key, ifStatement.condition);
+				appendStatement(key, ifStatement.thenStmt);
+				appendStatement(key, ifStatement.elseStmt);
+				break;
+			case WHILE:
+				Stmt.While whileStatement = (Stmt.While) statement;
+				key.append("while ");
+				appendExpression(key, whileStatement.condition);
+				appendStatement(key, whileStatement.body);
+				break;
+			case BREAK:
+				key.append("break ");
+				break;
+		}
+	}
+
+	private static void appendExpression(StringBuilder key, Expr expression) {
+		switch (expression.kind) {
+			case INT_LITERAL:
+				key.append(((Expr.IntLiteral) expression).value).append(' ');
+				break;
+			case VARIABLE:
+				key.append('$').append(((Expr.Variable) expression).slot).append(' ');
+				break;
+			case NEGATE:
+			case NOT:
+				key.append(expression.kind == Expr.Kind.NEGATE ? "neg " : "not ");
+				appendExpression(key, ((Expr.Unary) expression).operand);
+				break;
+			case BINARY:
+				Expr.Binary binary = (Expr.Binary) expression;
+				key.append(binary.operator).append(' ');
+				appendExpression(key, binary.left);
+				appendExpression(key, binary.right);
+				break;
+			case CALL:
+				// the callee's signature
+				Expr.Call call = (Expr.Call) expression;
+				key.append("call ").append(call.callee.name).append('/').append(call.callee.numParameters).append(' ');
+				for (Expr argument : call.arguments) {
+					appendExpression(key, argument);
+				}
+				break;
+		}
+	}
+}
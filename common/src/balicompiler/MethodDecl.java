@@ -0,0 +1,27 @@
+package balicompiler;
+
+import java.util.ArrayList;
+
+public class MethodDecl {
+	public MethodInfo info;
+	public int numParameters;
+	// the initializer of each local variable in declaration order; a
+	// local without an initializer starts at `0` and has a null entry.
+	// Locals take the slots right after the parameters
+	public ArrayList<Expr> localInitializers;
+	// the names of all the slots (parameters first), for diagnostics
+	public ArrayList<String> slotNames;
+	public Stmt.Block body;
+
+	public MethodDecl(MethodInfo info) {
+		this.info = info;
+	}
+
+	public int numLocals() {
+		return localInitializers.size();
+	}
+
+	public int numSlots() {
+		return numParameters + localInitializers.size();
+	}
+}
@@ -0,0 +1,33 @@
+package balicompiler;
+
+// one entry per method name, created by whichever comes first: the method's
+// declaration or a call to it
+public class MethodInfo {
+	public final String name;
+	// dense index (in order of first appearance) that the backends use to
+	// look up their per-method data, e.g. labels
+	public final int id;
+	public int numParameters = -1;
+	// null until the method's declaration has been parsed
+	public MethodDecl declaration = null;
+	// the number of AST nodes of the method (its local initializers and its
+	// body) and the number of calls to it in the whole program; both are
+	// measured by `Inliner`, and the size again by `CallGraph` once the
+	// program is optimized
+	public int size = 0;
+	public int callSites = 0;
+
+	public MethodInfo(String name, int id) {
+		this.name = name;
+		this.id = id;
+	}
+
+	// the prefix of the method's labels: `name` with its underscores
+	// doubled, so that a single `_` only separates the parts of a label and
+	// the labels of different methods never collide (e.g., `f_x` gives
+	// `f__x_method` and `f__x_end_0`). The labels don't depend on the other
+	// methods, so unchanged methods generate the same code
+	public String getLabelName() {
+		return name.replace("_", "__");
+	}
+}
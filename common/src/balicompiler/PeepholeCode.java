@@ -0,0 +1,235 @@
+package balicompiler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.function.Function;
+
+// the code of a method while a peephole optimizer (`sam.SamPeephole`,
+// `x86.X86Peephole`) rewrites it. The instructions are kept in a doubly
+// linked list of nodes (numbered in the order they were created), so that a
+// rewrite only costs the size of its pattern, and the definition and the
+// jumps of each label are indexed, so that a jump's target is found without
+// a search.
+//
+// The optimizer only tries its rules at the nodes of a worklist: at first
+// every node, then only the ones that a rewrite may have made match (the
+// replacement, the nodes whose pattern can reach into it, and the jumps to
+// the labels whose instruction changed). The whole optimization is then
+// about linear in the size of the code instead of a number of full scans
+public class PeepholeCode<I> {
+	// the label an instruction defines / jumps to, or null
+	private final Function<I, String> getDefinedLabel;
+	private final Function<I, String> getJumpTarget;
+	// the number of nodes before a rewrite whose pattern may include it
+	private final int lookBehind;
+
+	// indexed by node; the instruction is null once the node is removed, and
+	// -1 links to no node
+	private final ArrayList<I> instructions = new ArrayList<I>();
+	private int[] next;
+	private int[] previous;
+	private int first = -1;
+
+	// the node of each label definition, and the nodes of the jumps to each
+	// label (including removed ones, which are skipped)
+	private final HashMap<String, Integer> labels = new HashMap<String, Integer>();
+	private final HashMap<String, ArrayList<Integer>> jumps = new HashMap<String, ArrayList<Integer>>();
+
+	// the nodes to try the rules at, as a stack, and whether each node is on it
+	private int[] worklist;
+	private int worklistSize = 0;
+	private boolean[] queued;
+
+	// `maxPatternLength` is the length of the longest pattern of the rules
+	public PeepholeCode(List<I> code, Function<I, String> getDefinedLabel, Function<I, String> getJumpTarget,
+			int maxPatternLength) {
+		this.getDefinedLabel = getDefinedLabel;
+		this.getJumpTarget = getJumpTarget;
+		lookBehind = maxPatternLength - 1;
+		int capacity = Math.max(16, code.size() * 2);
+		next = new int[capacity];
+		previous = new int[capacity];
+		worklist = new int[capacity];
+		queued = new boolean[capacity];
+		int last = -1;
+		for (I instruction : code) {
+			last = insertAfter(last, instruction);
+		}
+		// the rules are first tried from the start of the code
+		for (int node = last; node >= 0; node = previous[node]) {
+			queue(node);
+		}
+	}
+
+	public int getFirst() {
+		return first;
+	}
+
+	// -1 after the last node
+	public int getNext(int node) {
+		return next[node];
+	}
+
+	public I get(int node) {
+		return instructions.get(node);
+	}
+
+	// the next node to try the rules at, or -1 once there is none
+	public int poll() {
+		while (worklistSize > 0) {
+			int node = worklist[--worklistSize];
+			queued[node] = false;
+			if (instructions.get(node) != null) {
+				return node;
+			}
+		}
+		return -1;
+	}
+
+	// replaces the `count` nodes from `node` on with `replacement`, and
+	// queues the nodes whose rules may now match
+	public void replace(int node, int count, List<I> replacement) {
+		int before = previous[node];
+		int after = node;
+		for (int k = 0; k < count; k++) {
+			int removed = after;
+			after = next[removed];
+			String label = getDefinedLabel.apply(instructions.get(removed));
+			if (label != null && Integer.valueOf(removed).equals(labels.get(label))) {
+				labels.remove(label);
+			}
+			instructions.set(removed, null);
+		}
+		link(before, after);
+
+		int last = before;
+		for (I instruction : replacement) {
+			last = insertAfter(last, instruction);
+			queue(last);
+			String definedLabel = getDefinedLabel.apply(instruction);
+			if (definedLabel != null) {
+				queueJumps(definedLabel);
+			}
+		}
+
+		int at = before;
+		for (int k = 0; k < lookBehind && at >= 0; k++) {
+			queue(at);
+			at = previous[at];
+		}
+		// the labels right before the change are now followed by another
+		// instruction, so the jumps to them may go further, and the jump
+		// right before them may now be a jump to the next instruction
+		at = before;
+		String label;
+		while (at >= 0 && (label = getDefinedLabel.apply(instructions.get(at))) != null) {
+			queueJumps(label);
+			at = previous[at];
+		}
+		if (at >= 0) {
+			queue(at);
+		}
+	}
+
+	// the first instruction after the definition of `label`, or null if the
+	// label isn't defined in the code or nothing follows it
+	public I getInstructionAt(String label) {
+		Integer node = labels.get(label);
+		if (node == null) {
+			return null;
+		}
+		for (int at = next[node]; at >= 0; at = next[at]) {
+			if (getDefinedLabel.apply(instructions.get(at)) == null) {
+				return instructions.get(at);
+			}
+		}
+		return null;
+	}
+
+	// the last instruction before the definition of `label` (and the labels
+	// right before it), or null if the label isn't defined in the code or
+	// nothing comes before it
+	public I getInstructionBefore(String label) {
+		Integer node = labels.get(label);
+		if (node == null) {
+			return null;
+		}
+		for (int at = previous[node]; at >= 0; at = previous[at]) {
+			if (getDefinedLabel.apply(instructions.get(at)) == null) {
+				return instructions.get(at);
+			}
+		}
+		return null;
+	}
+
+	// replaces the contents of `code` with the rewritten code
+	public void writeTo(List<I> code) {
+		code.clear();
+		for (int node = first; node >= 0; node = next[node]) {
+			code.add(instructions.get(node));
+		}
+	}
+
+	// ===============================
+	// the following are utility/helper functions
+	// ===============================
+
+	// creates the node of `instruction` after `node` (-1 to put it first)
+	// and returns it
+	private int insertAfter(int node, I instruction) {
+		int created = instructions.size();
+		instructions.add(instruction);
+		if (created == next.length) {
+			int capacity = created * 2;
+			next = Arrays.copyOf(next, capacity);
+			previous = Arrays.copyOf(previous, capacity);
+			worklist = Arrays.copyOf(worklist, capacity);
+			queued = Arrays.copyOf(queued, capacity);
+		}
+		int following = node >= 0 ? next[node] : first;
+		link(node, created);
+		link(created, following);
+
+		String label = getDefinedLabel.apply(instruction);
+		if (label != null) {
+			labels.put(label, created);
+		}
+		String target = getJumpTarget.apply(instruction);
+		if (target != null) {
+			jumps.computeIfAbsent(target, key -> new ArrayList<Integer>()).add(created);
+		}
+		return created;
+	}
+
+	private void link(int node, int following) {
+		if (node >= 0) {
+			next[node] = following;
+		} else {
+			first = following;
+		}
+		if (following >= 0) {
+			previous[following] = node;
+		}
+	}
+
+	private void queue(int node) {
+		if (!queued[node]) {
+			queued[node] = true;
+			worklist[worklistSize++] = node;
+		}
+	}
+
+	// queues the jumps to `label`, dropping the removed ones from its list
+	private void queueJumps(String label) {
+		ArrayList<Integer> nodes = jumps.get(label);
+		if (nodes == null) {
+			return;
+		}
+		nodes.removeIf(node -> instructions.get(node) == null);
+		for (int node : nodes) {
+			queue(node);
+		}
+	}
+}
@@ -0,0 +1,24 @@
+package balicompiler;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+// the AST of a whole Bali file
+public class Program {
+	// the methods in declaration order
+	public final ArrayList<MethodDecl> methods = new ArrayList<MethodDecl>();
+	public final HashMap<String, MethodInfo> methodInfos = new HashMap<String, MethodInfo>();
+	// indexed by `MethodInfo.id`
+	public final ArrayList<MethodInfo> methodInfoList = new ArrayList<MethodInfo>();
+
+	// look up a method; create its `MethodInfo` if it hasn't been seen yet
+	public MethodInfo getMethodInfo(String methodID) {
+		MethodInfo info = methodInfos.get(methodID);
+		if (info == null) {
+			info = new MethodInfo(methodID, methodInfoList.size());
+			methodInfos.put(methodID, info);
+			methodInfoList.add(info);
+		}
+		return info;
+	}
+}
@@ -0,0 +1,78 @@
+package balicompiler;
+
+import java.util.ArrayList;
+
+// the statement nodes of the Bali AST (see `Expr` for the conventions).
+// An empty statement (`;`) is parsed into an empty `Block`
+public abstract class Stmt {
+	public enum Kind {
+		BLOCK, ASSIGN, RETURN, IF, WHILE, BREAK
+	}
+
+	public final Kind kind;
+
+	protected Stmt(Kind kind) {
+		this.kind = kind;
+	}
+
+	public static final class Block extends Stmt {
+		public ArrayList<Stmt> statements;
+
+		public Block(ArrayList<Stmt> statements) {
+			super(Kind.BLOCK);
+			this.statements = statements;
+		}
+	}
+
+	public static final class Assign extends Stmt {
+		public int slot;
+		public Expr value;
+
+		public Assign(int slot, Expr value) {
+			super(Kind.ASSIGN);
+			this.slot = slot;
+			this.value = value;
+		}
+	}
+
+	public static final class Return extends Stmt {
+		public Expr value;
+
+		public Return(Expr value) {
+			super(Kind.RETURN);
+			this.value = value;
+		}
+	}
+
+	// Bali requires the `else` part, so `elseStmt` is never null
+	public static final class If extends Stmt {
+		public Expr condition;
+		public Stmt thenStmt;
+		public Stmt elseStmt;
+
+		public If(Expr condition, Stmt thenStmt, Stmt elseStmt) {
+			super(Kind.IF);
+			this.condition = condition;
+			this.thenStmt = thenStmt;
+			this.elseStmt = elseStmt;
+		}
+	}
+
+	public static final class While extends Stmt {
+		public Expr condition;
+		public Stmt body;
+
+		public While(Expr condition, Stmt body) {
+			super(Kind.WHILE);
+			this.condition = condition;
+			this.body = body;
+		}
+	}
+
+	// `break` always exits the innermost enclosing `while`
+	public static final class Break extends Stmt {
+		public Break() {
+			super(Kind.BREAK);
+		}
+	}
+}
@@ -0,0 +1,26 @@
+package balicompiler;
+
+// the target machines, for the options that pick them by name
+public enum Target {
+	SAM(".sam"), X86(".asm");
+
+	// of the output files
+	public final String extension;
+
+	Target(String extension) {
+		this.extension = extension;
+	}
+
+	// throws an IllegalArgumentException for an unknown target
+	public static Target parse(String name) {
+		switch (name.toLowerCase()) {
+			case "sam":
+				return SAM;
+			case "x86":
+			case "nasm":
+				return X86;
+			default:
+				throw new IllegalArgumentException("Unknown target `" + name + "`; expecting `sam` or `x86`");
+		}
+	}
+}
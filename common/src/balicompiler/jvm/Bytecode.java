@@ -0,0 +1,154 @@
+package balicompiler.jvm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+// the code of one method being written, with forward jumps to labels that
+// are patched once the labels are placed. It keeps track of the operand
+// stack depth for `max_stack`; after an instruction that doesn't fall
+// through, the code that follows must be at a label (or `setDepth()`)
+public class Bytecode {
+	// the opcodes used by `JvmBackend`
+	public static final int ICONST_0 = 0x03, BIPUSH = 0x10, SIPUSH = 0x11, LDC_W = 0x13, ILOAD = 0x15, ISTORE = 0x36,
+			DUP = 0x59, IADD = 0x60, ISUB = 0x64, IMUL = 0x68, IDIV = 0x6C, INEG = 0x74, IUSHR = 0x7C,
+			IAND = 0x7E, IOR = 0x80, IXOR = 0x82, IFEQ = 0x99, IFNE = 0x9A, IF_ICMPEQ = 0x9F, IF_ICMPNE = 0xA0,
+			IF_ICMPLT = 0xA1, IF_ICMPGE = 0xA2, IF_ICMPGT = 0xA3, IF_ICMPLE = 0xA4, GOTO = 0xA7, IRETURN = 0xAC,
+			INVOKESTATIC = 0xB8, WIDE = 0xC4;
+
+	// a position in the code; `offset` is -1 until it is placed
+	public static final class Label {
+		int offset = -1;
+		// the offsets of the jumps to it, while it isn't placed
+		final ArrayList<Integer> jumps = new ArrayList<Integer>();
+	}
+
+	private byte[] code = new byte[256];
+	private int length = 0;
+	private int depth = 0;
+	private int maxStack = 0;
+	private final int maxLocals;
+
+	public Bytecode(int maxLocals) {
+		this.maxLocals = maxLocals;
+	}
+
+	public int getMaxStack() {
+		return maxStack;
+	}
+
+	public int getDepth() {
+		return depth;
+	}
+
+	public int getMaxLocals() {
+		return maxLocals;
+	}
+
+	// throws an IllegalStateException if the method is too large for the
+	// JVM
+	public byte[] toByteArray() {
+		if (length > 0xFFFF) {
+			throw new IllegalStateException("the code is too large for a JVM method");
+		}
+		return Arrays.copyOf(code, length);
+	}
+
+	// an instruction without operands that changes the stack depth by
+	// `stackChange`
+	public void emit(int opcode, int stackChange) {
+		writeByte(opcode);
+		changeDepth(stackChange);
+	}
+
+	public void emitConstant(int value, ClassWriter classWriter) {
+		if (value >= -1 && value <= 5) {
+			writeByte(ICONST_0 + value);
+		} else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+			writeByte(BIPUSH);
+			writeByte(value);
+		} else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+			writeByte(SIPUSH);
+			writeShort(value);
+		} else {
+			writeByte(LDC_W);
+			writeShort(classWriter.addInteger(value));
+		}
+		changeDepth(1);
+	}
+
+	// `ILOAD` or `ISTORE`
+	public void emitLocal(int opcode, int local) {
+		if (local > 0xFF) {
+			writeByte(WIDE);
+			writeByte(opcode);
+			writeShort(local);
+		} else {
+			writeByte(opcode);
+			writeByte(local);
+		}
+		changeDepth(opcode == ILOAD ? 1 : -1);
+	}
+
+	// a static method that takes `numArguments` ints and returns an int
+	public void emitInvokeStatic(int methodref, int numArguments) {
+		writeByte(INVOKESTATIC);
+		writeShort(methodref);
+		changeDepth(1 - numArguments);
+	}
+
+	// `GOTO` or a conditional branch (which pops its operands)
+	public void emitJump(int opcode, Label label) {
+		int start = length;
+		writeByte(opcode);
+		if (label.offset >= 0) {
+			writeShort(checkOffset(label.offset - start));
+		} else {
+			label.jumps.add(start);
+			writeShort(0);
+		}
+		if (opcode == IFEQ || opcode == IFNE) {
+			changeDepth(-1);
+		} else if (opcode != GOTO) {
+			changeDepth(-2);
+		}
+	}
+
+	public void placeLabel(Label label) {
+		label.offset = length;
+		for (int jump : label.jumps) {
+			int offset = checkOffset(length - jump);
+			code[jump + 1] = (byte) (offset >> 8);
+			code[jump + 2] = (byte) offset;
+		}
+		label.jumps.clear();
+	}
+
+	// for the code after an instruction that doesn't fall through
+	public void setDepth(int depth) {
+		this.depth = depth;
+	}
+
+	private void changeDepth(int change) {
+		depth += change;
+		maxStack = Math.max(maxStack, depth);
+	}
+
+	private static int checkOffset(int offset) {
+		if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+			throw new IllegalStateException("the code is too large for a JVM method (a jump is out of range)");
+		}
+		return offset;
+	}
+
+	private void writeByte(int b) {
+		if (length == code.length) {
+			code = Arrays.copyOf(code, code.length * 2);
+		}
+		code[length++] = (byte) b;
+	}
+
+	private void writeShort(int s) {
+		writeByte(s >> 8);
+		writeByte(s);
+	}
+}
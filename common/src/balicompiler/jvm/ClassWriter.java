@@ -0,0 +1,170 @@
+package balicompiler.jvm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+// a minimal writer of JVM class files: a class that extends `Object` and
+// only has static methods (the code is built with `Bytecode`). It writes
+// version 49 (Java 5) class files, which the JVM verifies without stack
+// map frames, so that the branches need no type bookkeeping
+public class ClassWriter {
+	private static final int MAJOR_VERSION = 49;
+	private static final int ACC_PUBLIC = 0x0001, ACC_STATIC = 0x0008, ACC_FINAL = 0x0010, ACC_SUPER = 0x0020;
+
+	private static final int CONSTANT_UTF8 = 1, CONSTANT_INTEGER = 3, CONSTANT_CLASS = 7, CONSTANT_METHODREF = 10,
+			CONSTANT_NAME_AND_TYPE = 12;
+
+	// the constant pool, already encoded, and its number of entries plus 1
+	// (entry 0 doesn't exist)
+	private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+	private final DataOutputStream poolOut = new DataOutputStream(pool);
+	private int poolCount = 1;
+	// the index of every entry added so far, keyed by its tag and contents
+	private final HashMap<String, Integer> poolIndexes = new HashMap<String, Integer>();
+
+	// the binary name (with `/`s) of the class
+	public final String className;
+	private final int thisClass;
+	private final int superClass;
+	private final int codeAttribute;
+	private final ArrayList<byte[]> methods = new ArrayList<byte[]>();
+
+	public ClassWriter(String className) {
+		this.className = className;
+		thisClass = addClass(className);
+		superClass = addClass("java/lang/Object");
+		codeAttribute = addUtf8("Code");
+	}
+
+	// ===============================
+	// the constant pool
+	// ===============================
+
+	public int addUtf8(String value) {
+		Integer index = poolIndexes.get("U" + value);
+		if (index != null) {
+			return index;
+		}
+		try {
+			poolOut.writeByte(CONSTANT_UTF8);
+			poolOut.writeUTF(value);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return addEntry("U" + value);
+	}
+
+	public int addInteger(int value) {
+		Integer index = poolIndexes.get("I" + value);
+		if (index != null) {
+			return index;
+		}
+		write(CONSTANT_INTEGER, value >>> 16, value & 0xFFFF);
+		return addEntry("I" + value);
+	}
+
+	public int addClass(String name) {
+		Integer index = poolIndexes.get("C" + name);
+		if (index != null) {
+			return index;
+		}
+		int nameIndex = addUtf8(name);
+		write(CONSTANT_CLASS, nameIndex);
+		return addEntry("C" + name);
+	}
+
+	// a static method of the class being written
+	public int addMethodref(String name, String descriptor) {
+		String key = "M" + name + descriptor;
+		Integer index = poolIndexes.get(key);
+		if (index != null) {
+			return index;
+		}
+		int nameIndex = addUtf8(name);
+		int descriptorIndex = addUtf8(descriptor);
+		write(CONSTANT_NAME_AND_TYPE, nameIndex, descriptorIndex);
+		int nameAndType = addEntry("N" + name + descriptor);
+		write(CONSTANT_METHODREF, thisClass, nameAndType);
+		return addEntry(key);
+	}
+
+	// writes a tag followed by 2-byte values
+	private void write(int tag, int... values) {
+		try {
+			poolOut.writeByte(tag);
+			for (int value : values) {
+				poolOut.writeShort(value);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private int addEntry(String key) {
+		if (poolCount > 0xFFFF) {
+			throw new IllegalStateException("too many constants for a class file");
+		}
+		poolIndexes.put(key, poolCount);
+		return poolCount++;
+	}
+
+	// ===============================
+	// the methods
+	// ===============================
+
+	// a `public static` method with the code in `code`
+	public void addMethod(String name, String descriptor, Bytecode code) {
+		byte[] bytes = code.toByteArray();
+		ByteArrayOutputStream method = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(method);
+		try {
+			out.writeShort(ACC_PUBLIC | ACC_STATIC);
+			out.writeShort(addUtf8(name));
+			out.writeShort(addUtf8(descriptor));
+			// one attribute: `Code`, without exception handlers or attributes
+			out.writeShort(1);
+			out.writeShort(codeAttribute);
+			out.writeInt(2 + 2 + 4 + bytes.length + 2 + 2);
+			out.writeShort(code.getMaxStack());
+			out.writeShort(code.getMaxLocals());
+			out.writeInt(bytes.length);
+			out.write(bytes);
+			out.writeShort(0);
+			out.writeShort(0);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		methods.add(method.toByteArray());
+	}
+
+	public byte[] toByteArray() {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeInt(0xCAFEBABE);
+			out.writeShort(0);
+			out.writeShort(MAJOR_VERSION);
+			out.writeShort(poolCount);
+			pool.writeTo(out);
+			out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+			out.writeShort(thisClass);
+			out.writeShort(superClass);
+			// no interfaces, no fields
+			out.writeShort(0);
+			out.writeShort(0);
+			out.writeShort(methods.size());
+			for (byte[] method : methods) {
+				out.write(method);
+			}
+			// no class attributes
+			out.writeShort(0);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return bytes.toByteArray();
+	}
+}
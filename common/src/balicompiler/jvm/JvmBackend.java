@@ -0,0 +1,331 @@
+package balicompiler.jvm;
+
+import balicompiler.Expr;
+import balicompiler.MethodDecl;
+import balicompiler.MethodInfo;
+import balicompiler.Program;
+import balicompiler.Stmt;
+
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+import static balicompiler.jvm.Bytecode.*;
+
+// compiles the AST to JVM bytecode (the drivers' `--run` mode): every Bali
+// method becomes a static method over `int`s of one class, which is loaded
+// as a hidden class and run in-process, so the JIT compiles the Bali code
+// like any Java code. The parameters and locals are the JVM locals of the
+// same slots (see `MethodDecl`), and Bali's booleans are `0`/`1` as in the
+// other backends.
+//
+// Unlike the other backends it doesn't output text, so it isn't a
+// `Backend`; `generate()` gives the class file, and `run()` runs `main`
+public class JvmBackend {
+	// the class must be in this package to be defined with our lookup
+	private static final String CLASS_NAME = "balicompiler/jvm/BaliProgram";
+	// the thread that runs `main` gets a large stack, for the deep
+	// recursions that the SaM simulator allows
+	private static final long STACK_SIZE = 1L << 30;
+
+	private ClassWriter classWriter;
+	private MethodDecl method;
+	private Bytecode code;
+	// the end of the innermost loop, for `break`
+	private Bytecode.Label breakLabel;
+
+	// throws an IllegalStateException if the program can't be compiled to
+	// the JVM (e.g., a method is too large or a called method is missing)
+	public byte[] generate(Program program) {
+		classWriter = new ClassWriter(CLASS_NAME);
+		for (MethodDecl methodDecl : program.methods) {
+			generateMethod(methodDecl);
+		}
+		return classWriter.toByteArray();
+	}
+
+	// compiles and runs `program`, printing `main`'s return value to `out`
+	// the way the x86 `CMAIN` does, or the error to `err`; returns the exit
+	// code for the driver
+	public static int run(Program program, PrintStream out, PrintStream err) {
+		MethodInfo main = program.methodInfos.get("main");
+		if (main == null || main.declaration == null || main.numParameters != 0) {
+			err.println("The program has no `main()` method");
+			return 1;
+		}
+		MethodHandle mainHandle;
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(new JvmBackend().generate(program), true);
+			mainHandle = lookup.findStatic(lookup.lookupClass(), "main", MethodType.methodType(int.class));
+		} catch (IllegalStateException e) {
+			err.println(e.getMessage());
+			return 1;
+		} catch (ReflectiveOperationException | LinkageError e) {
+			// the generated class didn't verify; that's a bug of this backend
+			throw new IllegalStateException("the generated class is invalid", e);
+		}
+
+		int[] result = new int[1];
+		Throwable[] failure = new Throwable[1];
+		Thread thread = new Thread(null, () -> {
+			try {
+				result[0] = (int) mainHandle.invokeExact();
+			} catch (Throwable e) {
+				failure[0] = e;
+			}
+		}, "bali-main", STACK_SIZE);
+		thread.start();
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			err.println("Interrupted while running `main()`");
+			return 1;
+		}
+
+		if (failure[0] instanceof ArithmeticException) {
+			err.println("Runtime error: division by zero");
+			return 1;
+		} else if (failure[0] instanceof StackOverflowError) {
+			err.println("Runtime error: the recursion is too deep");
+			return 1;
+		} else if (failure[0] != null) {
+			err.println("Runtime error: " + failure[0]);
+			return 1;
+		}
+		out.println(result[0]);
+		return 0;
+	}
+
+	private void generateMethod(MethodDecl methodDecl) {
+		method = methodDecl;
+		code = new Bytecode(method.numSlots());
+		// the verifier wants every local assigned before it's read, so the
+		// ones without an initializer are set to `0` too
+		for (int i = 0; i < method.numLocals(); i++) {
+			Expr initializer = method.localInitializers.get(i);
+			if (initializer == null) {
+				code.emitConstant(0, classWriter);
+			} else {
+				generateExpression(initializer);
+			}
+			code.emitLocal(ISTORE, method.numParameters + i);
+		}
+		generateStatement(method.body);
+		// a method that runs off its end returns `0`
+		code.emitConstant(0, classWriter);
+		code.emit(IRETURN, -1);
+		classWriter.addMethod(method.info.name, getDescriptor(method.numParameters), code);
+	}
+
+	private static String getDescriptor(int numParameters) {
+		return "(" + "I".repeat(numParameters) + ")I";
+	}
+
+	// ===============================
+	// statements
+	// ===============================
+
+	private void generateStatement(Stmt statement) {
+		switch (statement.kind) {
+			case BLOCK:
+				for (Stmt inner : ((Stmt.Block) statement).statements) {
+					generateStatement(inner);
+				}
+				break;
+			case ASSIGN:
+				Stmt.Assign assign = (Stmt.Assign) statement;
+				generateExpression(assign.value);
+				code.emitLocal(ISTORE, assign.slot);
+				break;
+			case RETURN:
+				generateExpression(((Stmt.Return) statement).value);
+				code.emit(IRETURN, -1);
+				break;
+			case IF:
+				Stmt.If ifStatement = (Stmt.If) statement;
+				Bytecode.Label elseLabel = new Bytecode.Label();
+				generateConditionalJump(ifStatement.condition, false, elseLabel);
+				generateStatement(ifStatement.thenStmt);
+				if (isEmpty(ifStatement.elseStmt)) {
+					code.placeLabel(elseLabel);
+				} else {
+					Bytecode.Label endLabel = new Bytecode.Label();
+					code.emitJump(GOTO, endLabel);
+					code.placeLabel(elseLabel);
+					generateStatement(ifStatement.elseStmt);
+					code.placeLabel(endLabel);
+				}
+				break;
+			case WHILE:
+				Stmt.While whileStatement = (Stmt.While) statement;
+				Bytecode.Label outerBreakLabel = breakLabel;
+				Bytecode.Label loopLabel = new Bytecode.Label();
+				breakLabel = new Bytecode.Label();
+				code.placeLabel(loopLabel);
+				generateConditionalJump(whileStatement.condition, false, breakLabel);
+				generateStatement(whileStatement.body);
+				code.emitJump(GOTO, loopLabel);
+				code.placeLabel(breakLabel);
+				breakLabel = outerBreakLabel;
+				break;
+			case BREAK:
+				code.emitJump(GOTO, breakLabel);
+				break;
+		}
+	}
+
+	private static boolean isEmpty(Stmt statement) {
+		return statement.kind == Stmt.Kind.BLOCK && ((Stmt.Block) statement).statements.isEmpty();
+	}
+
+	// ===============================
+	// expressions
+	// ===============================
+
+	// jumps to `label` if `condition` is `jumpIfTrue`, the same way as
+	// `X86Backend.generateConditionalJump()`
+	private void generateConditionalJump(Expr condition, boolean jumpIfTrue, Bytecode.Label label) {
+		switch (condition.kind) {
+			case INT_LITERAL:
+				if ((((Expr.IntLiteral) condition).value != 0) == jumpIfTrue) {
+					code.emitJump(GOTO, label);
+				}
+				return;
+			case NOT:
+				generateConditionalJump(((Expr.Unary) condition).operand, !jumpIfTrue, label);
+				return;
+			case BINARY:
+				Expr.Binary binary = (Expr.Binary) condition;
+				switch (binary.operator) {
+					case '<':
+					case '>':
+					case '=':
+						generateExpression(binary.left);
+						generateExpression(binary.right);
+						code.emitJump(getComparisonJump(binary.operator, jumpIfTrue), label);
+						return;
+					case '&':
+					case '|':
+						// `&` is decided by a `false` operand, `|` by a `true` one
+						boolean decidingValue = binary.operator == '|';
+						if (jumpIfTrue == decidingValue) {
+							generateConditionalJump(binary.left, jumpIfTrue, label);
+							generateConditionalJump(binary.right, jumpIfTrue, label);
+						} else {
+							Bytecode.Label decidedLabel = new Bytecode.Label();
+							generateConditionalJump(binary.left, decidingValue, decidedLabel);
+							generateConditionalJump(binary.right, jumpIfTrue, label);
+							code.placeLabel(decidedLabel);
+						}
+						return;
+				}
+				break;
+		}
+		generateExpression(condition);
+		code.emitJump(jumpIfTrue ? IFNE : IFEQ, label);
+	}
+
+	// the branch taken when `operator` holds (or doesn't, if not
+	// `jumpIfTrue`) for the two ints on the stack
+	private static int getComparisonJump(char operator, boolean jumpIfTrue) {
+		switch (operator) {
+			case '<':
+				return jumpIfTrue ? IF_ICMPLT : IF_ICMPGE;
+			case '>':
+				return jumpIfTrue ? IF_ICMPGT : IF_ICMPLE;
+			default:
+				return jumpIfTrue ? IF_ICMPEQ : IF_ICMPNE;
+		}
+	}
+
+	private void generateExpression(Expr expression) {
+		switch (expression.kind) {
+			case INT_LITERAL:
+				code.emitConstant(((Expr.IntLiteral) expression).value, classWriter);
+				break;
+			case VARIABLE:
+				code.emitLocal(ILOAD, ((Expr.Variable) expression).slot);
+				break;
+			case NEGATE:
+				generateExpression(((Expr.Unary) expression).operand);
+				code.emit(INEG, 0);
+				break;
+			case NOT:
+				generateExpression(((Expr.Unary) expression).operand);
+				generateToBoolean();
+				code.emitConstant(1, classWriter);
+				code.emit(IXOR, -1);
+				break;
+			case BINARY:
+				generateBinary((Expr.Binary) expression);
+				break;
+			case CALL:
+				Expr.Call call = (Expr.Call) expression;
+				if (call.callee.declaration == null) {
+					throw new IllegalStateException("Method `" + call.callee.name + "` on line " + call.line + " is never declared");
+				}
+				for (Expr argument : call.arguments) {
+					generateExpression(argument);
+				}
+				code.emitInvokeStatic(classWriter.addMethodref(call.callee.name, getDescriptor(call.arguments.length)),
+						call.arguments.length);
+				break;
+		}
+	}
+
+	private void generateBinary(Expr.Binary binary) {
+		generateExpression(binary.left);
+		if (binary.operator == '&') {
+			generateToBoolean();
+		}
+		generateExpression(binary.right);
+		switch (binary.operator) {
+			case '+':
+				code.emit(IADD, -1);
+				break;
+			case '-':
+				code.emit(ISUB, -1);
+				break;
+			case '*':
+				code.emit(IMUL, -1);
+				break;
+			case '/':
+				code.emit(IDIV, -1);
+				break;
+			case '&':
+				generateToBoolean();
+				code.emit(IAND, -1);
+				break;
+			case '|':
+				// the `or` is `0` only if both operands are `false` (`0`)
+				code.emit(IOR, -1);
+				generateToBoolean();
+				break;
+			default:
+				// a comparison: `1` if it holds, `0` otherwise
+				Bytecode.Label trueLabel = new Bytecode.Label();
+				Bytecode.Label endLabel = new Bytecode.Label();
+				code.emitJump(getComparisonJump(binary.operator, true), trueLabel);
+				code.emitConstant(0, classWriter);
+				code.emitJump(GOTO, endLabel);
+				code.setDepth(code.getDepth() - 1);
+				code.placeLabel(trueLabel);
+				code.emitConstant(1, classWriter);
+				code.placeLabel(endLabel);
+				break;
+		}
+	}
+
+	// turns the int on the stack into `1` if it is `true` (!= 0) and `0`
+	// otherwise, without a branch: the sign bit of `x | -x` is set exactly
+	// when `x != 0`
+	private void generateToBoolean() {
+		code.emit(DUP, 1);
+		code.emit(INEG, 0);
+		code.emit(IOR, -1);
+		code.emitConstant(31, classWriter);
+		code.emit(IUSHR, -1);
+	}
+}
@@ -0,0 +1,303 @@
+package balicompiler.sam;
+import balicompiler.Backend;
+import balicompiler.CodeEmitter;
+import balicompiler.Expr;
+import balicompiler.MethodDecl;
+import balicompiler.MethodInfo;
+import balicompiler.Program;
+import balicompiler.Stmt;
+
+import java.util.ArrayList;
+
+import static balicompiler.sam.SamOpcode.*;
+
+// generates SaM code from the AST.
+//
+// NOTES on the stack frame: the caller pushes a slot for the return value,
+// then the actuals, then `LINK`s and `JSR`s. So the parameters are at
+// `FBR - numParameters .. FBR - 1`, the return value slot right below them,
+// and the locals (pushed by the callee) start at `FBR + 2`.
+//
+// The code of each method is collected as a list of `SamInstruction`s so
+// that the peephole optimizer can work on it before it is written out
+public class SamBackend implements Backend {
+	private CodeEmitter out;
+	// null if the peephole optimizer is disabled
+	private final SamPeephole peephole;
+	// the instructions of the method being generated
+	private final ArrayList<SamInstruction> code = new ArrayList<SamInstruction>();
+	// `labelCount` is used by `generateLabel()` to generate
+	// unique SaM labels within the current method
+	private int labelCount = 0;
+
+	// the method whose code is currently being generated
+	private MethodDecl method;
+	private String endLabel;
+
+	public SamBackend() {
+		this(new SamPeephole());
+	}
+
+	public SamBackend(SamPeephole peephole) {
+		this.peephole = peephole;
+	}
+
+	public void generateStart(Program program, CodeEmitter out) {
+		this.out = out;
+		// the program bootstraps by calling the `main()` method
+		// and will terminate after `main()` terminates
+		emit(PUSHIMM, 0);
+		emit(LINK);
+		emit(JSR, "main");
+		emit(POPFBR);
+		emit(STOP);
+		flushCode();
+	}
+
+	// the program stops right away; this doesn't go through the list of
+	// instructions, which is only written out at the end of a method
+	public void generateFallback(CodeEmitter out) {
+		new SamInstruction(STOP).emit(out);
+	}
+
+	public String getConfiguration() {
+		return "sam " + (peephole == null ? "no-peephole" : peephole.getConfiguration());
+	}
+
+	public void generateMethod(MethodDecl method, CodeEmitter out) {
+		this.out = out;
+		this.method = method;
+		labelCount = 0;
+		emitLabel(getMethodLabel(method.info));
+		endLabel = generateLabel("end");
+
+		// push the locals' initial values; this allocates them on the stack
+		for (Expr initializer : method.localInitializers) {
+			if (initializer != null) {
+				generateExpression(initializer);
+			} else {
+				emit(PUSHIMM, 0);
+			}
+		}
+
+		generateStatement(method.body, null);
+
+		// set up the end of the method
+		emitLabel(endLabel);
+
+		// store the TOS value in the return value address
+		// (assuming that the return value is undefined if no explicit
+		// return statement exists)
+		emit(STOREOFF, -method.numParameters - 1);
+
+		// pop the local variables off (simply move the Stack Pointer)
+		emit(ADDSP, -method.numLocals());
+
+		// return to caller
+		emit(JUMPIND);
+		flushCode();
+	}
+
+	// breakLabel is the label for where a `break` should jump to
+	private void generateStatement(Stmt statement, String breakLabel) {
+		switch (statement.kind) {
+			case BLOCK:
+				for (Stmt inner : ((Stmt.Block) statement).statements) {
+					generateStatement(inner, breakLabel);
+				}
+				break;
+			case ASSIGN:
+				Stmt.Assign assign = (Stmt.Assign) statement;
+				generateExpression(assign.value);
+				emit(STOREOFF, getFBROffset(assign.slot));
+				break;
+			case RETURN:
+				Expr value = ((Stmt.Return) statement).value;
+				if (isTailCall(value)) {
+					generateTailCall((Expr.Call) value);
+					break;
+				}
+				// evaluate the expression then go to the end of the method
+				generateExpression(value);
+				emit(JUMP, endLabel);
+				break;
+			case IF:
+				generateIfStatement((Stmt.If) statement, breakLabel);
+				break;
+			case WHILE:
+				generateWhileStatement((Stmt.While) statement);
+				break;
+			case BREAK:
+				emit(JUMP, breakLabel);
+				break;
+		}
+	}
+
+	private void generateIfStatement(Stmt.If ifStatement, String breakLabel) {
+		// branch to the `else` part when the condition is `false`
+		String falseLabel = generateLabel("false");
+		String postConditionalLabel = generateLabel("post_conditional");
+		generateExpression(ifStatement.condition);
+		emit(ISNIL);
+		emit(JUMPC, falseLabel);
+		generateStatement(ifStatement.thenStmt, breakLabel);
+		emit(JUMP, postConditionalLabel);
+		emitLabel(falseLabel);
+		generateStatement(ifStatement.elseStmt, breakLabel);
+		emitLabel(postConditionalLabel);
+	}
+
+	private void generateWhileStatement(Stmt.While whileStatement) {
+		String whileStartLabel = generateLabel("while_start");
+		String breakLabel = generateLabel("break");
+		emitLabel(whileStartLabel);
+		generateExpression(whileStatement.condition);
+		emit(ISNIL);
+		emit(JUMPC, breakLabel); // break if cond == false
+		generateStatement(whileStatement.body, breakLabel); // otherwise, execute the inner STMT
+		emit(JUMP, whileStartLabel);
+		emitLabel(breakLabel);
+	}
+
+	// every expression leaves its value on top of the stack
+	private void generateExpression(Expr expression) {
+		switch (expression.kind) {
+			case INT_LITERAL:
+				emit(PUSHIMM, ((Expr.IntLiteral) expression).value);
+				break;
+			case VARIABLE:
+				emit(PUSHOFF, getFBROffset(((Expr.Variable) expression).slot));
+				break;
+			case NEGATE:
+				generateExpression(((Expr.Unary) expression).operand);
+				emit(PUSHIMM, -1);
+				emit(TIMES);
+				break;
+			case NOT:
+				generateExpression(((Expr.Unary) expression).operand);
+				emit(NOT);
+				break;
+			case BINARY:
+				Expr.Binary binary = (Expr.Binary) expression;
+				generateExpression(binary.left);
+				generateExpression(binary.right);
+				emit(getOperatorInstruction(binary.operator));
+				break;
+			case CALL:
+				generateMethodCall((Expr.Call) expression);
+				break;
+		}
+	}
+
+	private void generateMethodCall(Expr.Call call) {
+		emit(PUSHIMM, 0); // slot for return value
+		for (Expr actual : call.arguments) {
+			generateExpression(actual);
+		}
+		emit(LINK);
+		emit(JSR, getMethodLabel(call.callee));
+		emit(POPFBR);
+		emit(ADDSP, -call.arguments.length);
+	}
+
+	// `return g(...)` where `g` takes as many parameters as the current
+	// method (e.g., self-recursion) reuses the current frame: the return
+	// value slot and the return address stay where they are, so `g` returns
+	// straight to our caller. The actuals are all evaluated before any
+	// parameter is overwritten, since they may read the parameters
+	private void generateTailCall(Expr.Call call) {
+		for (Expr actual : call.arguments) {
+			generateExpression(actual);
+		}
+		for (int i = call.arguments.length - 1; i >= 0; i--) {
+			emit(STOREOFF, getFBROffset(i));
+		}
+		emit(ADDSP, -method.numLocals());
+		emit(JUMP, getMethodLabel(call.callee));
+	}
+
+	// ===============================
+	// the following are utility/helper functions
+	// ===============================
+
+	// a callee with a different number of parameters would return its value
+	// to the wrong slot
+	private boolean isTailCall(Expr value) {
+		return value.kind == Expr.Kind.CALL && ((Expr.Call) value).arguments.length == method.numParameters;
+	}
+
+	static SamOpcode getOperatorInstruction(char operator) {
+		switch (operator) {
+			case '+':
+				return ADD;
+			case '-':
+				return SUB;
+			case '*':
+				return TIMES;
+			case '/':
+				return DIV;
+			case '&':
+				return AND;
+			case '|':
+				return OR;
+			case '<':
+				return LESS;
+			case '>':
+				return GREATER;
+			case '=':
+				return EQUAL;
+			default:
+				throw new Error("Unknown Bali operator `" + operator + "`");
+		}
+	}
+
+	private void emit(SamOpcode opcode) {
+		code.add(new SamInstruction(opcode));
+	}
+
+	private void emit(SamOpcode opcode, int value) {
+		code.add(new SamInstruction(opcode, value));
+	}
+
+	private void emit(SamOpcode opcode, String label) {
+		code.add(new SamInstruction(opcode, label));
+	}
+
+	private void emitLabel(String label) {
+		code.add(new SamInstruction(LABEL, label));
+	}
+
+	// optimizes and writes out the instructions generated so far
+	private void flushCode() {
+		if (peephole != null) {
+			peephole.optimize(code);
+		}
+		for (SamInstruction instruction : code) {
+			instruction.emit(out);
+		}
+		code.clear();
+	}
+
+	// we make every label unique by scoping it to the method and appending
+	// a unique suffix to each given label prefix (e.g., `end` in `fib` would
+	// become `fib_end_0`)
+	private String generateLabel(String prefix) {
+		return method.info.getLabelName() + "_" + prefix + "_" + labelCount++;
+	}
+
+	// `main` is the only static label
+	private static String getMethodLabel(MethodInfo methodInfo) {
+		if (methodInfo.name.equals("main")) {
+			return "main";
+		}
+		return methodInfo.getLabelName() + "_method";
+	}
+
+	// parameters are right below the saved FBR; locals start at `FBR + 2`
+	private int getFBROffset(int slot) {
+		if (slot < method.numParameters) {
+			return slot - method.numParameters;
+		}
+		return slot - method.numParameters + 2;
+	}
+}
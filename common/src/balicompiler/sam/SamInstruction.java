@@ -0,0 +1,57 @@
+package balicompiler.sam;
+
+import balicompiler.CodeEmitter;
+
+// one SaM instruction (or label definition) of the code generated for a
+// method; the operand that is used depends on `opcode.operand`
+public class SamInstruction {
+	public SamOpcode opcode;
+	public int value;
+	public String label;
+
+	public SamInstruction(SamOpcode opcode) {
+		this.opcode = opcode;
+	}
+
+	public SamInstruction(SamOpcode opcode, int value) {
+		this.opcode = opcode;
+		this.value = value;
+	}
+
+	public SamInstruction(SamOpcode opcode, String label) {
+		this.opcode = opcode;
+		this.label = label;
+	}
+
+	public boolean is(SamOpcode opcode, int value) {
+		return this.opcode == opcode && this.value == value;
+	}
+
+	public void emit(CodeEmitter out) {
+		switch (opcode.operand) {
+			case NONE:
+				out.emit(opcode.name());
+				break;
+			case INT:
+				if (opcode == SamOpcode.PUSHIMM && value == Integer.MIN_VALUE) {
+					// the SaM assembler reads `-` and then the digits as a positive
+					// int, so it can't parse `-2147483648` (the literal that
+					// `ConstantFolder` makes of `((-2147483647) - 1)`, or that
+					// `negate-constant` can leave)
+					out.emit(opcode.name(), -Integer.MAX_VALUE);
+					out.emit(opcode.name(), 1);
+					out.emit(SamOpcode.SUB.name());
+				} else {
+					out.emit(opcode.name(), value);
+				}
+				break;
+			case LABEL:
+				if (opcode == SamOpcode.LABEL) {
+					out.emitLabel(label);
+				} else {
+					out.emit(opcode.name(), label);
+				}
+				break;
+		}
+	}
+}
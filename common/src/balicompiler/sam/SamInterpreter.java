@@ -0,0 +1,488 @@
+package balicompiler.sam;
+
+import balicompiler.BaliCompilation;
+import balicompiler.CompilerOptions;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// an in-process interpreter of the SaM code that `SamBackend` generates, so
+// that the generated code can be run (and measured) without the external
+// SaM simulator. The program is loaded once into an int array of
+// (opcode, operand) pairs, with the labels resolved to code addresses, and
+// then run by a switch over the opcodes. Only the instructions in
+// `SamOpcode` are supported; anything else is rejected when loading.
+//
+// The results match the simulator's: the exit status is the bottom of the
+// stack at `STOP`, `AND`/`OR`/`NOT` are logical and `DIV` truncates (and
+// fails on a division by zero). The operands are read the way its assembler
+// reads them, so a program the simulator can't assemble isn't loaded either.
+//
+// Its `main()` runs a corpus: `.sam` files, `.bali` files (compiled
+// in-process with the compiler flags given) and directories of them, and
+// prints the exit status, the number of executed instructions and the time
+// of each; `--bench=N` runs each program N times (after as many warm-up
+// runs) and reports the best and the median time, to compare the code of
+// two compiler versions or flag sets
+public class SamInterpreter {
+	public static final int DEFAULT_STACK_SIZE = 1 << 20;
+	public static final String USAGE = "Usage: SamInterpreter [options] [compiler options] file.sam|file.bali|dir ...\n"
+			+ "Options:\n"
+			+ "  --bench=N                run each program N times after N warm-up runs, and report the\n"
+			+ "                           best and the median time\n"
+			+ "  --profile                print how many times each opcode was executed\n"
+			+ "  --stack=N                the size of the stack, in words (default " + DEFAULT_STACK_SIZE + ")\n"
+			+ "  --max-instructions=N     stop the programs that run longer than about N instructions\n"
+			+ "The compiler options (see the drivers) are used to compile the `.bali` files.\n";
+
+	// the encoding of the opcodes; `OPCODES` maps them back
+	private static final int PUSHIMM = 0, PUSHOFF = 1, STOREOFF = 2, ADDSP = 3, DUP = 4, SWAP = 5, ADD = 6, SUB = 7,
+			TIMES = 8, DIV = 9, AND = 10, OR = 11, NOT = 12, LESS = 13, GREATER = 14, EQUAL = 15, ISNIL = 16,
+			JUMP = 17, JUMPC = 18, JUMPIND = 19, LINK = 20, JSR = 21, POPFBR = 22, STOP = 23;
+	private static final SamOpcode[] OPCODES = {
+		SamOpcode.PUSHIMM, SamOpcode.PUSHOFF, SamOpcode.STOREOFF, SamOpcode.ADDSP, SamOpcode.DUP, SamOpcode.SWAP,
+		SamOpcode.ADD, SamOpcode.SUB, SamOpcode.TIMES, SamOpcode.DIV, SamOpcode.AND, SamOpcode.OR, SamOpcode.NOT,
+		SamOpcode.LESS, SamOpcode.GREATER, SamOpcode.EQUAL, SamOpcode.ISNIL,
+		SamOpcode.JUMP, SamOpcode.JUMPC, SamOpcode.JUMPIND, SamOpcode.LINK, SamOpcode.JSR, SamOpcode.POPFBR, SamOpcode.STOP,
+	};
+
+	// an int operand: the `-`, if any, and the digits
+	private static final Pattern INT_OPERAND = Pattern.compile("(-?)\\s*([0-9]+)");
+
+	// the instruction at address `a` (always even) is `code[a]` with the
+	// operand `code[a + 1]` (the address, for the jumps); the return
+	// addresses pushed by `JSR` are such addresses too
+	private final int[] code;
+	// the source line of each instruction, for the error messages
+	private final int[] lines;
+
+	// what one run of the program did
+	public static final class Result {
+		public final int exitStatus;
+		public final long instructions;
+		public final long nanos;
+		// the number of executed instructions of each opcode, indexed like
+		// `SamOpcode.values()`
+		public final long[] opcodeCounts;
+
+		Result(int exitStatus, long nanos, long[] counts) {
+			this.exitStatus = exitStatus;
+			this.nanos = nanos;
+			opcodeCounts = new long[SamOpcode.values().length];
+			long instructions = 0;
+			for (int op = 0; op < counts.length; op++) {
+				opcodeCounts[OPCODES[op].ordinal()] = counts[op];
+				instructions += counts[op];
+			}
+			this.instructions = instructions;
+		}
+	}
+
+	private SamInterpreter(int[] code, int[] lines) {
+		this.code = code;
+		this.lines = lines;
+	}
+
+	// throws an IllegalArgumentException for a malformed program, or one
+	// that uses an instruction that isn't supported
+	public static SamInterpreter load(Reader source) throws IOException {
+		BufferedReader in = new BufferedReader(source);
+		int[] code = new int[1024];
+		int[] lines = new int[512];
+		int size = 0;
+		HashMap<String, Integer> labels = new HashMap<String, Integer>();
+		// the jumps to patch once all the labels are known: their operand
+		// index and their label
+		ArrayList<Integer> fixups = new ArrayList<Integer>();
+		ArrayList<String> fixupLabels = new ArrayList<String>();
+
+		String line;
+		int lineNumber = 0;
+		while ((line = in.readLine()) != null) {
+			lineNumber++;
+			int comment = line.indexOf("//");
+			if (comment >= 0) {
+				line = line.substring(0, comment);
+			}
+			line = line.trim();
+			// any number of labels can come before an instruction
+			int colon;
+			while ((colon = line.indexOf(':')) >= 0) {
+				String label = line.substring(0, colon).trim();
+				if (label.isEmpty() || labels.put(label, size) != null) {
+					throw new IllegalArgumentException("line " + lineNumber + ": malformed or duplicate label `" + label + "`");
+				}
+				line = line.substring(colon + 1).trim();
+			}
+			if (line.isEmpty()) {
+				continue;
+			}
+
+			// the opcode and the rest of the line
+			String[] words = line.split("\\s+", 2);
+			int op = encode(words[0], lineNumber);
+			SamOpcode opcode = OPCODES[op];
+			if (words.length != (opcode.operand == SamOpcode.Operand.NONE ? 1 : 2)
+					|| opcode.operand == SamOpcode.Operand.LABEL && words[1].split("\\s+").length != 1) {
+				throw new IllegalArgumentException("line " + lineNumber + ": wrong number of operands for `" + words[0] + "`");
+			}
+			if (size + 2 > code.length) {
+				code = Arrays.copyOf(code, code.length * 2);
+				lines = Arrays.copyOf(lines, lines.length * 2);
+			}
+			lines[size / 2] = lineNumber;
+			code[size] = op;
+			if (opcode.operand == SamOpcode.Operand.INT) {
+				code[size + 1] = parseOperand(words[1], lineNumber);
+			} else if (opcode.operand == SamOpcode.Operand.LABEL) {
+				fixups.add(size + 1);
+				fixupLabels.add(words[1]);
+			}
+			size += 2;
+		}
+
+		for (int i = 0; i < fixups.size(); i++) {
+			Integer address = labels.get(fixupLabels.get(i));
+			if (address == null) {
+				throw new IllegalArgumentException("line " + lines[fixups.get(i) / 2] + ": undefined label `" + fixupLabels.get(i) + "`");
+			}
+			code[fixups.get(i)] = address;
+		}
+		return new SamInterpreter(Arrays.copyOf(code, size), Arrays.copyOf(lines, size / 2));
+	}
+
+	// the SaM assembler reads an optional `-` token and then the digits as a
+	// positive int, so unlike `Integer.parseInt()` it takes `- 5` but rejects
+	// `+5` and `-2147483648`
+	private static int parseOperand(String operand, int lineNumber) {
+		Matcher matcher = INT_OPERAND.matcher(operand);
+		if (matcher.matches()) {
+			try {
+				int magnitude = Integer.parseInt(matcher.group(2));
+				return matcher.group(1).isEmpty() ? magnitude : -magnitude;
+			} catch (NumberFormatException e) {
+				// more than `Integer.MAX_VALUE`
+			}
+		}
+		throw new IllegalArgumentException("line " + lineNumber + ": expecting an integer operand, got `" + operand + "`");
+	}
+
+	private static int encode(String opcode, int lineNumber) {
+		for (int op = 0; op < OPCODES.length; op++) {
+			if (OPCODES[op].name().equals(opcode)) {
+				return op;
+			}
+		}
+		throw new IllegalArgumentException("line " + lineNumber + ": unsupported instruction `" + opcode + "`");
+	}
+
+	// the number of instructions of the program
+	public int size() {
+		return code.length / 2;
+	}
+
+	// runs the program from its first instruction; `maxInstructions` bounds
+	// the run (it's only checked at the jumps, so it can be overshot by the
+	// length of a straight-line stretch). Throws an IllegalStateException
+	// for a runtime error (e.g., a division by zero or a stack overflow)
+	public Result run(int stackSize, long maxInstructions) {
+		final int[] code = this.code;
+		final int[] stack = new int[stackSize];
+		final long[] counts = new long[OPCODES.length];
+		long executed = 0;
+		int pc = 0;
+		int sp = 0;
+		int fbr = 0;
+		long start = System.nanoTime();
+		try {
+			while (true) {
+				int op = code[pc];
+				int operand = code[pc + 1];
+				counts[op]++;
+				executed++;
+				pc += 2;
+				switch (op) {
+					case PUSHIMM:
+						stack[sp++] = operand;
+						break;
+					case PUSHOFF:
+						stack[sp++] = stack[fbr + operand];
+						break;
+					case STOREOFF:
+						stack[fbr + operand] = stack[--sp];
+						break;
+					case ADDSP:
+						if (operand > 0) {
+							// the simulator's new slots start out as 0
+							Arrays.fill(stack, sp, sp + operand, 0);
+						}
+						sp += operand;
+						if (sp < 0) {
+							throw new ArrayIndexOutOfBoundsException(sp);
+						}
+						break;
+					case DUP:
+						stack[sp] = stack[sp - 1];
+						sp++;
+						break;
+					case SWAP: {
+						int top = stack[sp - 1];
+						stack[sp - 1] = stack[sp - 2];
+						stack[sp - 2] = top;
+						break;
+					}
+					case ADD:
+						sp--;
+						stack[sp - 1] += stack[sp];
+						break;
+					case SUB:
+						sp--;
+						stack[sp - 1] -= stack[sp];
+						break;
+					case TIMES:
+						sp--;
+						stack[sp - 1] *= stack[sp];
+						break;
+					case DIV:
+						sp--;
+						if (stack[sp] == 0) {
+							throw new IllegalStateException(error(pc, "division by zero"));
+						}
+						stack[sp - 1] /= stack[sp];
+						break;
+					case AND:
+						sp--;
+						stack[sp - 1] = stack[sp - 1] != 0 && stack[sp] != 0 ? 1 : 0;
+						break;
+					case OR:
+						sp--;
+						stack[sp - 1] = stack[sp - 1] != 0 || stack[sp] != 0 ? 1 : 0;
+						break;
+					case NOT:
+					case ISNIL:
+						stack[sp - 1] = stack[sp - 1] == 0 ? 1 : 0;
+						break;
+					case LESS:
+						sp--;
+						stack[sp - 1] = stack[sp - 1] < stack[sp] ? 1 : 0;
+						break;
+					case GREATER:
+						sp--;
+						stack[sp - 1] = stack[sp - 1] > stack[sp] ? 1 : 0;
+						break;
+					case EQUAL:
+						sp--;
+						stack[sp - 1] = stack[sp - 1] == stack[sp] ? 1 : 0;
+						break;
+					case JUMP:
+						pc = operand;
+						if (executed > maxInstructions) {
+							throw new IllegalStateException(error(pc, "exceeded " + maxInstructions + " instructions"));
+						}
+						break;
+					case JUMPC:
+						if (stack[--sp] != 0) {
+							pc = operand;
+						}
+						if (executed > maxInstructions) {
+							throw new IllegalStateException(error(pc, "exceeded " + maxInstructions + " instructions"));
+						}
+						break;
+					case JUMPIND:
+						pc = stack[--sp];
+						if (pc < 0 || pc >= code.length || (pc & 1) != 0) {
+							throw new IllegalStateException(error(pc, "jump to a bad address"));
+						}
+						break;
+					case LINK:
+						stack[sp] = fbr;
+						fbr = sp++;
+						break;
+					case JSR:
+						stack[sp++] = pc;
+						pc = operand;
+						if (executed > maxInstructions) {
+							throw new IllegalStateException(error(pc, "exceeded " + maxInstructions + " instructions"));
+						}
+						break;
+					case POPFBR:
+						fbr = stack[--sp];
+						break;
+					case STOP:
+						if (sp <= 0) {
+							throw new IllegalStateException(error(pc, "the stack is empty at STOP"));
+						}
+						return new Result(stack[0], System.nanoTime() - start, counts);
+				}
+			}
+		} catch (ArrayIndexOutOfBoundsException e) {
+			if (pc >= code.length) {
+				throw new IllegalStateException("ran past the end of the program");
+			}
+			throw new IllegalStateException(error(pc, "stack access out of bounds (a stack of " + stackSize + " words)"));
+		}
+	}
+
+	// `pc` is the address after the failing instruction
+	private String error(int pc, String message) {
+		int instruction = Math.min(Math.max(pc / 2 - 1, 0), lines.length - 1);
+		return "line " + lines[instruction] + ": " + message;
+	}
+
+	// ===============================
+	// the corpus runner
+	// ===============================
+
+	public static void main(String[] args) throws IOException {
+		int bench = 0;
+		boolean profile = false;
+		int stackSize = DEFAULT_STACK_SIZE;
+		long maxInstructions = Long.MAX_VALUE;
+		ArrayList<String> compilerArgs = new ArrayList<String>();
+		CompilerOptions options;
+		try {
+			for (String arg : args) {
+				if (arg.startsWith("--bench=")) {
+					bench = parseInt(arg, arg.substring("--bench=".length()));
+				} else if (arg.equals("--profile")) {
+					profile = true;
+				} else if (arg.startsWith("--stack=")) {
+					stackSize = parseInt(arg, arg.substring("--stack=".length()));
+				} else if (arg.startsWith("--max-instructions=")) {
+					maxInstructions = parseLong(arg, arg.substring("--max-instructions=".length()));
+				} else {
+					compilerArgs.add(arg);
+				}
+			}
+			options = CompilerOptions.parse(compilerArgs.toArray(new String[0]));
+			options.checkRuleNames(SamPeephole.getRuleNames());
+		} catch (IllegalArgumentException e) {
+			System.out.println(e.getMessage() + "\n" + USAGE);
+			return;
+		}
+		if (options.fileNames.isEmpty()) {
+			System.out.println(USAGE);
+			return;
+		}
+
+		int failures = 0;
+		long totalInstructions = 0;
+		long[] totalCounts = new long[SamOpcode.values().length];
+		PrintStream out = System.out;
+		out.printf("%-40s %12s %14s %10s %10s%s%n", "file", "exit status", "instructions",
+				bench > 0 ? "best ms" : "ms", bench > 0 ? "median ms" : "MIPS", "  status");
+		List<Path> files = collectFiles(options.fileNames);
+		for (Path file : files) {
+			try {
+				SamInterpreter interpreter = load(file, options);
+				Result result = interpreter.run(stackSize, maxInstructions);
+				if (bench > 0) {
+					for (int i = 0; i < bench; i++) {
+						interpreter.run(stackSize, maxInstructions);
+					}
+					long[] times = new long[bench];
+					for (int i = 0; i < bench; i++) {
+						times[i] = interpreter.run(stackSize, maxInstructions).nanos;
+					}
+					Arrays.sort(times);
+					out.printf("%-40s %12d %14d %10.3f %10.3f  ok%n", file, result.exitStatus, result.instructions,
+							times[0] / 1e6, times[bench / 2] / 1e6);
+				} else {
+					out.printf("%-40s %12d %14d %10.3f %10.1f  ok%n", file, result.exitStatus, result.instructions,
+							result.nanos / 1e6, result.instructions * 1e3 / Math.max(result.nanos, 1));
+				}
+				totalInstructions += result.instructions;
+				for (int op = 0; op < totalCounts.length; op++) {
+					totalCounts[op] += result.opcodeCounts[op];
+				}
+			} catch (VirtualMachineError e) {
+				throw e;
+			} catch (IOException | RuntimeException | Error e) {
+				// the syntax errors are thrown as `Error`s
+				failures++;
+				out.printf("%-40s %12s %14s %10s %10s  error: %s%n", file, "-", "-", "-", "-",
+						e.getMessage() != null ? e.getMessage() : e.toString());
+			}
+		}
+		out.printf("%d programs, %d failed, %d instructions executed%n", files.size(), failures, totalInstructions);
+		if (profile) {
+			out.println("Executed instructions by opcode:");
+			for (SamOpcode opcode : SamOpcode.values()) {
+				if (totalCounts[opcode.ordinal()] > 0) {
+					out.printf("  %-10s %14d  %5.1f%%%n", opcode.name(), totalCounts[opcode.ordinal()],
+							100.0 * totalCounts[opcode.ordinal()] / totalInstructions);
+				}
+			}
+		}
+		if (failures > 0) {
+			System.exit(1);
+		}
+	}
+
+	// a `.bali` file is compiled with `options` first
+	private static SamInterpreter load(Path file, CompilerOptions options) throws IOException {
+		if (!file.toString().endsWith(".bali")) {
+			try (Reader in = Files.newBufferedReader(file)) {
+				return load(in);
+			}
+		}
+		BaliCompilation compilation = new BaliCompilation(file.toString(), null, options);
+		if (compilation.getErrorMessage() != null) {
+			throw new IllegalArgumentException(compilation.getErrorMessage());
+		}
+		StringWriter code = new StringWriter();
+		compilation.generate(new SamBackend(options.peephole ? new SamPeephole(options.disabledRules) : null), code);
+		return load(new StringReader(code.toString()));
+	}
+
+	// the given files, and the `.sam`/`.bali` files in the given directories
+	private static List<Path> collectFiles(List<String> fileNames) throws IOException {
+		ArrayList<Path> files = new ArrayList<Path>();
+		for (String fileName : fileNames) {
+			Path path = Path.of(fileName);
+			if (Files.isDirectory(path)) {
+				try (Stream<Path> walk = Files.walk(path)) {
+					files.addAll(walk.filter(p -> (p.toString().endsWith(".sam") || p.toString().endsWith(".bali")) && Files.isRegularFile(p))
+							.sorted()
+							.collect(Collectors.toList()));
+				}
+			} else {
+				files.add(path);
+			}
+		}
+		return files;
+	}
+
+	private static int parseInt(String flag, String value) {
+		long result = parseLong(flag, value);
+		if (result > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Expecting a positive number in `" + flag + "`");
+		}
+		return (int) result;
+	}
+
+	private static long parseLong(String flag, String value) {
+		try {
+			long result = Long.parseLong(value);
+			if (result >= 1) {
+				return result;
+			}
+		} catch (NumberFormatException e) {
+		}
+		throw new IllegalArgumentException("Expecting a positive number in `" + flag + "`");
+	}
+}
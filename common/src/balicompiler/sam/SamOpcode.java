@@ -0,0 +1,30 @@
+package balicompiler.sam;
+
+// the SaM instructions generated by `SamBackend`, plus `LABEL` for label
+// definitions (which aren't instructions, but have to stay in place in an
+// instruction list)
+public enum SamOpcode {
+	PUSHIMM(Operand.INT), PUSHOFF(Operand.INT), STOREOFF(Operand.INT), ADDSP(Operand.INT),
+	DUP(Operand.NONE), SWAP(Operand.NONE),
+	ADD(Operand.NONE), SUB(Operand.NONE), TIMES(Operand.NONE), DIV(Operand.NONE),
+	AND(Operand.NONE), OR(Operand.NONE), NOT(Operand.NONE),
+	LESS(Operand.NONE), GREATER(Operand.NONE), EQUAL(Operand.NONE), ISNIL(Operand.NONE),
+	JUMP(Operand.LABEL), JUMPC(Operand.LABEL), JUMPIND(Operand.NONE),
+	LINK(Operand.NONE), JSR(Operand.LABEL), POPFBR(Operand.NONE), STOP(Operand.NONE),
+	LABEL(Operand.LABEL);
+
+	public enum Operand {
+		NONE, INT, LABEL
+	}
+
+	public final Operand operand;
+
+	SamOpcode(Operand operand) {
+		this.operand = operand;
+	}
+
+	// whether execution never falls through to the next instruction
+	public boolean isUnconditionalTransfer() {
+		return this == JUMP || this == JUMPIND || this == STOP;
+	}
+}
@@ -0,0 +1,248 @@
+package balicompiler.sam;
+
+import balicompiler.PeepholeCode;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static balicompiler.sam.SamOpcode.*;
+
+// a peephole optimizer over the SaM instructions of a method. It is driven
+// by the `RULES` table: each rule has a pattern (the opcodes it matches at
+// consecutive positions) and a rewrite that returns the replacement
+// instructions, or null if the rule doesn't apply after all. The rules are
+// applied until none of them matches anywhere (only looking again where the
+// code changed, see `PeepholeCode`), and the number of instructions each
+// rule removed is kept for `report()`
+public class SamPeephole {
+	interface Rewrite {
+		// `code` is for the rewrites that look beyond the `matched`
+		// instructions (e.g., at the target of a jump)
+		List<SamInstruction> apply(List<SamInstruction> matched, PeepholeCode<SamInstruction> code);
+	}
+
+	static final class Rule {
+		final String name;
+		// the opcodes allowed at each position; null matches any
+		// instruction (but not a label)
+		final SamOpcode[][] pattern;
+		final Rewrite rewrite;
+
+		Rule(String name, SamOpcode[][] pattern, Rewrite rewrite) {
+			this.name = name;
+			this.pattern = pattern;
+			this.rewrite = rewrite;
+		}
+	}
+
+	private static final Rule[] RULES = {
+		// e.g., dropping the locals of a method without any
+		new Rule("addsp-zero", pattern(of(ADDSP)),
+				(matched, code) -> matched.get(0).value == 0 ? replaceWith() : null),
+		new Rule("merge-addsp", pattern(of(ADDSP), of(ADDSP)),
+				(matched, code) -> replaceWith(new SamInstruction(ADDSP, matched.get(0).value + matched.get(1).value))),
+		// a value that is pushed only to be popped right away
+		new Rule("push-pop", pattern(of(PUSHIMM, PUSHOFF, DUP), of(ADDSP)),
+				(matched, code) -> matched.get(1).value < 0 ? replaceWith(new SamInstruction(ADDSP, matched.get(1).value + 1)) : null),
+		new Rule("dup-store-pop", pattern(of(DUP), of(STOREOFF), of(ADDSP)),
+				(matched, code) -> matched.get(2).value < 0
+						? replaceWith(matched.get(1), new SamInstruction(ADDSP, matched.get(2).value + 1))
+						: null),
+		// negation is `PUSHIMM -1 / TIMES`
+		new Rule("negate-constant", pattern(of(PUSHIMM), of(PUSHIMM), of(TIMES)),
+				(matched, code) -> matched.get(1).value == -1 ? replaceWith(new SamInstruction(PUSHIMM, -matched.get(0).value)) : null),
+		new Rule("double-negate", pattern(of(PUSHIMM), of(TIMES), of(PUSHIMM), of(TIMES)),
+				(matched, code) -> matched.get(0).value == -1 && matched.get(2).value == -1 ? replaceWith() : null),
+		new Rule("negate-add", pattern(of(PUSHIMM), of(TIMES), of(ADD)),
+				(matched, code) -> matched.get(0).value == -1 ? replaceWith(new SamInstruction(SUB)) : null),
+		new Rule("negate-sub", pattern(of(PUSHIMM), of(TIMES), of(SUB)),
+				(matched, code) -> matched.get(0).value == -1 ? replaceWith(new SamInstruction(ADD)) : null),
+		new Rule("identity-operation", pattern(of(PUSHIMM), of(ADD, SUB, TIMES, DIV)),
+				(matched, code) -> matched.get(0).value == (matched.get(1).opcode == ADD || matched.get(1).opcode == SUB ? 0 : 1)
+						? replaceWith()
+						: null),
+		// conditions are tested with `ISNIL / JUMPC` (jump if `false`)
+		new Rule("not-branch", pattern(of(NOT), of(ISNIL), of(JUMPC)),
+				(matched, code) -> replaceWith(matched.get(2))),
+		new Rule("constant-branch", pattern(of(PUSHIMM), of(ISNIL), of(JUMPC)),
+				(matched, code) -> matched.get(0).value == 0 ? replaceWith(new SamInstruction(JUMP, matched.get(2).label)) : replaceWith()),
+		new Rule("constant-jumpc", pattern(of(PUSHIMM), of(JUMPC)),
+				(matched, code) -> matched.get(0).value != 0 ? replaceWith(new SamInstruction(JUMP, matched.get(1).label)) : replaceWith()),
+		// an assignment followed by a read of the same variable
+		new Rule("store-load", pattern(of(STOREOFF), of(PUSHOFF)),
+				(matched, code) -> matched.get(0).value == matched.get(1).value
+						? replaceWith(new SamInstruction(DUP), matched.get(0))
+						: null),
+		new Rule("load-store", pattern(of(PUSHOFF), of(STOREOFF)),
+				(matched, code) -> matched.get(0).value == matched.get(1).value ? replaceWith() : null),
+		// e.g., the jump to the end label after the last `return`
+		new Rule("jump-to-next", pattern(of(JUMP, JUMPC)),
+				SamPeephole::removeJumpToNext),
+		new Rule("thread-jump", pattern(of(JUMP, JUMPC)),
+				SamPeephole::threadJump),
+		new Rule("unreachable", pattern(of(JUMP, JUMPIND, STOP), null),
+				(matched, code) -> replaceWith(matched.get(0))),
+	};
+
+	private final Rule[] rules;
+	private final int maxPatternLength;
+	// indexed like `rules`
+	private final int[] appliedCounts;
+	private final int[] removedCounts;
+
+	public SamPeephole() {
+		this(Collections.<String>emptySet());
+	}
+
+	// the rules named in `disabledRules` are left out (names that aren't
+	// SaM rules are ignored)
+	public SamPeephole(Collection<String> disabledRules) {
+		ArrayList<Rule> enabled = new ArrayList<Rule>();
+		for (Rule rule : RULES) {
+			if (!disabledRules.contains(rule.name)) {
+				enabled.add(rule);
+			}
+		}
+		rules = enabled.toArray(new Rule[enabled.size()]);
+		int maxLength = 1;
+		for (Rule rule : rules) {
+			maxLength = Math.max(maxLength, rule.pattern.length);
+		}
+		maxPatternLength = maxLength;
+		appliedCounts = new int[rules.length];
+		removedCounts = new int[rules.length];
+	}
+
+	public static HashSet<String> getRuleNames() {
+		HashSet<String> names = new HashSet<String>();
+		for (Rule rule : RULES) {
+			names.add(rule.name);
+		}
+		return names;
+	}
+
+	public void optimize(ArrayList<SamInstruction> code) {
+		PeepholeCode<SamInstruction> rewritten = new PeepholeCode<SamInstruction>(code,
+				instruction -> instruction.opcode == LABEL ? instruction.label : null,
+				instruction -> instruction.opcode != LABEL && instruction.opcode.operand == SamOpcode.Operand.LABEL
+						? instruction.label
+						: null,
+				maxPatternLength);
+		int node;
+		while ((node = rewritten.poll()) >= 0) {
+			for (int r = 0; r < rules.length; r++) {
+				// the replacement is queued to be looked at again
+				if (apply(r, rewritten, node)) {
+					break;
+				}
+			}
+		}
+		rewritten.writeTo(code);
+	}
+
+	// adds the counts of `other`, which must have the same rules enabled
+	// (e.g., to total the counts of the files compiled in parallel)
+	public synchronized void merge(SamPeephole other) {
+		for (int r = 0; r < rules.length; r++) {
+			appliedCounts[r] += other.appliedCounts[r];
+			removedCounts[r] += other.removedCounts[r];
+		}
+	}
+
+	// the enabled rules, e.g. for cache keys
+	public String getConfiguration() {
+		StringBuilder configuration = new StringBuilder("peephole");
+		for (Rule rule : rules) {
+			configuration.append(' ').append(rule.name);
+		}
+		return configuration.toString();
+	}
+
+	public void report(PrintStream out) {
+		int total = 0;
+		out.println("SaM peephole:");
+		for (int r = 0; r < rules.length; r++) {
+			out.printf("  %-20s applied %6d times, removed %6d instructions%n",
+					rules[r].name, appliedCounts[r], removedCounts[r]);
+			total += removedCounts[r];
+		}
+		out.printf("  %-20s removed %6d instructions%n", "total", total);
+	}
+
+	private boolean apply(int r, PeepholeCode<SamInstruction> code, int node) {
+		SamOpcode[][] pattern = rules[r].pattern;
+		ArrayList<SamInstruction> matched = new ArrayList<SamInstruction>(pattern.length);
+		for (int k = 0, at = node; k < pattern.length; k++, at = code.getNext(at)) {
+			if (at < 0) {
+				return false;
+			}
+			SamOpcode opcode = code.get(at).opcode;
+			if (pattern[k] == null ? opcode == LABEL : !Arrays.asList(pattern[k]).contains(opcode)) {
+				return false;
+			}
+			matched.add(code.get(at));
+		}
+		List<SamInstruction> replacement = rules[r].rewrite.apply(matched, code);
+		if (replacement == null) {
+			return false;
+		}
+		code.replace(node, pattern.length, replacement);
+		appliedCounts[r]++;
+		removedCounts[r] += pattern.length - replacement.size();
+		return true;
+	}
+
+	// ===============================
+	// the following are the rewrites that need more than the matched
+	// instructions, and utility/helper functions
+	// ===============================
+
+	// a (conditional) jump to one of the labels right after it
+	private static List<SamInstruction> removeJumpToNext(List<SamInstruction> matched, PeepholeCode<SamInstruction> code) {
+		SamInstruction jump = matched.get(0);
+		if (code.getInstructionBefore(jump.label) != jump) {
+			return null;
+		}
+		// `JUMPC` still has to pop the condition
+		return jump.opcode == JUMP ? replaceWith() : replaceWith(new SamInstruction(ADDSP, -1));
+	}
+
+	// a (conditional) jump to a `JUMP` goes straight to the final target
+	private static List<SamInstruction> threadJump(List<SamInstruction> matched, PeepholeCode<SamInstruction> code) {
+		SamInstruction jump = matched.get(0);
+		HashSet<String> visited = new HashSet<String>();
+		String target = jump.label;
+		while (true) {
+			SamInstruction next = code.getInstructionAt(target);
+			if (next == null || next.opcode != JUMP) {
+				break;
+			}
+			// give up on jump cycles (e.g., `while (true) ;`)
+			if (!visited.add(target)) {
+				return null;
+			}
+			target = next.label;
+		}
+		if (target.equals(jump.label)) {
+			return null;
+		}
+		return replaceWith(new SamInstruction(jump.opcode, target));
+	}
+
+	private static SamOpcode[][] pattern(SamOpcode[]... opcodes) {
+		return opcodes;
+	}
+
+	private static SamOpcode[] of(SamOpcode... opcodes) {
+		return opcodes;
+	}
+
+	private static List<SamInstruction> replaceWith(SamInstruction... instructions) {
+		return new ArrayList<SamInstruction>(Arrays.asList(instructions));
+	}
+}
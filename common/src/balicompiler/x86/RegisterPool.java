@@ -0,0 +1,93 @@
+package balicompiler.x86;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+// keeps track of which registers hold the intermediate values of the
+// expression being generated
+class RegisterPool {
+	// in the order they are handed out; EAX comes last since it is where
+	// every expression's final value ends up, and ESI/EDI come after the
+	// registers that have a low byte (see `X86Backend.materializeCondition()`)
+	static final X86Operand[] REGISTERS = {
+		X86Operand.ECX, X86Operand.EDX, X86Operand.EBX, X86Operand.ESI, X86Operand.EDI, X86Operand.EAX
+	};
+
+	private final boolean[] busy = new boolean[REGISTERS.length];
+
+	// returns null if every register is busy (the caller then has to spill)
+	X86Operand allocate() {
+		for (int i = 0; i < REGISTERS.length; i++) {
+			if (!busy[i]) {
+				busy[i] = true;
+				return REGISTERS[i];
+			}
+		}
+		return null;
+	}
+
+	// a free register that has a low byte register (for `setcc`), or null
+	X86Operand allocateWithLowByte() {
+		for (int i = 0; i < REGISTERS.length; i++) {
+			if (!busy[i] && REGISTERS[i].getLowByte() != null) {
+				busy[i] = true;
+				return REGISTERS[i];
+			}
+		}
+		return null;
+	}
+
+	// a free register other than `first` and `second`, or null
+	X86Operand allocateOtherThan(X86Operand first, X86Operand second) {
+		for (int i = 0; i < REGISTERS.length; i++) {
+			if (!busy[i] && !REGISTERS[i].equals(first) && !REGISTERS[i].equals(second)) {
+				busy[i] = true;
+				return REGISTERS[i];
+			}
+		}
+		return null;
+	}
+
+	void reserve(X86Operand register) {
+		busy[indexOf(register)] = true;
+	}
+
+	void release(X86Operand register) {
+		busy[indexOf(register)] = false;
+	}
+
+	boolean isBusy(X86Operand register) {
+		return busy[indexOf(register)];
+	}
+
+	// the busy registers other than `except`
+	ArrayList<X86Operand> getBusy(X86Operand except) {
+		ArrayList<X86Operand> busyRegisters = new ArrayList<X86Operand>();
+		for (int i = 0; i < REGISTERS.length; i++) {
+			if (busy[i] && !REGISTERS[i].equals(except)) {
+				busyRegisters.add(REGISTERS[i]);
+			}
+		}
+		return busyRegisters;
+	}
+
+	// frees every register and returns the previous state for `restore()`
+	boolean[] clear() {
+		boolean[] state = busy.clone();
+		Arrays.fill(busy, false);
+		return state;
+	}
+
+	void restore(boolean[] state) {
+		System.arraycopy(state, 0, busy, 0, busy.length);
+	}
+
+	private static int indexOf(X86Operand register) {
+		for (int i = 0; i < REGISTERS.length; i++) {
+			if (REGISTERS[i].equals(register)) {
+				return i;
+			}
+		}
+		throw new Error("Unknown register `" + register + "`");
+	}
+}
@@ -0,0 +1,927 @@
+package balicompiler.x86;
+import balicompiler.Backend;
+import balicompiler.CodeEmitter;
+import balicompiler.Expr;
+import balicompiler.MethodDecl;
+import balicompiler.MethodInfo;
+import balicompiler.Program;
+import balicompiler.Stmt;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+import static balicompiler.x86.X86Opcode.*;
+import static balicompiler.x86.X86Operand.*;
+
+// generates X86 (NASM syntax) code from the AST.
+//
+// NOTES: the stack frame design can be found in the assignment link in
+// hw2/README.md. Parameters are above the return address (the first one at
+// the highest address) and locals are below `ebp`.
+//
+// The code of each method is collected as a list of `X86Instruction`s so
+// that the peephole optimizer can work on it before it is written out
+public class X86Backend implements Backend {
+	private static final int WORD_SIZE = 4;
+	// the Sethi-Ullman number of a method call (see `getNeed()`)
+	private static final int CALL_NEED = RegisterPool.REGISTERS.length + 1;
+
+	private CodeEmitter out;
+	// null if the peephole optimizer is disabled
+	private final X86Peephole peephole;
+	// the instructions of the method being generated
+	private final ArrayList<X86Instruction> code = new ArrayList<X86Instruction>();
+	// `labelCount` is used by `generateLabel()` to generate
+	// unique X86 labels within the current method
+	private int labelCount = 0;
+
+	// the method whose code is currently being generated
+	private MethodDecl method;
+	private String endLabel;
+
+	// the registers holding the intermediate values of the expression being
+	// generated, and the memoized `getNeed()` of its subexpressions
+	private final RegisterPool registers = new RegisterPool();
+	private final IdentityHashMap<Expr, Integer> needs = new IdentityHashMap<Expr, Integer>();
+
+	public X86Backend() {
+		this(new X86Peephole());
+	}
+
+	public X86Backend(X86Peephole peephole) {
+		this.peephole = peephole;
+	}
+
+	public void generateStart(Program program, CodeEmitter out) {
+		/*
+		 * if there was no requirement of printing the returned value
+		 * to the console, we can simply label the Bali `main` as `CMAIN` in
+		 * X86. However, given the requirement, we have to hardcode `CMAIN`
+		 * to call `main` instead. This is somewhat similar to how we had to
+		 * bootstrap `main` for SaM.
+		 *
+		 * we don't have to record `CMAIN` as a method; the X86 program
+		 * should never need to jump to `CMAIN`. Yet we still need to hardcode
+		 * the method label for `main` since we need it in `CMAIN`.
+		 * Further, it can't just be `main` since apparently `CMAIN` is just `main`
+		 * in X86??
+		 */
+		out.emit("""
+				%include \"io.inc\"
+
+				section .text
+					global CMAIN
+				CMAIN:
+					push ebp
+					mov ebp, esp
+
+					call mainBali
+
+					PRINT_DEC 4, eax
+					NEWLINE
+
+					pop ebp
+					ret""");
+	}
+
+	// nothing is output if there was an error
+	public void generateFallback(CodeEmitter out) {
+	}
+
+	public String getConfiguration() {
+		return "x86 " + (peephole == null ? "no-peephole" : peephole.getConfiguration());
+	}
+
+	public void generateMethod(MethodDecl method, CodeEmitter out) {
+		this.out = out;
+		this.method = method;
+		labelCount = 0;
+		emitLabel(getMethodLabel(method.info));
+		emit(PUSH, EBP);
+		emit(MOV, EBP, ESP);
+		endLabel = generateLabel("end");
+
+		// push the locals' initial values; this allocates them on the stack
+		for (Expr initializer : method.localInitializers) {
+			if (initializer != null) {
+				generateExpression(initializer);
+				emit(PUSH, EAX);
+			} else {
+				emit(PUSH, immediate(0));
+			}
+		}
+
+		generateStatement(method.body, null);
+
+		// set up the end of the method
+		// NOTE that we assume every expression return to `eax` so at this
+		// point the return value should already in `eax`
+		emitLabel(endLabel);
+
+		// pop the local variables off (simply move the Stack Pointer)
+		emit(ADD, ESP, immediate(method.numLocals() * WORD_SIZE));
+
+		// pop the EBP and return to caller
+		emit(POP, EBP);
+		emit(RET);
+		flushCode();
+	}
+
+	// breakLabel is the label for where a `break` should jump to
+	private void generateStatement(Stmt statement, String breakLabel) {
+		switch (statement.kind) {
+			case BLOCK:
+				for (Stmt inner : ((Stmt.Block) statement).statements) {
+					generateStatement(inner, breakLabel);
+				}
+				break;
+			case ASSIGN:
+				Stmt.Assign assign = (Stmt.Assign) statement;
+				generateExpression(assign.value);
+				emit(MOV, getVariable(assign.slot), EAX);
+				break;
+			case RETURN:
+				Expr value = ((Stmt.Return) statement).value;
+				if (isTailCall(value)) {
+					generateTailCall((Expr.Call) value);
+					break;
+				}
+				// evaluate the expression then go to the end of the method
+				generateExpression(value);
+				emit(JMP, endLabel);
+				break;
+			case IF:
+				generateIfStatement((Stmt.If) statement, breakLabel);
+				break;
+			case WHILE:
+				generateWhileStatement((Stmt.While) statement);
+				break;
+			case BREAK:
+				emit(JMP, breakLabel);
+				break;
+		}
+	}
+
+	private void generateIfStatement(Stmt.If ifStatement, String breakLabel) {
+		// jump to the `else` part when the condition is `false`
+		String falseLabel = generateLabel("false");
+		String postConditionalLabel = generateLabel("post_conditional");
+		generateConditionalJump(ifStatement.condition, false, falseLabel);
+		generateStatement(ifStatement.thenStmt, breakLabel);
+		emit(JMP, postConditionalLabel);
+		emitLabel(falseLabel);
+		generateStatement(ifStatement.elseStmt, breakLabel);
+		emitLabel(postConditionalLabel);
+	}
+
+	// the condition is tested at the bottom of the loop, so that each
+	// iteration only takes the one conditional jump back to the body
+	private void generateWhileStatement(Stmt.While whileStatement) {
+		String whileBodyLabel = generateLabel("while_body");
+		String whileConditionLabel = generateLabel("while_condition");
+		String breakLabel = generateLabel("break");
+		emit(JMP, whileConditionLabel);
+		emitLabel(whileBodyLabel);
+		generateStatement(whileStatement.body, breakLabel);
+		emitLabel(whileConditionLabel);
+		// if `true`, execute the inner STMT again
+		generateConditionalJump(whileStatement.condition, true, whileBodyLabel);
+		emitLabel(breakLabel);
+	}
+
+	/* jumps to `label` if the truth value of `condition` is `jumpIfTrue`, and
+	 * falls through otherwise. Comparisons are compiled to a `cmp` and a
+	 * conditional jump without materializing their `0`/`1` value, and `&`/`|`
+	 * become chains of such jumps that skip the right operand when the left
+	 * one decides the result
+	 */
+	private void generateConditionalJump(Expr condition, boolean jumpIfTrue, String label) {
+		switch (condition.kind) {
+			case INT_LITERAL:
+				if ((((Expr.IntLiteral) condition).value != 0) == jumpIfTrue) {
+					emit(JMP, label);
+				}
+				return;
+			case NOT:
+				generateConditionalJump(((Expr.Unary) condition).operand, !jumpIfTrue, label);
+				return;
+			case BINARY:
+				Expr.Binary binary = (Expr.Binary) condition;
+				switch (binary.operator) {
+					case '<':
+					case '>':
+					case '=':
+						generateComparisonJump(binary, jumpIfTrue, label);
+						return;
+					case '&':
+					case '|':
+						// `&` is decided by a `false` operand, `|` by a `true` one
+						boolean decidingValue = binary.operator == '|';
+						if (jumpIfTrue == decidingValue) {
+							generateConditionalJump(binary.left, jumpIfTrue, label);
+							generateConditionalJump(binary.right, jumpIfTrue, label);
+						} else {
+							String decidedLabel = generateLabel("decided");
+							generateConditionalJump(binary.left, decidingValue, decidedLabel);
+							generateConditionalJump(binary.right, jumpIfTrue, label);
+							emitLabel(decidedLabel);
+						}
+						return;
+				}
+				break;
+		}
+		generateExpression(condition);
+		emit(TEST, EAX, EAX);
+		emit(jumpIfTrue ? JNE : JE, label);
+	}
+
+	private void generateComparisonJump(Expr.Binary binary, boolean jumpIfTrue, String label) {
+		X86Opcode jump;
+		if (binary.left.kind == Expr.Kind.VARIABLE && binary.right.kind == Expr.Kind.INT_LITERAL) {
+			// a variable can be compared to a literal in memory
+			emit(CMP, getOperand(binary.left), getOperand(binary.right));
+			jump = getComparisonJump(binary.operator, false);
+		} else if (binary.left.kind == Expr.Kind.INT_LITERAL && binary.right.kind == Expr.Kind.VARIABLE) {
+			emit(CMP, getOperand(binary.right), getOperand(binary.left));
+			jump = getComparisonJump(binary.operator, true);
+		} else {
+			needs.clear();
+			registers.reserve(EAX);
+			BinaryOperands operands = generateOperands(binary, EAX);
+			emit(CMP, EAX, operands.operand);
+			jump = getComparisonJump(binary.operator, operands.swapped);
+			releaseOperands(operands);
+			registers.release(EAX);
+		}
+		emit(jumpIfTrue ? jump : jump.getInverse(), label);
+	}
+
+	// all expressions' result value will be in the EAX register after evaluation
+	private void generateExpression(Expr expression) {
+		needs.clear();
+		registers.reserve(EAX);
+		generateInto(expression, EAX);
+		registers.release(EAX);
+	}
+
+	/* evaluates `expression` into the register `target`, which the caller has
+	 * already reserved. The intermediate values are kept in the free registers
+	 * (see `RegisterPool`) instead of being pushed onto the stack, and are only
+	 * spilled onto the stack when every register is busy.
+	 *
+	 * NOTE that the operands are not always evaluated from left to right; this
+	 * can't be observed since a Bali method can't change its caller's variables
+	 */
+	private void generateInto(Expr expression, X86Operand target) {
+		switch (expression.kind) {
+			case INT_LITERAL:
+				emit(MOV, target, immediate(((Expr.IntLiteral) expression).value));
+				break;
+			case VARIABLE:
+				emit(MOV, target, getVariable(((Expr.Variable) expression).slot));
+				break;
+			case NEGATE:
+				generateInto(((Expr.Unary) expression).operand, target);
+				emit(NEG, target);
+				break;
+			case NOT:
+				generateInto(((Expr.Unary) expression).operand, target);
+				emit(TEST, target, target);
+				materializeCondition(target, JE);
+				break;
+			case BINARY:
+				generateBinaryExpression((Expr.Binary) expression, target);
+				break;
+			case CALL:
+				generateMethodCall((Expr.Call) expression, target);
+				break;
+		}
+	}
+
+	private void generateBinaryExpression(Expr.Binary binary, X86Operand target) {
+		if (binary.operator == '/') {
+			generateDivision(binary, target);
+			return;
+		}
+		BinaryOperands operands = generateOperands(binary, target);
+		if (operands.swapped) {
+			applySwappedOperator(binary.operator, target, operands.operand);
+		} else {
+			applyOperator(binary.operator, target, operands.operand);
+		}
+		releaseOperands(operands);
+	}
+
+	// where `generateOperands()` left the operands of a binary operator: one
+	// of them is in the target register, and the other one is `operand`
+	private static final class BinaryOperands {
+		X86Operand operand;
+		// whether the right operand is the one in the target register
+		boolean swapped;
+		// the register holding `operand`, if one had to be allocated
+		X86Operand temporary;
+		// whether `operand` had to be pushed onto the stack
+		boolean spilled;
+	}
+
+	private BinaryOperands generateOperands(Expr.Binary binary, X86Operand target) {
+		BinaryOperands operands = new BinaryOperands();
+
+		// a variable or a literal can be used as the instruction's operand
+		// directly, without taking up a register
+		if (isDirectOperand(binary.operator, binary.right)) {
+			generateInto(binary.left, target);
+			operands.operand = getOperand(binary.right);
+			return operands;
+		}
+		if (isDirectOperand(binary.operator, binary.left)) {
+			generateInto(binary.right, target);
+			operands.operand = getOperand(binary.left);
+			operands.swapped = true;
+			return operands;
+		}
+
+		// Sethi-Ullman: the operand that needs more registers is evaluated
+		// first, into `target`, while every other register is still free;
+		// only then is a register taken for the other one, so that a chain
+		// like `(((a * b) + (c * d)) + (e * f))` needs two registers at most
+		boolean leftFirst = getNeed(binary.left) >= getNeed(binary.right);
+		generateInto(leftFirst ? binary.left : binary.right, target);
+		X86Operand temporary = registers.allocate();
+		if (temporary == null) {
+			// out of registers; the first operand waits on the stack
+			emit(PUSH, target);
+			generateInto(leftFirst ? binary.right : binary.left, target);
+			operands.operand = getStackOperand(0);
+			operands.swapped = leftFirst;
+			operands.spilled = true;
+			return operands;
+		}
+		generateInto(leftFirst ? binary.right : binary.left, temporary);
+		operands.operand = temporary;
+		operands.swapped = !leftFirst;
+		operands.temporary = temporary;
+		return operands;
+	}
+
+	private void releaseOperands(BinaryOperands operands) {
+		if (operands.temporary != null) {
+			registers.release(operands.temporary);
+		}
+		if (operands.spilled) {
+			// `lea` leaves the flags of a comparison alone
+			emit(LEA, ESP, memory(ESP, WORD_SIZE));
+		}
+	}
+
+	// `target = target <operator> operand`
+	private void applyOperator(char operator, X86Operand target, X86Operand operand) {
+		switch (operator) {
+			case '+':
+				emit(ADD, target, operand);
+				break;
+			case '-':
+				emit(SUB, target, operand);
+				break;
+			case '*':
+				if (operand.isImmediate()) {
+					multiplyByConstant(target, operand.value);
+				} else {
+					emit(IMUL, target, operand);
+				}
+				break;
+			case '&':
+				// `target` becomes all ones if it is `true` (!= 0) and `0`
+				// otherwise, so that the `and` is `0` if either is `false`
+				emit(NEG, target);
+				emit(SBB, target, target);
+				emit(AND, target, operand);
+				materializeCondition(target, JNE);
+				break;
+			case '|':
+				// the `or` is `0` only if both operands are `false` (`0`)
+				emit(OR, target, operand);
+				materializeCondition(target, JNE);
+				break;
+			case '<':
+			case '>':
+			case '=':
+				emit(CMP, target, operand);
+				materializeCondition(target, getComparisonJump(operator, false));
+				break;
+			default:
+				throw new Error("Unknown Bali operator `" + operator + "`");
+		}
+	}
+
+	// `target = operand <operator> target`, for when the right operand was
+	// evaluated into `target`
+	private void applySwappedOperator(char operator, X86Operand target, X86Operand operand) {
+		switch (operator) {
+			case '-':
+				emit(NEG, target);
+				emit(ADD, target, operand);
+				break;
+			case '<':
+				applyOperator('>', target, operand);
+				break;
+			case '>':
+				applyOperator('<', target, operand);
+				break;
+			case '/':
+				throw new Error("Division can't have its operands swapped");
+			default:
+				applyOperator(operator, target, operand);
+				break;
+		}
+	}
+
+	private void generateDivision(Expr.Binary binary, X86Operand target) {
+		if (binary.right.kind == Expr.Kind.INT_LITERAL && canDivideByConstant(((Expr.IntLiteral) binary.right).value)) {
+			divideByConstant(binary.left, ((Expr.IntLiteral) binary.right).value, target);
+			return;
+		}
+		// the divisor can stay in memory if it's a variable
+		if (binary.right.kind == Expr.Kind.VARIABLE) {
+			generateInto(binary.left, target);
+			divide(target, getOperand(binary.right), false);
+			return;
+		}
+
+		// the operand that needs more registers first, as in `generateOperands()`
+		boolean leftFirst = getNeed(binary.left) >= getNeed(binary.right);
+		generateInto(leftFirst ? binary.left : binary.right, target);
+		X86Operand temporary = registers.allocate();
+		if (temporary == null) {
+			// out of registers; the first operand waits on the stack and the
+			// second one ends up in `target`
+			emit(PUSH, target);
+			generateInto(leftFirst ? binary.right : binary.left, target);
+			if (!leftFirst) {
+				// the divisor goes on top
+				emit(XCHG, target, getStackOperand(0));
+			}
+			emit(PUSH, target);
+			divideOnStack(target);
+			return;
+		}
+		generateInto(leftFirst ? binary.right : binary.left, temporary);
+		if (!leftFirst) {
+			// the dividend was evaluated into `temporary`
+			emit(XCHG, target, temporary);
+		}
+		divide(target, temporary, temporary.equals(EAX) || temporary.equals(EDX));
+		registers.release(temporary);
+	}
+
+	/* `target = target / divisor`. `idiv` divides EDX:EAX (so the dividend is
+	 * sign-extended into EDX with `cdq`) and leaves the quotient in EAX; if
+	 * EAX/EDX hold other live values or the divisor, we go through the stack
+	 */
+	private void divide(X86Operand target, X86Operand divisor, boolean divisorInEAXOrEDX) {
+		if (divisorInEAXOrEDX || isBusyOtherThan(EAX, target, divisor) || isBusyOtherThan(EDX, target, divisor)) {
+			emit(PUSH, target);
+			emit(PUSH, divisor);
+			divideOnStack(target);
+			return;
+		}
+		if (!target.equals(EAX)) {
+			emit(MOV, EAX, target);
+		}
+		emit(CDQ);
+		emit(IDIV, divisor);
+		if (!target.equals(EAX)) {
+			emit(MOV, target, EAX);
+		}
+	}
+
+	// `target = [esp + 4] / [esp]`; pops both operands
+	private void divideOnStack(X86Operand target) {
+		boolean saveEAX = isBusyOtherThan(EAX, target, null);
+		boolean saveEDX = isBusyOtherThan(EDX, target, null);
+		int savedSize = 0;
+		if (saveEAX) {
+			emit(PUSH, EAX);
+			savedSize += WORD_SIZE;
+		}
+		if (saveEDX) {
+			emit(PUSH, EDX);
+			savedSize += WORD_SIZE;
+		}
+		emit(MOV, EAX, getStackOperand(savedSize + WORD_SIZE));
+		emit(CDQ);
+		emit(IDIV, getStackOperand(savedSize));
+		if (!target.equals(EAX)) {
+			emit(MOV, target, EAX);
+		}
+		if (saveEDX) {
+			emit(POP, EDX);
+		}
+		if (saveEAX) {
+			emit(POP, EAX);
+		}
+		emit(ADD, ESP, immediate(2 * WORD_SIZE));
+	}
+
+	// ===============================
+	// multiplications and divisions by constants
+	// ===============================
+
+	/* `target = target * factor`. `imul` takes 3 cycles, so a factor that is
+	 * a power of two times 1, 3, 5, 9 or a product of two of these (e.g., 4,
+	 * 10, 24, 45) is done with a `shl` and `lea [r+r*2/4/8]`s instead, as long
+	 * as they take at most 2 instructions (counting the `neg` of a negative
+	 * factor). The results wrap around the same as with `imul`
+	 */
+	private void multiplyByConstant(X86Operand target, int factor) {
+		if (factor == 0) {
+			emit(MOV, target, immediate(0));
+			return;
+		}
+		// `factor` is `odd << shift`; `odd` is -1 for `Integer.MIN_VALUE`
+		int shift = Integer.numberOfTrailingZeros(factor);
+		int odd = factor >> shift;
+		int[] scales = getLeaScales(Math.abs(odd));
+		if (scales == null || scales.length + (shift > 0 ? 1 : 0) + (odd < 0 ? 1 : 0) > 2) {
+			emit(IMUL, target, immediate(factor));
+			return;
+		}
+		for (int scale : scales) {
+			emit(LEA, target, memory(target, target, scale - 1, 0));
+		}
+		if (shift > 0) {
+			emit(SHL, target, immediate(shift));
+		}
+		if (odd < 0) {
+			emit(NEG, target);
+		}
+	}
+
+	// the `lea` multipliers (3, 5 or 9) whose product is `odd`, or null
+	private static int[] getLeaScales(int odd) {
+		if (odd == 1) {
+			return new int[0];
+		}
+		for (int first : new int[] { 3, 5, 9 }) {
+			if (odd == first) {
+				return new int[] { first };
+			}
+			for (int second : new int[] { 3, 5, 9 }) {
+				if (odd == first * second) {
+					return new int[] { first, second };
+				}
+			}
+		}
+		return null;
+	}
+
+	// `idiv` faults on a division by `0` and on `Integer.MIN_VALUE / -1`, which
+	// must still happen, and `Integer.MIN_VALUE` has no magic number
+	private static boolean canDivideByConstant(int divisor) {
+		return divisor != 0 && divisor != -1 && divisor != Integer.MIN_VALUE;
+	}
+
+	/* `target = dividend / divisor`, truncating towards zero like `idiv`
+	 * (which takes 20+ cycles), for a divisor that `canDivideByConstant()`.
+	 * A division by -d is the negated division by d, and:
+	 * - by 2^k, an arithmetic shift rounds down, so a negative dividend is
+	 *   first added 2^k - 1 (its sign bits shifted down to k ones)
+	 * - by another d, the quotient is the high half of the product with a
+	 *   magic number (see `getDivisionMagic()`), shifted right, plus 1 if it
+	 *   is negative. The one-operand `imul` multiplies by EAX and leaves the
+	 *   high half in EDX, so the dividend is evaluated into another register
+	 * Without the registers this needs, it goes through the stack and `idiv`
+	 */
+	private void divideByConstant(Expr dividend, int divisor, X86Operand target) {
+		int magnitude = Math.abs(divisor);
+		// a power of two (or 1)
+		boolean shifted = Integer.bitCount(magnitude) == 1;
+		X86Operand source = target;
+		if (!shifted && (target.equals(EAX) || target.equals(EDX))) {
+			source = registers.allocateOtherThan(EAX, EDX);
+		}
+		generateInto(dividend, source == null ? target : source);
+		X86Operand temporary = shifted && magnitude > 1 ? registers.allocate() : null;
+		if (source == null || (shifted && magnitude > 1 && temporary == null)) {
+			emit(PUSH, target);
+			emit(PUSH, immediate(divisor));
+			divideOnStack(target);
+			return;
+		}
+
+		if (shifted && magnitude > 1) {
+			int shift = Integer.numberOfTrailingZeros(magnitude);
+			emit(MOV, temporary, target);
+			if (shift > 1) {
+				emit(SAR, temporary, immediate(31));
+			}
+			emit(SHR, temporary, immediate(32 - shift));
+			emit(ADD, target, temporary);
+			emit(SAR, target, immediate(shift));
+			registers.release(temporary);
+		} else if (!shifted) {
+			boolean saveEAX = isBusyOtherThan(EAX, target, source);
+			boolean saveEDX = isBusyOtherThan(EDX, target, source);
+			if (saveEAX) {
+				emit(PUSH, EAX);
+			}
+			if (saveEDX) {
+				emit(PUSH, EDX);
+			}
+			long magic = getDivisionMagic(magnitude);
+			int multiplier = (int) magic;
+			int shift = (int) (magic >>> 32);
+			emit(MOV, EAX, immediate(multiplier));
+			emit(IMUL, source);
+			if (multiplier < 0) {
+				// the multiplier is really `multiplier + 2^32`
+				emit(ADD, EDX, source);
+			}
+			if (shift > 0) {
+				emit(SAR, EDX, immediate(shift));
+			}
+			emit(MOV, EAX, EDX);
+			emit(SHR, EAX, immediate(31));
+			if (target.equals(EDX)) {
+				emit(ADD, EDX, EAX);
+			} else {
+				emit(ADD, EAX, EDX);
+				if (!target.equals(EAX)) {
+					emit(MOV, target, EAX);
+				}
+			}
+			if (saveEDX) {
+				emit(POP, EDX);
+			}
+			if (saveEAX) {
+				emit(POP, EAX);
+			}
+			if (source != target) {
+				registers.release(source);
+			}
+		}
+		if (divisor < 0) {
+			emit(NEG, target);
+		}
+	}
+
+	/* the magic number `m` and shift `s` of the signed division by `d` (2 <=
+	 * d < 2^31), from Hacker's Delight (10-1): `n / d` is the high 32 bits of
+	 * `m * n`, shifted right by `s`, plus 1 if that is negative, for every
+	 * `int` `n`. `m` is between 2^31 and 2^32 for some divisors (e.g., 7),
+	 * and is then returned as a negative `int` (so `n` has to be added to the
+	 * high half). Returns `m` in the low 32 bits and `s` in the high ones
+	 */
+	private static long getDivisionMagic(int d) {
+		final long two31 = 1L << 31;
+		long anc = two31 - 1 - two31 % d;
+		int p = 31;
+		long q1 = two31 / anc, r1 = two31 - q1 * anc;
+		long q2 = two31 / d, r2 = two31 - q2 * d;
+		long delta;
+		do {
+			p++;
+			q1 *= 2;
+			r1 *= 2;
+			if (r1 >= anc) {
+				q1++;
+				r1 -= anc;
+			}
+			q2 *= 2;
+			r2 *= 2;
+			if (r2 >= d) {
+				q2++;
+				r2 -= d;
+			}
+			delta = d - r2;
+		} while (q1 < delta || (q1 == delta && r1 == 0));
+		return ((long) (p - 32) << 32) | ((q2 + 1) & 0xFFFFFFFFL);
+	}
+
+	private void generateMethodCall(Expr.Call call, X86Operand target) {
+		// the callee may overwrite any register, so we save the ones
+		// holding live values; all of them are free while evaluating the actuals
+		ArrayList<X86Operand> savedRegisters = registers.getBusy(target);
+		for (X86Operand register : savedRegisters) {
+			emit(PUSH, register);
+		}
+		boolean[] registerState = registers.clear();
+
+		// for each actual encountered, push it onto the stack
+		for (Expr actual : call.arguments) {
+			if (isDirectOperand('+', actual)) {
+				emit(PUSH, getOperand(actual));
+			} else {
+				registers.reserve(EAX);
+				generateInto(actual, EAX);
+				registers.release(EAX);
+				emit(PUSH, EAX);
+			}
+		}
+		emit(CALL, getMethodLabel(call.callee));
+		emit(ADD, ESP, immediate(call.arguments.length * WORD_SIZE));
+
+		registers.restore(registerState);
+		if (!target.equals(EAX)) {
+			emit(MOV, target, EAX);
+		}
+		for (int i = savedRegisters.size() - 1; i >= 0; i--) {
+			emit(POP, savedRegisters.get(i));
+		}
+	}
+
+	/* `return g(...)` reuses the current frame when `g` takes at most as many
+	 * parameters as the current method (e.g., self-recursion): the actuals
+	 * overwrite the parameter slots closest to the return address, and then
+	 * the frame is torn down and we jump to `g`, which returns straight to
+	 * our caller. Our caller still pops all of our parameters, so `g` may
+	 * take fewer of them.
+	 *
+	 * The actuals are all pushed before any parameter is overwritten, since
+	 * they may read the parameters
+	 */
+	private void generateTailCall(Expr.Call call) {
+		for (Expr actual : call.arguments) {
+			if (isDirectOperand('+', actual)) {
+				emit(PUSH, getOperand(actual));
+			} else {
+				registers.reserve(EAX);
+				generateInto(actual, EAX);
+				registers.release(EAX);
+				emit(PUSH, EAX);
+			}
+		}
+		// the last actual is on top, and goes right above the return address
+		for (int i = 0; i < call.arguments.length; i++) {
+			emit(POP, memory(EBP, (i + 2) * WORD_SIZE));
+		}
+		emit(MOV, ESP, EBP);
+		emit(POP, EBP);
+		emit(JMP, getMethodLabel(call.callee));
+	}
+
+	// the number of registers needed to evaluate an expression without
+	// spilling (its Sethi-Ullman number). A method call needs them all since
+	// every register has to be saved around it
+	private int getNeed(Expr expression) {
+		Integer cached = needs.get(expression);
+		if (cached != null) {
+			return cached.intValue();
+		}
+		int need;
+		switch (expression.kind) {
+			case NEGATE:
+			case NOT:
+				need = getNeed(((Expr.Unary) expression).operand);
+				break;
+			case BINARY:
+				Expr.Binary binary = (Expr.Binary) expression;
+				int leftNeed = getNeed(binary.left);
+				int rightNeed = isDirectOperand(binary.operator, binary.right) ? 0 : getNeed(binary.right);
+				need = leftNeed == rightNeed ? leftNeed + 1 : Math.max(leftNeed, rightNeed);
+				break;
+			case CALL:
+				need = CALL_NEED;
+				break;
+			default:
+				need = 1;
+				break;
+		}
+		needs.put(expression, Integer.valueOf(need));
+		return need;
+	}
+
+	// ===============================
+	// the following are utility/helper functions
+	// ===============================
+
+	private void emit(X86Opcode opcode, X86Operand... operands) {
+		code.add(new X86Instruction(opcode, operands));
+	}
+
+	// a jump or a call
+	private void emit(X86Opcode opcode, String label) {
+		code.add(new X86Instruction(opcode, label(label)));
+	}
+
+	private void emitLabel(String label) {
+		code.add(X86Instruction.label(label));
+	}
+
+	// optimizes and writes out the instructions generated so far
+	private void flushCode() {
+		if (peephole != null) {
+			peephole.optimize(code);
+		}
+		for (X86Instruction instruction : code) {
+			instruction.emit(out);
+		}
+		code.clear();
+	}
+
+	// we make every label unique by scoping it to the method and appending
+	// a unique suffix to each given label prefix (e.g., `end` in `fib` would
+	// become `fib_end_0`)
+	private String generateLabel(String prefix) {
+		return method.info.getLabelName() + "_" + prefix + "_" + labelCount++;
+	}
+
+	// `main` is the only static label (see `generateStart()`)
+	private static String getMethodLabel(MethodInfo methodInfo) {
+		if (methodInfo.name.equals("main")) {
+			return "mainBali";
+		}
+		return methodInfo.getLabelName() + "_method";
+	}
+
+	// the jump taken when the comparison `operator` holds after a `cmp` of
+	// its operands (in reverse order if `swapped`)
+	private static X86Opcode getComparisonJump(char operator, boolean swapped) {
+		switch (operator) {
+			case '<':
+				return swapped ? JG : JL;
+			case '>':
+				return swapped ? JL : JG;
+			case '=':
+				return JE;
+			default:
+				throw new Error("`" + operator + "` is not a comparison");
+		}
+	}
+
+	/* sets `target` to `1` if the flags satisfy the condition of `jCondition`
+	 * and to `0` otherwise, with a `setcc` on a low byte register and a
+	 * `movzx`. The flags must have just been set (e.g., by a `cmp`)
+	 */
+	private void materializeCondition(X86Operand target, X86Opcode jCondition) {
+		X86Operand lowByte = target.getLowByte();
+		if (lowByte != null) {
+			emit(jCondition.getSetInstruction(), lowByte);
+			emit(MOVZX, target, lowByte);
+			return;
+		}
+
+		// `esi`/`edi` don't have a low byte register; borrow a free one
+		X86Operand temporary = registers.allocateWithLowByte();
+		if (temporary != null) {
+			emit(jCondition.getSetInstruction(), temporary.getLowByte());
+			emit(MOVZX, target, temporary.getLowByte());
+			registers.release(temporary);
+			return;
+		}
+
+		// `mov` leaves the flags alone
+		String postConditionalLabel = generateLabel("post_conditional");
+		emit(MOV, target, immediate(0));
+		emit(jCondition.getInverse(), postConditionalLabel);
+		emit(INC, target);
+		emitLabel(postConditionalLabel);
+	}
+
+	// whether a leaf can be used directly as the (right) operand of the
+	// instruction for `operator` (`/` only takes a variable; see
+	// `generateDivision()`)
+	private static boolean isDirectOperand(char operator, Expr operand) {
+		switch (operand.kind) {
+			case VARIABLE:
+				return true;
+			case INT_LITERAL:
+				return operator != '/';
+			default:
+				return false;
+		}
+	}
+
+	private boolean isTailCall(Expr value) {
+		return value.kind == Expr.Kind.CALL && ((Expr.Call) value).arguments.length <= method.numParameters;
+	}
+
+	// the operand for a variable or a literal
+	private X86Operand getOperand(Expr leaf) {
+		if (leaf.kind == Expr.Kind.INT_LITERAL) {
+			return immediate(((Expr.IntLiteral) leaf).value);
+		}
+		return getVariable(((Expr.Variable) leaf).slot);
+	}
+
+	private static X86Operand getStackOperand(int offset) {
+		return memory(ESP, offset);
+	}
+
+	// whether `register` holds a live value other than `target`/`operand`
+	private boolean isBusyOtherThan(X86Operand register, X86Operand target, X86Operand operand) {
+		return !register.equals(target) && !register.equals(operand) && registers.isBusy(register);
+	}
+
+	// the memory operand of a variable: parameters are at positive EBP
+	// offsets (above the return address), locals at negative ones
+	private X86Operand getVariable(int slot) {
+		int EBPOffset;
+		if (slot < method.numParameters) {
+			EBPOffset = (method.numParameters + 1 - slot) * WORD_SIZE;
+		} else {
+			EBPOffset = -(slot - method.numParameters + 1) * WORD_SIZE;
+		}
+		return memory(EBP, EBPOffset);
+	}
+}
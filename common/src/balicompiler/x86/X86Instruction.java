@@ -0,0 +1,61 @@
+package balicompiler.x86;
+
+import balicompiler.CodeEmitter;
+
+// one x86 instruction (or label definition, whose only operand is the
+// label) of the code generated for a method
+public class X86Instruction {
+	public X86Opcode opcode;
+	public X86Operand[] operands;
+
+	public X86Instruction(X86Opcode opcode, X86Operand... operands) {
+		this.opcode = opcode;
+		this.operands = operands;
+	}
+
+	public static X86Instruction label(String label) {
+		return new X86Instruction(X86Opcode.LABEL, X86Operand.label(label));
+	}
+
+	public X86Operand getOperand(int i) {
+		return operands[i];
+	}
+
+	// the label of a label definition or the target of a jump
+	public String getLabel() {
+		return operands[0].label;
+	}
+
+	// whether `opcode` is `MOV` from `source` into `destination`
+	public boolean isMove(X86Operand destination, X86Operand source) {
+		return opcode == X86Opcode.MOV && operands[0].equals(destination) && operands[1].equals(source);
+	}
+
+	public void emit(CodeEmitter out) {
+		if (opcode == X86Opcode.LABEL) {
+			out.emitLabel(getLabel());
+		} else if (operands.length == 0) {
+			out.emit(opcode.getMnemonic());
+		} else {
+			out.emit(opcode.getMnemonic(), getOperandsString());
+		}
+	}
+
+	private String getOperandsString() {
+		// NASM can infer the operand size from a register operand
+		boolean sized = true;
+		for (X86Operand operand : operands) {
+			if (operand.isRegister()) {
+				sized = false;
+			}
+		}
+		StringBuilder result = new StringBuilder();
+		for (int i = 0; i < operands.length; i++) {
+			if (i > 0) {
+				result.append(", ");
+			}
+			result.append(operands[i].toString(sized));
+		}
+		return result.toString();
+	}
+}
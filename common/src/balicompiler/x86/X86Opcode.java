@@ -0,0 +1,79 @@
+package balicompiler.x86;
+
+// the x86 instructions generated by `X86Backend`, plus `LABEL` for label
+// definitions (see `SamOpcode`). The NASM mnemonic is the lowercase name
+public enum X86Opcode {
+	MOV, MOVZX, LEA, XCHG, PUSH, POP,
+	ADD, SUB, SBB, INC, IMUL, IDIV, CDQ, NEG, SHL, SAR, SHR, AND, OR, CMP, TEST,
+	JMP, JE, JNE, JL, JLE, JG, JGE,
+	SETE, SETNE, SETL, SETLE, SETG, SETGE,
+	CALL, RET,
+	LABEL;
+
+	public String getMnemonic() {
+		return name().toLowerCase();
+	}
+
+	public boolean isJump() {
+		return this == JMP || isConditionalJump();
+	}
+
+	public boolean isConditionalJump() {
+		switch (this) {
+			case JE:
+			case JNE:
+			case JL:
+			case JLE:
+			case JG:
+			case JGE:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	// the conditional jump taken exactly when this one isn't
+	public X86Opcode getInverse() {
+		switch (this) {
+			case JE:
+				return JNE;
+			case JNE:
+				return JE;
+			case JL:
+				return JGE;
+			case JGE:
+				return JL;
+			case JG:
+				return JLE;
+			case JLE:
+				return JG;
+			default:
+				throw new Error("`" + getMnemonic() + "` is not a conditional jump");
+		}
+	}
+
+	// the `setcc` for the condition of a conditional jump
+	public X86Opcode getSetInstruction() {
+		switch (this) {
+			case JE:
+				return SETE;
+			case JNE:
+				return SETNE;
+			case JL:
+				return SETL;
+			case JLE:
+				return SETLE;
+			case JG:
+				return SETG;
+			case JGE:
+				return SETGE;
+			default:
+				throw new Error("`" + getMnemonic() + "` is not a conditional jump");
+		}
+	}
+
+	// whether execution never falls through to the next instruction
+	public boolean isUnconditionalTransfer() {
+		return this == JMP || this == RET;
+	}
+}
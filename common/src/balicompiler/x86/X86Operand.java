@@ -0,0 +1,161 @@
+package balicompiler.x86;
+
+import java.util.Objects;
+
+// an operand of an `X86Instruction`: a register, an immediate value, a
+// memory reference (`[base+index*scale+displacement]`) or a label
+public final class X86Operand {
+	public enum Kind {
+		REGISTER, IMMEDIATE, MEMORY, LABEL
+	}
+
+	public static final X86Operand EAX = register("eax");
+	public static final X86Operand EBX = register("ebx");
+	public static final X86Operand ECX = register("ecx");
+	public static final X86Operand EDX = register("edx");
+	public static final X86Operand ESI = register("esi");
+	public static final X86Operand EDI = register("edi");
+	public static final X86Operand EBP = register("ebp");
+	public static final X86Operand ESP = register("esp");
+	public static final X86Operand AL = register("al");
+	public static final X86Operand BL = register("bl");
+	public static final X86Operand CL = register("cl");
+	public static final X86Operand DL = register("dl");
+
+	public final Kind kind;
+	// `REGISTER`: the register; `MEMORY`: the base register (or null)
+	public final String register;
+	// `MEMORY`: the index register (or null) and its scale
+	public final String index;
+	public final int scale;
+	// `IMMEDIATE`: the value; `MEMORY`: the displacement
+	public final int value;
+	public final String label;
+
+	private X86Operand(Kind kind, String register, String index, int scale, int value, String label) {
+		this.kind = kind;
+		this.register = register;
+		this.index = index;
+		this.scale = scale;
+		this.value = value;
+		this.label = label;
+	}
+
+	public static X86Operand register(String register) {
+		return new X86Operand(Kind.REGISTER, register, null, 0, 0, null);
+	}
+
+	public static X86Operand immediate(int value) {
+		return new X86Operand(Kind.IMMEDIATE, null, null, 0, value, null);
+	}
+
+	public static X86Operand memory(X86Operand base, int displacement) {
+		return new X86Operand(Kind.MEMORY, base.register, null, 0, displacement, null);
+	}
+
+	// `[base+index*scale+displacement]` (`scale` is 1, 2, 4 or 8), e.g. for
+	// `lea`
+	public static X86Operand memory(X86Operand base, X86Operand index, int scale, int displacement) {
+		return new X86Operand(Kind.MEMORY, base.register, index.register, scale, displacement, null);
+	}
+
+	public static X86Operand label(String label) {
+		return new X86Operand(Kind.LABEL, null, null, 0, 0, label);
+	}
+
+	public boolean isRegister() {
+		return kind == Kind.REGISTER;
+	}
+
+	public boolean isImmediate() {
+		return kind == Kind.IMMEDIATE;
+	}
+
+	public boolean isMemory() {
+		return kind == Kind.MEMORY;
+	}
+
+	public boolean isImmediate(int value) {
+		return kind == Kind.IMMEDIATE && this.value == value;
+	}
+
+	// whether the value of this operand depends on `register` (a register
+	// and its low byte count as the same register)
+	public boolean uses(X86Operand register) {
+		String full = getFullRegister(register.register);
+		switch (kind) {
+			case REGISTER:
+				return getFullRegister(this.register).equals(full);
+			case MEMORY:
+				return full.equals(this.register) || full.equals(index);
+			default:
+				return false;
+		}
+	}
+
+	// the low byte of a register, for `setcc`; null for the registers that
+	// don't have one (`esi`, `edi`, `ebp` and `esp`)
+	public X86Operand getLowByte() {
+		switch (register) {
+			case "eax":
+				return AL;
+			case "ebx":
+				return BL;
+			case "ecx":
+				return CL;
+			case "edx":
+				return DL;
+			default:
+				return null;
+		}
+	}
+
+	private static String getFullRegister(String register) {
+		return register.length() == 2 ? "e" + register.charAt(0) + "x" : register;
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		if (!(other instanceof X86Operand)) {
+			return false;
+		}
+		X86Operand operand = (X86Operand) other;
+		return kind == operand.kind && Objects.equals(register, operand.register) && Objects.equals(index, operand.index)
+				&& scale == operand.scale && value == operand.value && Objects.equals(label, operand.label);
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(kind, register, index, scale, value, label);
+	}
+
+	// `sized` spells out the operand size (which NASM needs when no operand
+	// of the instruction is a register)
+	public String toString(boolean sized) {
+		switch (kind) {
+			case REGISTER:
+				return register;
+			case IMMEDIATE:
+				return sized ? "dword " + value : Integer.toString(value);
+			case MEMORY:
+				StringBuilder address = new StringBuilder(sized ? "dword [" : "[");
+				if (register != null) {
+					address.append(register);
+				}
+				if (index != null) {
+					address.append(register != null ? "+" : "").append(index).append('*').append(scale);
+				}
+				if (value != 0 || (register == null && index == null)) {
+					address.append(String.format(register != null || index != null ? "%+d" : "%d", value));
+				}
+				return address.append(']').toString();
+			default:
+				return label;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return toString(false);
+	}
+}
@@ -0,0 +1,273 @@
+package balicompiler.x86;
+
+import balicompiler.PeepholeCode;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static balicompiler.x86.X86Opcode.*;
+import static balicompiler.x86.X86Operand.*;
+
+// a peephole optimizer over the x86 instructions of a method, driven by a
+// table of rules the same way as `SamPeephole` (see there).
+//
+// NOTE that the rules may remove or merge `add`s/`sub`s of `esp` without
+// caring about their flags: `X86Backend` only uses the flags (with a `jcc`
+// or a `setcc`) right after the `cmp`/`test`/`and`/`or` that sets them
+public class X86Peephole {
+	interface Rewrite {
+		// `code` is for the rewrites that look beyond the `matched`
+		// instructions (e.g., at the target of a jump)
+		List<X86Instruction> apply(List<X86Instruction> matched, PeepholeCode<X86Instruction> code);
+	}
+
+	static final class Rule {
+		final String name;
+		// the opcodes allowed at each position; null matches any
+		// instruction (but not a label)
+		final X86Opcode[][] pattern;
+		final Rewrite rewrite;
+
+		Rule(String name, X86Opcode[][] pattern, Rewrite rewrite) {
+			this.name = name;
+			this.pattern = pattern;
+			this.rewrite = rewrite;
+		}
+	}
+
+	private static final X86Opcode[] CONDITIONAL_JUMPS = { JE, JNE, JL, JLE, JG, JGE };
+	private static final X86Opcode[] JUMPS = { JMP, JE, JNE, JL, JLE, JG, JGE };
+
+	private static final Rule[] RULES = {
+		new Rule("self-move", pattern(of(MOV)),
+				(matched, code) -> matched.get(0).getOperand(0).equals(matched.get(0).getOperand(1)) ? replaceWith() : null),
+		// e.g., the value of an assignment being read right back
+		new Rule("store-load", pattern(of(MOV), of(MOV)),
+				X86Peephole::removeMoveBack),
+		// a register that is overwritten before it is read
+		new Rule("dead-move", pattern(of(MOV), of(MOV)),
+				X86Peephole::removeDeadMove),
+		new Rule("push-pop", pattern(of(PUSH), of(POP)),
+				X86Peephole::replacePushPop),
+		// e.g., dropping the locals of a method without any
+		new Rule("add-esp-zero", pattern(of(ADD, SUB)),
+				(matched, code) -> matched.get(0).getOperand(0).equals(ESP) && matched.get(0).getOperand(1).isImmediate(0) ? replaceWith() : null),
+		new Rule("merge-add-esp", pattern(of(ADD), of(ADD)),
+				(matched, code) -> isAddToESP(matched.get(0)) && isAddToESP(matched.get(1))
+						? replaceWith(new X86Instruction(ADD, ESP,
+								immediate(matched.get(0).getOperand(1).value + matched.get(1).getOperand(1).value)))
+						: null),
+		// popping an argument right before pushing the next value
+		new Rule("reuse-stack-slot", pattern(of(ADD), of(PUSH)),
+				(matched, code) -> isAddToESP(matched.get(0)) && matched.get(0).getOperand(1).value == 4
+						&& !matched.get(1).getOperand(0).isMemory() && !matched.get(1).getOperand(0).equals(ESP)
+						? replaceWith(new X86Instruction(MOV, memory(ESP, 0), matched.get(1).getOperand(0)))
+						: null),
+		// `jcc L1 / jmp L2 / L1:` branches to `L2` on the inverse condition
+		new Rule("branch-over-jump", pattern(CONDITIONAL_JUMPS, of(JMP), of(LABEL)),
+				(matched, code) -> matched.get(0).getLabel().equals(matched.get(2).getLabel())
+						? replaceWith(new X86Instruction(matched.get(0).opcode.getInverse(), matched.get(1).getOperand(0)), matched.get(2))
+						: null),
+		// e.g., the jump to the end label after the last `return`
+		new Rule("jump-to-next", pattern(JUMPS),
+				X86Peephole::removeJumpToNext),
+		new Rule("thread-jump", pattern(JUMPS),
+				X86Peephole::threadJump),
+		new Rule("unreachable", pattern(of(JMP, RET), null),
+				(matched, code) -> replaceWith(matched.get(0))),
+	};
+
+	private final Rule[] rules;
+	private final int maxPatternLength;
+	// indexed like `rules`
+	private final int[] appliedCounts;
+	private final int[] removedCounts;
+
+	public X86Peephole() {
+		this(Collections.<String>emptySet());
+	}
+
+	// the rules named in `disabledRules` are left out (names that aren't
+	// x86 rules are ignored)
+	public X86Peephole(Collection<String> disabledRules) {
+		ArrayList<Rule> enabled = new ArrayList<Rule>();
+		for (Rule rule : RULES) {
+			if (!disabledRules.contains(rule.name)) {
+				enabled.add(rule);
+			}
+		}
+		rules = enabled.toArray(new Rule[enabled.size()]);
+		int maxLength = 1;
+		for (Rule rule : rules) {
+			maxLength = Math.max(maxLength, rule.pattern.length);
+		}
+		maxPatternLength = maxLength;
+		appliedCounts = new int[rules.length];
+		removedCounts = new int[rules.length];
+	}
+
+	public static HashSet<String> getRuleNames() {
+		HashSet<String> names = new HashSet<String>();
+		for (Rule rule : RULES) {
+			names.add(rule.name);
+		}
+		return names;
+	}
+
+	public void optimize(ArrayList<X86Instruction> code) {
+		PeepholeCode<X86Instruction> rewritten = new PeepholeCode<X86Instruction>(code,
+				instruction -> instruction.opcode == LABEL ? instruction.getLabel() : null,
+				instruction -> Arrays.asList(JUMPS).contains(instruction.opcode) ? instruction.getLabel() : null,
+				maxPatternLength);
+		int node;
+		while ((node = rewritten.poll()) >= 0) {
+			for (int r = 0; r < rules.length; r++) {
+				// the replacement is queued to be looked at again
+				if (apply(r, rewritten, node)) {
+					break;
+				}
+			}
+		}
+		rewritten.writeTo(code);
+	}
+
+	// adds the counts of `other`, which must have the same rules enabled
+	// (e.g., to total the counts of the files compiled in parallel)
+	public synchronized void merge(X86Peephole other) {
+		for (int r = 0; r < rules.length; r++) {
+			appliedCounts[r] += other.appliedCounts[r];
+			removedCounts[r] += other.removedCounts[r];
+		}
+	}
+
+	// the enabled rules, e.g. for cache keys
+	public String getConfiguration() {
+		StringBuilder configuration = new StringBuilder("peephole");
+		for (Rule rule : rules) {
+			configuration.append(' ').append(rule.name);
+		}
+		return configuration.toString();
+	}
+
+	public void report(PrintStream out) {
+		int total = 0;
+		out.println("NASM peephole:");
+		for (int r = 0; r < rules.length; r++) {
+			out.printf("  %-20s applied %6d times, removed %6d instructions%n",
+					rules[r].name, appliedCounts[r], removedCounts[r]);
+			total += removedCounts[r];
+		}
+		out.printf("  %-20s removed %6d instructions%n", "total", total);
+	}
+
+	private boolean apply(int r, PeepholeCode<X86Instruction> code, int node) {
+		X86Opcode[][] pattern = rules[r].pattern;
+		ArrayList<X86Instruction> matched = new ArrayList<X86Instruction>(pattern.length);
+		for (int k = 0, at = node; k < pattern.length; k++, at = code.getNext(at)) {
+			if (at < 0) {
+				return false;
+			}
+			X86Opcode opcode = code.get(at).opcode;
+			if (pattern[k] == null ? opcode == LABEL : !Arrays.asList(pattern[k]).contains(opcode)) {
+				return false;
+			}
+			matched.add(code.get(at));
+		}
+		List<X86Instruction> replacement = rules[r].rewrite.apply(matched, code);
+		if (replacement == null) {
+			return false;
+		}
+		code.replace(node, pattern.length, replacement);
+		appliedCounts[r]++;
+		removedCounts[r] += pattern.length - replacement.size();
+		return true;
+	}
+
+	// ===============================
+	// the following are the rewrites that need more than the matched
+	// instructions, and utility/helper functions
+	// ===============================
+
+	// `mov a, b / mov b, a`; the second one moves the same value back
+	private static List<X86Instruction> removeMoveBack(List<X86Instruction> matched, PeepholeCode<X86Instruction> code) {
+		X86Operand destination = matched.get(0).getOperand(0);
+		X86Operand source = matched.get(0).getOperand(1);
+		if (!matched.get(1).isMove(source, destination) || source.uses(destination)) {
+			return null;
+		}
+		return replaceWith(matched.get(0));
+	}
+
+	// `mov r, a / mov r, b` where `b` doesn't read `r`
+	private static List<X86Instruction> removeDeadMove(List<X86Instruction> matched, PeepholeCode<X86Instruction> code) {
+		X86Operand destination = matched.get(0).getOperand(0);
+		X86Instruction next = matched.get(1);
+		if (!destination.isRegister() || !next.getOperand(0).equals(destination) || next.getOperand(1).uses(destination)) {
+			return null;
+		}
+		return replaceWith(next);
+	}
+
+	// `push a / pop b` is `mov b, a` (or nothing if they are the same)
+	private static List<X86Instruction> replacePushPop(List<X86Instruction> matched, PeepholeCode<X86Instruction> code) {
+		X86Operand source = matched.get(0).getOperand(0);
+		X86Operand destination = matched.get(1).getOperand(0);
+		if (source.equals(destination)) {
+			return replaceWith();
+		}
+		// x86 has no memory to memory `mov`, and `esp` changes in between
+		if ((source.isMemory() && destination.isMemory()) || source.uses(ESP) || destination.uses(ESP)) {
+			return null;
+		}
+		return replaceWith(new X86Instruction(MOV, destination, source));
+	}
+
+	// a (conditional) jump to one of the labels right after it
+	private static List<X86Instruction> removeJumpToNext(List<X86Instruction> matched, PeepholeCode<X86Instruction> code) {
+		X86Instruction jump = matched.get(0);
+		return code.getInstructionBefore(jump.getLabel()) == jump ? replaceWith() : null;
+	}
+
+	// a (conditional) jump to a `jmp` goes straight to the final target
+	private static List<X86Instruction> threadJump(List<X86Instruction> matched, PeepholeCode<X86Instruction> code) {
+		X86Instruction jump = matched.get(0);
+		HashSet<String> visited = new HashSet<String>();
+		String target = jump.getLabel();
+		while (true) {
+			X86Instruction next = code.getInstructionAt(target);
+			if (next == null || next.opcode != JMP) {
+				break;
+			}
+			// give up on jump cycles (e.g., `while (true) ;`)
+			if (!visited.add(target)) {
+				return null;
+			}
+			target = next.getLabel();
+		}
+		if (target.equals(jump.getLabel())) {
+			return null;
+		}
+		return replaceWith(new X86Instruction(jump.opcode, label(target)));
+	}
+
+	private static boolean isAddToESP(X86Instruction instruction) {
+		return instruction.opcode == ADD && instruction.getOperand(0).equals(ESP) && instruction.getOperand(1).isImmediate();
+	}
+
+	private static X86Opcode[][] pattern(X86Opcode[]... opcodes) {
+		return opcodes;
+	}
+
+	private static X86Opcode[] of(X86Opcode... opcodes) {
+		return opcodes;
+	}
+
+	private static List<X86Instruction> replaceWith(X86Instruction... instructions) {
+		return new ArrayList<X86Instruction>(Arrays.asList(instructions));
+	}
+}